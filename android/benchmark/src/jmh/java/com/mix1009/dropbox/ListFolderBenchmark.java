@@ -0,0 +1,78 @@
+package com.mix1009.dropbox;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lists a folder through the {@code listFolder} method call, paging through the stand-in API
+ * and converting the entries for Dart. {@code fullListing} starts without a cached listing;
+ * {@code cachedListing} only asks for the changes since the cached cursor, of which there are
+ * none.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ListFolderBenchmark {
+
+  private static final String FOLDER = "/listing";
+
+  @Param({"1000", "10000"})
+  public int entries;
+
+  @Param({"2000"})
+  public int pageSize;
+
+  @Param({"0", "20"})
+  public long latencyMillis;
+
+  @Param({"false", "true"})
+  public boolean compact;
+
+  private LocalDropboxApi api;
+  private PluginHarness harness;
+  private Map<String, Object> args;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    api = new LocalDropboxApi(16);
+    api.setPageSize(pageSize);
+    api.setLatencyMillis(latencyMillis);
+    api.addFiles(FOLDER, entries, 0);
+    harness = new PluginHarness(api, Collections.<String, Object>emptyMap());
+
+    args = new HashMap<>();
+    args.put("path", FOLDER);
+    args.put("compact", compact);
+    harness.callOk("listFolder", args);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    harness.close();
+    api.close();
+  }
+
+  @Benchmark
+  public Object fullListing() throws Exception {
+    DropboxPlugin.metadataCache.clear();
+    return harness.callOk("listFolder", args);
+  }
+
+  @Benchmark
+  public Object cachedListing() throws Exception {
+    return harness.callOk("listFolder", args);
+  }
+}
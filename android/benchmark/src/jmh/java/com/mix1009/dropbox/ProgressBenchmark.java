@@ -0,0 +1,98 @@
+package com.mix1009.dropbox;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Feeds progress into the plugin's aggregator from several transfer workers at once, the way the
+ * SDK's progress callbacks do, and counts the {@code progressBatch} messages that reach Dart.
+ * The score is the cost of one update on a worker; {@link Events} shows how far the aggregator
+ * thins them out for the main thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Threads(4)
+public class ProgressBenchmark {
+
+  @Param({"0", "100"})
+  public long progressIntervalMs;
+
+  @Param({"0", "1048576"})
+  public long progressMinBytes;
+
+  private LocalDropboxApi api;
+  private PluginHarness harness;
+
+  /** One transfer per benchmark thread. */
+  @State(Scope.Thread)
+  public static class Transfer {
+    private static final AtomicInteger KEYS = new AtomicInteger();
+
+    final int key = KEYS.incrementAndGet();
+    long bytes;
+  }
+
+  /** Rates over the whole run. Messages are shared by all threads, so only the first counts them. */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Events {
+    public long progressMessages;
+    public long progressUpdates;
+    boolean counting;
+    long messagesSeen;
+    long updatesSeen;
+
+    @Setup(Level.Iteration)
+    public void start(ThreadParams thread) {
+      counting = thread.getThreadIndex() == 0;
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    api = new LocalDropboxApi(1);
+    Map<String, Object> init = new HashMap<>();
+    init.put("progressIntervalMs", progressIntervalMs);
+    init.put("progressMinBytes", progressMinBytes);
+    harness = new PluginHarness(api, init);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    harness.close();
+    api.close();
+  }
+
+  @Benchmark
+  public void update(Transfer transfer, Events events) {
+    // One SDK callback per 16 KiB buffer the HTTP stream moves
+    transfer.bytes += 16 * 1024;
+    DropboxPlugin.progress.update(transfer.key, transfer.bytes, -1);
+
+    if (events.counting) {
+      long messages = harness.messages("progressBatch");
+      long updates = harness.progressUpdates();
+      events.progressMessages += messages - events.messagesSeen;
+      events.progressUpdates += updates - events.updatesSeen;
+      events.messagesSeen = messages;
+      events.updatesSeen = updates;
+    }
+  }
+}
@@ -0,0 +1,45 @@
+package com.mix1009.dropbox;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Reports the most threads that were alive during an iteration and how many were started in it.
+ * The stand-in API starts all of its threads before the first iteration, so both numbers only
+ * move with the plugin's workers and OkHttp's.
+ */
+public class ThreadCountProfiler implements InternalProfiler {
+
+  private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+  private long startedBefore;
+
+  @Override
+  public String getDescription() {
+    return "Peak live threads and threads started per iteration";
+  }
+
+  @Override
+  public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+    threads.resetPeakThreadCount();
+    startedBefore = threads.getTotalStartedThreadCount();
+  }
+
+  @Override
+  public Collection<? extends Result> afterIteration(BenchmarkParams benchmarkParams,
+                                                     IterationParams iterationParams, IterationResult result) {
+    return Arrays.asList(
+            new ScalarResult("threads.peak", threads.getPeakThreadCount(), "threads", AggregationPolicy.MAX),
+            new ScalarResult("threads.started", threads.getTotalStartedThreadCount() - startedBefore,
+                    "threads", AggregationPolicy.SUM));
+  }
+}
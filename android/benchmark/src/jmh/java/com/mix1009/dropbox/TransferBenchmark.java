@@ -0,0 +1,184 @@
+package com.mix1009.dropbox;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads and downloads files through the {@code upload} and {@code download} method calls, one
+ * at a time and {@code parallel} at once. Files from {@code chunkedUploadThreshold} up go
+ * through chunked upload sessions and, with {@code downloadSegments} above 1, segmented
+ * downloads. Besides the operation rate, the {@link Events} counters report bytes per second and
+ * how many progress messages and per-transfer updates reached the Dart side.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TransferBenchmark {
+
+  @Param({"1048576", "50331648"})
+  public int fileSize;
+
+  @Param({"4"})
+  public int parallel;
+
+  @Param({"0"})
+  public long latencyMillis;
+
+  /** Bytes per second in each direction; 0 is as fast as loopback goes. */
+  @Param({"0"})
+  public long bandwidth;
+
+  /** Every how many requests one is answered with 429; 0 never. */
+  @Param({"0"})
+  public int rateLimitEvery;
+
+  @Param({"1"})
+  public int downloadSegments;
+
+  private LocalDropboxApi api;
+  private PluginHarness harness;
+  private final List<File> localFiles = new ArrayList<>();
+  private final List<File> downloads = new ArrayList<>();
+  // The harness counts for the whole JVM; only one thread runs these benchmarks
+  private long progressMessagesSeen;
+  private long progressUpdatesSeen;
+
+  /** Rates over the whole run, reported next to the benchmark's own score. */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Events {
+    public long bytes;
+    public long progressMessages;
+    public long progressUpdates;
+  }
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    api = new LocalDropboxApi(32);
+    api.setLatencyMillis(latencyMillis);
+    api.setBandwidth(bandwidth);
+    api.setRateLimit(rateLimitEvery, 0);
+
+    Map<String, Object> init = new HashMap<>();
+    init.put("downloadSegments", downloadSegments);
+    init.put("retryBaseDelayMs", 1);
+    harness = new PluginHarness(api, init);
+
+    Random random = new Random(fileSize);
+    for (int i = 0; i < parallel; i++) {
+      byte[] content = new byte[fileSize];
+      random.nextBytes(content);
+      File file = new File(harness.dir(), "upload-" + i + ".bin");
+      try (FileOutputStream out = new FileOutputStream(file)) {
+        out.write(content);
+      }
+      localFiles.add(file);
+      api.addFile(remotePath("download", i), content);
+      downloads.add(new File(harness.dir(), "download-" + i + ".bin"));
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    harness.close();
+    api.close();
+  }
+
+  @TearDown(Level.Invocation)
+  public void deleteDownloads() {
+    for (File file : downloads) {
+      file.delete();
+    }
+  }
+
+  @Benchmark
+  public Object upload(Events events) throws Exception {
+    return count(events, 1, harness.callOk("upload", uploadArgs(0)));
+  }
+
+  @Benchmark
+  public Object download(Events events) throws Exception {
+    return count(events, 1, harness.callOk("download", downloadArgs(0)));
+  }
+
+  @Benchmark
+  public Object parallelUploads(Events events) throws Exception {
+    List<CompletableFuture<Object>> calls = new ArrayList<>();
+    for (int i = 0; i < parallel; i++) {
+      calls.add(harness.callAsync("upload", uploadArgs(i)));
+    }
+    return count(events, parallel, join(calls));
+  }
+
+  @Benchmark
+  public Object parallelDownloads(Events events) throws Exception {
+    List<CompletableFuture<Object>> calls = new ArrayList<>();
+    for (int i = 0; i < parallel; i++) {
+      calls.add(harness.callAsync("download", downloadArgs(i)));
+    }
+    return count(events, parallel, join(calls));
+  }
+
+  private Map<String, Object> uploadArgs(int i) {
+    Map<String, Object> args = new HashMap<>();
+    args.put("filepath", localFiles.get(i).getPath());
+    args.put("dropboxpath", remotePath("upload", i));
+    args.put("key", harness.newKey());
+    return args;
+  }
+
+  private Map<String, Object> downloadArgs(int i) {
+    Map<String, Object> args = new HashMap<>();
+    args.put("dropboxpath", remotePath("download", i));
+    args.put("filepath", downloads.get(i).getPath());
+    args.put("key", harness.newKey());
+    return args;
+  }
+
+  private static String remotePath(String kind, int i) {
+    return "/transfers/" + kind + "-" + i + ".bin";
+  }
+
+  private static Object join(List<CompletableFuture<Object>> calls) throws Exception {
+    List<Object> results = new ArrayList<>();
+    for (CompletableFuture<Object> call : calls) {
+      Object result = call.get(5, TimeUnit.MINUTES);
+      if (!(result instanceof Map) || !Boolean.TRUE.equals(((Map<?, ?>) result).get("success"))) {
+        throw new IOException("Transfer failed: " + result);
+      }
+      results.add(result);
+    }
+    return results;
+  }
+
+  private Object count(Events events, int transfers, Object result) {
+    events.bytes += (long) fileSize * transfers;
+    long messages = harness.messages("progressBatch");
+    long updates = harness.progressUpdates();
+    events.progressMessages += messages - progressMessagesSeen;
+    events.progressUpdates += updates - progressUpdatesSeen;
+    progressMessagesSeen = messages;
+    progressUpdatesSeen = updates;
+    return result;
+  }
+}
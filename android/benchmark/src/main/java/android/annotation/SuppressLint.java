@@ -0,0 +1,6 @@
+package android.annotation;
+
+/** JVM stand-in; only present so the plugin sources compile. */
+public @interface SuppressLint {
+  String[] value();
+}
@@ -0,0 +1,7 @@
+package android.app;
+
+import android.content.Context;
+
+/** JVM stand-in. The harness never attaches an activity, so nothing of it is used. */
+public abstract class Activity extends Context {
+}
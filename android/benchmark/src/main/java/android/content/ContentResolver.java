@@ -0,0 +1,14 @@
+package android.content;
+
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import java.io.FileNotFoundException;
+
+/** JVM stand-in. Content URIs do not exist outside Android, so every open fails. */
+public class ContentResolver {
+
+  public ParcelFileDescriptor openFileDescriptor(Uri uri, String mode) throws FileNotFoundException {
+    throw new FileNotFoundException("Content URIs are not available on the JVM: " + uri);
+  }
+}
@@ -0,0 +1,32 @@
+package android.content;
+
+import java.io.File;
+
+/**
+ * JVM stand-in for the parts of {@code Context} the plugin uses. Subclasses decide where files
+ * go and which system services exist; the defaults have none.
+ */
+public abstract class Context {
+
+  public static final String CONNECTIVITY_SERVICE = "connectivity";
+
+  public abstract File getFilesDir();
+
+  public abstract File getCacheDir();
+
+  public Context getApplicationContext() {
+    return this;
+  }
+
+  public ContentResolver getContentResolver() {
+    return new ContentResolver();
+  }
+
+  public Object getSystemService(String name) {
+    return null;
+  }
+
+  public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter) {
+    return null;
+  }
+}
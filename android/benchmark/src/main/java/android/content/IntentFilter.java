@@ -0,0 +1,15 @@
+package android.content;
+
+/** JVM stand-in that only remembers its action. */
+public class IntentFilter {
+
+  private final String action;
+
+  public IntentFilter(String action) {
+    this.action = action;
+  }
+
+  public String getAction(int index) {
+    return action;
+  }
+}
@@ -0,0 +1,21 @@
+package android.net;
+
+/** JVM stand-in reporting a fixed network state. */
+public class ConnectivityManager {
+
+  private final boolean connected;
+  private final boolean metered;
+
+  public ConnectivityManager(boolean connected, boolean metered) {
+    this.connected = connected;
+    this.metered = metered;
+  }
+
+  public NetworkInfo getActiveNetworkInfo() {
+    return new NetworkInfo(connected);
+  }
+
+  public boolean isActiveNetworkMetered() {
+    return metered;
+  }
+}
@@ -0,0 +1,15 @@
+package android.net;
+
+/** JVM stand-in. */
+public class NetworkInfo {
+
+  private final boolean connected;
+
+  public NetworkInfo(boolean connected) {
+    this.connected = connected;
+  }
+
+  public boolean isConnected() {
+    return connected;
+  }
+}
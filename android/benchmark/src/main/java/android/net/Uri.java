@@ -0,0 +1,20 @@
+package android.net;
+
+/** JVM stand-in that keeps the string it was parsed from. */
+public class Uri {
+
+  private final String uri;
+
+  private Uri(String uri) {
+    this.uri = uri;
+  }
+
+  public static Uri parse(String uri) {
+    return new Uri(uri);
+  }
+
+  @Override
+  public String toString() {
+    return uri;
+  }
+}
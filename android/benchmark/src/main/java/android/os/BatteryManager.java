@@ -0,0 +1,8 @@
+package android.os;
+
+/** JVM stand-in with the constants of the real class that the plugin and harness use. */
+public class BatteryManager {
+
+  public static final String EXTRA_PLUGGED = "plugged";
+  public static final int BATTERY_PLUGGED_AC = 1;
+}
@@ -0,0 +1,25 @@
+package android.os;
+
+/** JVM stand-in that posts to the stand-in {@link Looper}. */
+public class Handler {
+
+  private final Looper looper;
+
+  public Handler(Looper looper) {
+    this.looper = looper;
+  }
+
+  public final boolean post(Runnable r) {
+    looper.enqueue(this, r, 0);
+    return true;
+  }
+
+  public final boolean postDelayed(Runnable r, long delayMillis) {
+    looper.enqueue(this, r, Math.max(0, delayMillis));
+    return true;
+  }
+
+  public final void removeCallbacks(Runnable r) {
+    looper.remove(this, r);
+  }
+}
@@ -0,0 +1,89 @@
+package android.os;
+
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * JVM stand-in for the main looper: one daemon thread that runs posted callbacks in order of
+ * their due time, like the UI thread the plugin posts its results and progress to.
+ */
+public class Looper {
+
+  private static final Looper MAIN = new Looper("main");
+
+  private final DelayQueue<Message> queue = new DelayQueue<>();
+  private final AtomicLong sequence = new AtomicLong();
+  private final Thread thread;
+
+  private Looper(String name) {
+    thread = new Thread(this::loop, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public static Looper getMainLooper() {
+    return MAIN;
+  }
+
+  public static Looper myLooper() {
+    return Thread.currentThread() == MAIN.thread ? MAIN : null;
+  }
+
+  public Thread getThread() {
+    return thread;
+  }
+
+  void enqueue(Handler handler, Runnable callback, long delayMillis) {
+    queue.add(new Message(handler, callback, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis),
+            sequence.getAndIncrement()));
+  }
+
+  void remove(Handler handler, Runnable callback) {
+    queue.removeIf(m -> m.handler == handler && m.callback == callback);
+  }
+
+  private void loop() {
+    while (true) {
+      Message message;
+      try {
+        message = queue.take();
+      } catch (InterruptedException e) {
+        return;
+      }
+      try {
+        message.callback.run();
+      } catch (RuntimeException e) {
+        // A crash on the real main thread ends the app; here it should at least be seen
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private static class Message implements Delayed {
+    final Handler handler;
+    final Runnable callback;
+    final long due;
+    final long sequence;
+
+    Message(Handler handler, Runnable callback, long due, long sequence) {
+      this.handler = handler;
+      this.callback = callback;
+      this.due = due;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed other) {
+      Message that = (Message) other;
+      int byDue = Long.compare(due, that.due);
+      return byDue != 0 ? byDue : Long.compare(sequence, that.sequence);
+    }
+  }
+}
@@ -0,0 +1,36 @@
+package android.os;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+
+/** JVM stand-in. The stand-in {@code ContentResolver} never opens one. */
+public class ParcelFileDescriptor implements Closeable {
+
+  private final FileDescriptor fd;
+
+  public ParcelFileDescriptor(FileDescriptor fd) {
+    this.fd = fd;
+  }
+
+  public FileDescriptor getFileDescriptor() {
+    return fd;
+  }
+
+  @Override
+  public void close() {
+  }
+
+  public static class AutoCloseInputStream extends FileInputStream {
+    public AutoCloseInputStream(ParcelFileDescriptor pfd) {
+      super(pfd.getFileDescriptor());
+    }
+  }
+
+  public static class AutoCloseOutputStream extends FileOutputStream {
+    public AutoCloseOutputStream(ParcelFileDescriptor pfd) {
+      super(pfd.getFileDescriptor());
+    }
+  }
+}
@@ -0,0 +1,11 @@
+package android.util;
+
+/** JVM stand-in backed by {@link java.util.Base64}. */
+public class Base64 {
+
+  public static final int DEFAULT = 0;
+
+  public static byte[] decode(String str, int flags) {
+    return java.util.Base64.getMimeDecoder().decode(str);
+  }
+}
@@ -0,0 +1,5 @@
+package androidx.annotation;
+
+/** JVM stand-in; only present so the plugin sources compile. */
+public @interface NonNull {
+}
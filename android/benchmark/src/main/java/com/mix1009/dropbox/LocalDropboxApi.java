@@ -0,0 +1,670 @@
+package com.mix1009.dropbox;
+
+import com.dropbox.core.v2.files.FileMetadata;
+import com.dropbox.core.v2.files.FolderMetadata;
+import com.dropbox.core.v2.files.Metadata;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+
+/**
+ * A local stand-in for the Dropbox API v2 endpoints behind the plugin's hot paths, so listing and
+ * transfers can be measured without an account or a network. It keeps a namespace in memory and
+ * speaks the same JSON and headers as the real API:
+ *
+ * <pre>
+ * /2/files/list_folder, /2/files/list_folder/continue, /2/files/get_metadata
+ * /2/files/upload, /2/files/upload_session/start, /append_v2, /finish
+ * /2/files/download, including Range requests
+ * </pre>
+ *
+ * Anything else is answered with 400, like an unknown endpoint.
+ *
+ * Latency, bandwidth, rate limiting and page size can be changed while it runs. Bandwidth is
+ * shared by all connections, one budget per direction, like a single link. Entries are
+ * serialized once when they are created, so the stand-in's own work stays small next to the
+ * plugin's when both run in one JVM.
+ */
+class LocalDropboxApi implements AutoCloseable {
+
+  /** Prefix of the server's thread names, so they can be told apart from the plugin's. */
+  static final String THREAD_PREFIX = "local-dropbox-api-";
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final JsonFactory JSON = new JsonFactory();
+  private static final int BLOCK_SIZE = 4 * 1024 * 1024;
+  private static final int IO_BUFFER = 64 * 1024;
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+
+  private final Object namespaceLock = new Object();
+  // Guarded by namespaceLock; sorted by lower-case path, so a folder's entries are adjacent
+  private final TreeMap<String, Node> namespace = new TreeMap<>();
+  // Guarded by namespaceLock; bumped by every change, and cursors older than a delete are reset
+  private long changes;
+  private long resetVersion;
+
+  private final Map<Long, Listing> cursors = new ConcurrentHashMap<>();
+  private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+  private final AtomicLong ids = new AtomicLong();
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong rateLimited = new AtomicLong();
+
+  private final Throttle upstream = new Throttle();
+  private final Throttle downstream = new Throttle();
+  private volatile long latencyMillis;
+  private volatile int pageSize = 2000;
+  private volatile int rateLimitEvery;
+  private volatile int retryAfterSeconds;
+
+  /**
+   * Starts the server on a free loopback port.
+   *
+   * @param threads How many requests are served at once. The pool is started right away, so it
+   *                does not add threads while a benchmark runs.
+   */
+  LocalDropboxApi(int threads) throws IOException {
+    AtomicInteger count = new AtomicInteger();
+    executor = Executors.newFixedThreadPool(threads, r -> {
+      Thread thread = new Thread(r, THREAD_PREFIX + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    for (int i = 0; i < threads; i++) {
+      executor.execute(() -> { });
+    }
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 256);
+    server.createContext("/", this::handle);
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  /** @return the port the server listens on. */
+  int port() {
+    return server.getAddress().getPort();
+  }
+
+  /**
+   * @return an OkHttp interceptor that sends the SDK's requests for any Dropbox host to this
+   * server, over plain HTTP.
+   */
+  Interceptor redirect() {
+    HttpUrl base = new HttpUrl.Builder().scheme("http").host("127.0.0.1").port(port()).build();
+    return chain -> {
+      HttpUrl url = chain.request().url().newBuilder()
+              .scheme(base.scheme())
+              .host(base.host())
+              .port(base.port())
+              .build();
+      return chain.proceed(chain.request().newBuilder().url(url).build());
+    };
+  }
+
+  /** Waits this long before answering each request, like a round trip to the real API. */
+  void setLatencyMillis(long latencyMillis) {
+    this.latencyMillis = Math.max(0, latencyMillis);
+  }
+
+  /** Caps uploads and downloads to this many bytes per second each; 0 removes the cap. */
+  void setBandwidth(long bytesPerSecond) {
+    upstream.setRate(bytesPerSecond);
+    downstream.setRate(bytesPerSecond);
+  }
+
+  /** The most entries a listing page holds, whatever limit the client asks for. */
+  void setPageSize(int pageSize) {
+    this.pageSize = Math.max(1, pageSize);
+  }
+
+  /**
+   * Answers every {@code every}th request with 429 {@code too_many_requests}; 0 turns it off.
+   *
+   * @param retryAfterSeconds The {@code retry_after} the client is asked to wait.
+   */
+  void setRateLimit(int every, int retryAfterSeconds) {
+    this.rateLimitEvery = Math.max(0, every);
+    this.retryAfterSeconds = Math.max(0, retryAfterSeconds);
+  }
+
+  /** @return how many requests were served, including rate limited ones. */
+  long requests() {
+    return requests.get();
+  }
+
+  /** @return how many requests were answered with 429. */
+  long rateLimited() {
+    return rateLimited.get();
+  }
+
+  /** Creates a folder and its parents. */
+  void addFolder(String path) {
+    synchronized (namespaceLock) {
+      String lower = path.toLowerCase(Locale.ROOT);
+      while (!lower.isEmpty() && !namespace.containsKey(lower)) {
+        Node node = new Node(FolderMetadata.newBuilder(name(path), "id:" + ids.incrementAndGet())
+                .withPathLower(lower)
+                .withPathDisplay(path)
+                .build(), null);
+        node.version = ++changes;
+        namespace.put(lower, node);
+        path = parent(path);
+        lower = parent(lower);
+      }
+    }
+  }
+
+  /** Creates or replaces a file, and the folders above it. */
+  FileMetadata addFile(String path, byte[] content) {
+    return (FileMetadata) putFile(path, content).metadata;
+  }
+
+  private Node putFile(String path, byte[] content) {
+    addFolder(parent(path));
+    Date now = new Date();
+    FileMetadata metadata = FileMetadata.newBuilder(name(path), "id:" + ids.incrementAndGet(), now, now,
+            String.format(Locale.ROOT, "%015x", ids.incrementAndGet()), content.length)
+            .withPathLower(path.toLowerCase(Locale.ROOT))
+            .withPathDisplay(path)
+            .withContentHash(contentHash(content))
+            .build();
+    Node node = new Node(metadata, content);
+    synchronized (namespaceLock) {
+      node.version = ++changes;
+      namespace.put(metadata.getPathLower(), node);
+    }
+    return node;
+  }
+
+  /** Fills a folder with {@code count} files of {@code size} random bytes each. */
+  void addFiles(String folder, int count, int size) {
+    Random random = new Random(folder.hashCode());
+    for (int i = 0; i < count; i++) {
+      byte[] content = new byte[size];
+      random.nextBytes(content);
+      addFile(String.format(Locale.ROOT, "%s/file-%06d.bin", folder, i), content);
+    }
+  }
+
+  /** Removes everything under a path, including the path itself. */
+  void delete(String path) {
+    String lower = path.toLowerCase(Locale.ROOT);
+    synchronized (namespaceLock) {
+      namespace.remove(lower);
+      namespace.subMap(lower + "/", lower + "0").clear();
+      resetVersion = ++changes;
+    }
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  /** The Dropbox {@code content_hash}: SHA-256 over the SHA-256 of every 4 MiB block. */
+  static String contentHash(byte[] content) {
+    try {
+      MessageDigest overall = MessageDigest.getInstance("SHA-256");
+      MessageDigest block = MessageDigest.getInstance("SHA-256");
+      for (int offset = 0; offset < content.length; offset += BLOCK_SIZE) {
+        block.update(content, offset, Math.min(BLOCK_SIZE, content.length - offset));
+        overall.update(block.digest());
+      }
+      StringBuilder hex = new StringBuilder();
+      for (byte b : overall.digest()) {
+        hex.append(String.format(Locale.ROOT, "%02x", b));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      long request = requests.incrementAndGet();
+      if (latencyMillis > 0) {
+        Thread.sleep(latencyMillis);
+      }
+      int every = rateLimitEvery;
+      if (every > 0 && request % every == 0) {
+        rateLimited.incrementAndGet();
+        drain(exchange.getRequestBody());
+        exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfterSeconds));
+        sendJson(exchange, 429, "{\"error_summary\": \"too_many_requests/\", \"error\": {\"reason\": "
+                + "{\".tag\": \"too_many_requests\"}, \"retry_after\": " + retryAfterSeconds + "}}");
+        return;
+      }
+      route(exchange);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (RuntimeException e) {
+      sendText(exchange, 500, String.valueOf(e));
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void route(HttpExchange exchange) throws IOException {
+    String path = exchange.getRequestURI().getPath();
+    switch (path) {
+      case "/2/files/list_folder":
+        listFolder(exchange, readJson(exchange.getRequestBody()));
+        break;
+      case "/2/files/list_folder/continue":
+        listFolderContinue(exchange, readJson(exchange.getRequestBody()));
+        break;
+      case "/2/files/get_metadata":
+        getMetadata(exchange, readJson(exchange.getRequestBody()));
+        break;
+      case "/2/files/upload":
+        upload(exchange, apiArg(exchange));
+        break;
+      case "/2/files/upload_session/start":
+        uploadSessionStart(exchange, apiArg(exchange));
+        break;
+      case "/2/files/upload_session/append_v2":
+        uploadSessionAppend(exchange, apiArg(exchange));
+        break;
+      case "/2/files/upload_session/finish":
+        uploadSessionFinish(exchange, apiArg(exchange));
+        break;
+      case "/2/files/download":
+        download(exchange, apiArg(exchange));
+        break;
+      default:
+        drain(exchange.getRequestBody());
+        sendText(exchange, 400, "Unknown API function: \"" + path + "\"");
+    }
+  }
+
+  private void listFolder(HttpExchange exchange, Map<String, Object> arg) throws IOException {
+    String lower = ((String) arg.get("path")).toLowerCase(Locale.ROOT);
+    boolean recursive = Boolean.TRUE.equals(arg.get("recursive"));
+    Number limit = (Number) arg.get("limit");
+    int size = limit != null ? Math.min(pageSize, limit.intValue()) : pageSize;
+
+    Listing listing;
+    synchronized (namespaceLock) {
+      if (!lower.isEmpty()) {
+        Node folder = namespace.get(lower);
+        if (folder == null || !(folder.metadata instanceof FolderMetadata)) {
+          sendJson(exchange, 409, pathError(folder == null ? "not_found" : "not_folder"));
+          return;
+        }
+      }
+      listing = snapshot(lower, recursive, -1, size);
+    }
+    sendPage(exchange, listing, 0);
+  }
+
+  private void listFolderContinue(HttpExchange exchange, Map<String, Object> arg) throws IOException {
+    String cursor = (String) arg.get("cursor");
+    Listing listing;
+    int from = 0;
+    if (cursor.startsWith("delta:")) {
+      // delta:<version>:<r|d>:<path> is handed out with a listing's last page
+      String[] parts = cursor.split(":", 4);
+      long since = Long.parseLong(parts[1]);
+      synchronized (namespaceLock) {
+        listing = since >= resetVersion ? snapshot(parts[3], parts[2].equals("r"), since, pageSize) : null;
+      }
+    } else {
+      // page:<id>:<position> points into a listing that has more pages
+      String[] parts = cursor.split(":", 3);
+      listing = cursors.get(Long.parseLong(parts[1]));
+      from = Integer.parseInt(parts[2]);
+    }
+    if (listing == null) {
+      sendJson(exchange, 409, "{\"error_summary\": \"reset/\", \"error\": {\".tag\": \"reset\"}}");
+      return;
+    }
+    sendPage(exchange, listing, from);
+  }
+
+  // Must be called while holding namespaceLock; takes the entries changed after a version
+  private Listing snapshot(String lower, boolean recursive, long since, int size) {
+    List<Node> entries = new ArrayList<>();
+    for (Node node : namespace.subMap(lower + "/", lower + "0").values()) {
+      if (node.version > since && (recursive || parent(node.metadata.getPathLower()).equals(lower))) {
+        entries.add(node);
+      }
+    }
+    return new Listing(ids.incrementAndGet(), lower, recursive, entries, size, changes);
+  }
+
+  // Pages of one listing share a snapshot, which is dropped with the last page
+  private void sendPage(HttpExchange exchange, Listing listing, int from) throws IOException {
+    List<Node> entries = listing.entries;
+    int to = Math.min(entries.size(), from + listing.pageSize);
+    boolean hasMore = to < entries.size();
+    String cursor;
+    if (hasMore) {
+      cursors.put(listing.id, listing);
+      cursor = "page:" + listing.id + ":" + to;
+    } else {
+      cursors.remove(listing.id);
+      cursor = "delta:" + listing.version + ":" + (listing.recursive ? "r" : "d") + ":" + listing.path;
+    }
+    StringBuilder body = new StringBuilder(64 + (to - from) * 320).append("{\"entries\": [");
+    for (int i = from; i < to; i++) {
+      if (i > from) body.append(", ");
+      body.append(entries.get(i).json);
+    }
+    body.append("], \"cursor\": \"").append(cursor).append("\", \"has_more\": ").append(hasMore).append('}');
+    sendJson(exchange, 200, body.toString());
+  }
+
+  private void getMetadata(HttpExchange exchange, Map<String, Object> arg) throws IOException {
+    Node node = lookup((String) arg.get("path"));
+    if (node == null) {
+      sendJson(exchange, 409, pathError("not_found"));
+      return;
+    }
+    sendJson(exchange, 200, node.json);
+  }
+
+  private void upload(HttpExchange exchange, Map<String, Object> arg) throws IOException {
+    byte[] content = readBody(exchange.getRequestBody());
+    sendJson(exchange, 200, putFile((String) arg.get("path"), content).json);
+  }
+
+  private void uploadSessionStart(HttpExchange exchange, Map<String, Object> arg) throws IOException {
+    byte[] content = readBody(exchange.getRequestBody());
+    String id = "session-" + ids.incrementAndGet();
+    Session session = new Session();
+    if (content.length > 0) {
+      session.chunks.put(0L, content);
+    }
+    sessions.put(id, session);
+    sendJson(exchange, 200, "{\"session_id\": \"" + id + "\"}");
+  }
+
+  @SuppressWarnings("unchecked")
+  private void uploadSessionAppend(HttpExchange exchange, Map<String, Object> arg) throws IOException {
+    Map<String, Object> cursor = (Map<String, Object>) arg.get("cursor");
+    byte[] content = readBody(exchange.getRequestBody());
+    Session session = sessions.get((String) cursor.get("session_id"));
+    if (session == null) {
+      sendJson(exchange, 409, lookupError("not_found"));
+      return;
+    }
+    synchronized (session) {
+      session.chunks.put(((Number) cursor.get("offset")).longValue(), content);
+    }
+    sendJson(exchange, 200, "null");
+  }
+
+  @SuppressWarnings("unchecked")
+  private void uploadSessionFinish(HttpExchange exchange, Map<String, Object> arg) throws IOException {
+    Map<String, Object> cursor = (Map<String, Object>) arg.get("cursor");
+    Map<String, Object> commit = (Map<String, Object>) arg.get("commit");
+    byte[] last = readBody(exchange.getRequestBody());
+    String id = (String) cursor.get("session_id");
+    long offset = ((Number) cursor.get("offset")).longValue();
+    Session session = sessions.get(id);
+    if (session == null) {
+      sendJson(exchange, 409, lookupError("not_found"));
+      return;
+    }
+
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    synchronized (session) {
+      if (last.length > 0) {
+        session.chunks.put(offset, last);
+      }
+      // Chunks of a concurrent session may arrive in any order, but must leave no gaps
+      for (Map.Entry<Long, byte[]> chunk : session.chunks.entrySet()) {
+        if (chunk.getKey() != content.size()) break;
+        content.write(chunk.getValue(), 0, chunk.getValue().length);
+      }
+    }
+    if (content.size() != offset + last.length) {
+      sendJson(exchange, 409, "{\"error_summary\": \"lookup_failed/incorrect_offset/\", \"error\": "
+              + "{\".tag\": \"lookup_failed\", \"lookup_failed\": {\".tag\": \"incorrect_offset\", "
+              + "\"correct_offset\": " + content.size() + "}}}");
+      return;
+    }
+    sessions.remove(id);
+    sendJson(exchange, 200, putFile((String) commit.get("path"), content.toByteArray()).json);
+  }
+
+  private void download(HttpExchange exchange, Map<String, Object> arg) throws IOException {
+    Node node = lookup((String) arg.get("path"));
+    if (node == null || node.content == null) {
+      sendJson(exchange, 409, pathError(node == null ? "not_found" : "not_file"));
+      return;
+    }
+
+    byte[] content = node.content;
+    long from = 0;
+    long to = content.length;
+    String range = exchange.getRequestHeaders().getFirst("Range");
+    if (range != null && range.startsWith("bytes=")) {
+      String[] bounds = range.substring("bytes=".length()).split("-", 2);
+      from = Long.parseLong(bounds[0]);
+      if (bounds.length > 1 && !bounds[1].isEmpty()) {
+        to = Math.min(to, Long.parseLong(bounds[1]) + 1);
+      }
+    }
+
+    exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+    exchange.getResponseHeaders().set("Dropbox-API-Result", node.json);
+    exchange.sendResponseHeaders(range != null ? 206 : 200, to > from ? to - from : -1);
+    try (OutputStream out = exchange.getResponseBody()) {
+      for (long at = from; at < to; at += IO_BUFFER) {
+        int length = (int) Math.min(IO_BUFFER, to - at);
+        downstream.acquire(length);
+        out.write(content, (int) at, length);
+      }
+    }
+  }
+
+  private Node lookup(String path) {
+    synchronized (namespaceLock) {
+      return namespace.get(path.toLowerCase(Locale.ROOT));
+    }
+  }
+
+  private Map<String, Object> apiArg(HttpExchange exchange) throws IOException {
+    String arg = exchange.getRequestHeaders().getFirst("Dropbox-API-Arg");
+    return arg != null ? parse(JSON.createParser(arg)) : new HashMap<String, Object>();
+  }
+
+  private byte[] readBody(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[IO_BUFFER];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      upstream.acquire(read);
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+
+  private static Map<String, Object> readJson(InputStream in) throws IOException {
+    return parse(JSON.createParser(in));
+  }
+
+  private static void drain(InputStream in) throws IOException {
+    byte[] buffer = new byte[IO_BUFFER];
+    while (in.read(buffer) != -1) {
+      // Read, so the client can finish sending before it gets the answer
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> parse(JsonParser parser) throws IOException {
+    try (JsonParser p = parser) {
+      Object value = value(p, p.nextToken());
+      return value instanceof Map ? (Map<String, Object>) value : new HashMap<String, Object>();
+    }
+  }
+
+  private static Object value(JsonParser p, JsonToken token) throws IOException {
+    if (token == null) return null;
+    switch (token) {
+      case START_OBJECT: {
+        Map<String, Object> object = new HashMap<>();
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+          String name = p.getCurrentName();
+          object.put(name, value(p, p.nextToken()));
+        }
+        return object;
+      }
+      case START_ARRAY: {
+        List<Object> array = new ArrayList<>();
+        for (JsonToken next = p.nextToken(); next != JsonToken.END_ARRAY; next = p.nextToken()) {
+          array.add(value(p, next));
+        }
+        return array;
+      }
+      case VALUE_STRING:
+        return p.getText();
+      case VALUE_NUMBER_INT:
+        return p.getLongValue();
+      case VALUE_NUMBER_FLOAT:
+        return p.getDoubleValue();
+      case VALUE_TRUE:
+        return true;
+      case VALUE_FALSE:
+        return false;
+      default:
+        return null;
+    }
+  }
+
+  private static String pathError(String reason) {
+    return "{\"error_summary\": \"path/" + reason + "/\", \"error\": {\".tag\": \"path\", \"path\": "
+            + "{\".tag\": \"" + reason + "\"}}}";
+  }
+
+  private static String lookupError(String reason) {
+    return "{\"error_summary\": \"lookup_failed/" + reason + "/\", \"error\": {\".tag\": \"lookup_failed\", "
+            + "\"lookup_failed\": {\".tag\": \"" + reason + "\"}}}";
+  }
+
+  private static void sendJson(HttpExchange exchange, int status, String body) throws IOException {
+    send(exchange, status, "application/json", body);
+  }
+
+  private static void sendText(HttpExchange exchange, int status, String body) throws IOException {
+    send(exchange, status, "text/plain; charset=utf-8", body);
+  }
+
+  private static void send(HttpExchange exchange, int status, String contentType, String body)
+          throws IOException {
+    byte[] bytes = body.getBytes(UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  private static String parent(String path) {
+    int slash = path.lastIndexOf('/');
+    return slash > 0 ? path.substring(0, slash) : "";
+  }
+
+  private static String name(String path) {
+    return path.substring(path.lastIndexOf('/') + 1);
+  }
+
+  /** An entry of the namespace with its wire format, and the bytes of a file. */
+  private static class Node {
+    final Metadata metadata;
+    final String json;
+    final byte[] content;
+    long version;  // Guarded by namespaceLock
+
+    Node(Metadata metadata, byte[] content) {
+      this.metadata = metadata;
+      this.json = metadata.toString();
+      this.content = content;
+    }
+  }
+
+  /** The entries of one listing, kept while it has pages left. */
+  private static class Listing {
+    final long id;
+    final String path;
+    final boolean recursive;
+    final List<Node> entries;
+    final int pageSize;
+    final long version;
+
+    Listing(long id, String path, boolean recursive, List<Node> entries, int pageSize, long version) {
+      this.id = id;
+      this.path = path;
+      this.recursive = recursive;
+      this.entries = entries;
+      this.pageSize = pageSize;
+      this.version = version;
+    }
+  }
+
+  /** The chunks of an upload session by offset. */
+  private static class Session {
+    final TreeMap<Long, byte[]> chunks = new TreeMap<>();
+  }
+
+  /** Spaces out bytes so that, over all callers together, no more than the rate goes through. */
+  private static class Throttle {
+    private long bytesPerSecond;
+    private long nextNanos;
+
+    synchronized void setRate(long bytesPerSecond) {
+      this.bytesPerSecond = Math.max(0, bytesPerSecond);
+      nextNanos = System.nanoTime();
+    }
+
+    void acquire(int bytes) {
+      long waitNanos;
+      synchronized (this) {
+        if (bytesPerSecond == 0) return;
+        long now = System.nanoTime();
+        nextNanos = Math.max(nextNanos, now);
+        waitNanos = nextNanos - now;
+        nextNanos += TimeUnit.SECONDS.toNanos(bytes) / bytesPerSecond;
+      }
+      if (waitNanos > 0) {
+        try {
+          TimeUnit.NANOSECONDS.sleep(waitNanos);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,211 @@
+package com.mix1009.dropbox;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.flutter.embedding.engine.plugins.FlutterPlugin;
+import io.flutter.plugin.common.BinaryMessenger;
+import io.flutter.plugin.common.MethodCall;
+import io.flutter.plugin.common.MethodChannel;
+
+/**
+ * Runs the plugin on the JVM against a {@link LocalDropboxApi} and plays its Dart side: method
+ * calls are posted to the main looper and their results awaited, and the messages the plugin
+ * sends back are counted per method.
+ *
+ * The plugin keeps its state in static fields, so there can only be one harness per JVM; JMH
+ * forks a JVM for every benchmark, which is what makes this work.
+ */
+class PluginHarness implements AutoCloseable {
+
+  private static final long CALL_TIMEOUT_SECONDS = 300;
+
+  private final LocalDropboxApi api;
+  private final File dir;
+  private final DropboxPlugin plugin = new DropboxPlugin();
+  private final FlutterPlugin.FlutterPluginBinding binding;
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final AtomicInteger keys = new AtomicInteger();
+  private final Map<String, AtomicLong> messages = new ConcurrentHashMap<>();
+  private final AtomicLong progressUpdates = new AtomicLong();
+
+  /**
+   * Attaches the plugin, points its HTTP client at the stand-in and authorizes it.
+   *
+   * @param init Extra {@code init} arguments, e.g. concurrency or chunk sizes; may be empty.
+   */
+  PluginHarness(LocalDropboxApi api, Map<String, Object> init) throws Exception {
+    this.api = api;
+    this.dir = Files.createTempDirectory("dropbox-benchmark").toFile();
+    binding = new FlutterPlugin.FlutterPluginBinding(new JvmContext(dir), new DartSide());
+    plugin.onAttachedToEngine(binding);
+    DropboxPlugin.http.setInterceptor(api.redirect());
+
+    Map<String, Object> args = new HashMap<>(init);
+    args.put("clientId", "dropbox-benchmark");
+    args.put("key", "benchmark");
+    args.put("secret", "benchmark");
+    expectSuccess("init", call("init", args));
+    expectSuccess("authorizeWithAccessToken", call("authorizeWithAccessToken",
+            Collections.singletonMap("accessToken", (Object) "benchmark-token")));
+  }
+
+  LocalDropboxApi api() {
+    return api;
+  }
+
+  /** A scratch directory for local files, deleted with the harness. */
+  File dir() {
+    return dir;
+  }
+
+  /** A fresh transfer key, like {@code Dropbox.newTransferKey()}. */
+  int newKey() {
+    return keys.incrementAndGet();
+  }
+
+  /** Calls a method on the main thread, like the Dart side does, and waits for its result. */
+  Object call(String method, Map<String, Object> args) throws Exception {
+    CompletableFuture<Object> future = callAsync(method, args);
+    try {
+      return future.get(CALL_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (ExecutionException e) {
+      throw (Exception) e.getCause();
+    } catch (TimeoutException e) {
+      throw new TimeoutException(method + " did not answer within " + CALL_TIMEOUT_SECONDS + "s");
+    }
+  }
+
+  /** Calls a method on the main thread; the future completes with its result. */
+  CompletableFuture<Object> callAsync(String method, Map<String, Object> args) {
+    CompletableFuture<Object> future = new CompletableFuture<>();
+    MethodCall call = new MethodCall(method, args);
+    mainHandler.post(() -> plugin.onMethodCall(call, new MethodChannel.Result() {
+      @Override
+      public void success(Object result) {
+        future.complete(result);
+      }
+
+      @Override
+      public void error(String errorCode, String errorMessage, Object errorDetails) {
+        future.completeExceptionally(new IllegalStateException(method + " failed: " + errorCode
+                + " " + errorMessage));
+      }
+
+      @Override
+      public void notImplemented() {
+        future.completeExceptionally(new UnsupportedOperationException(method));
+      }
+    }));
+    return future;
+  }
+
+  /** Calls a method and fails unless its result map reports success. */
+  @SuppressWarnings("unchecked")
+  Map<String, Object> callOk(String method, Map<String, Object> args) throws Exception {
+    Object result = call(method, args);
+    expectSuccess(method, result);
+    return (Map<String, Object>) result;
+  }
+
+  /** @return how many messages the plugin sent to Dart with this method name. */
+  long messages(String method) {
+    AtomicLong count = messages.get(method);
+    return count != null ? count.get() : 0;
+  }
+
+  /** @return how many per-key updates the {@code progressBatch} messages carried. */
+  long progressUpdates() {
+    return progressUpdates.get();
+  }
+
+  @Override
+  public void close() throws IOException {
+    plugin.onDetachedFromEngine(binding);
+    delete(dir);
+  }
+
+  private static void expectSuccess(String method, Object result) {
+    if (!(result instanceof Map) || !Boolean.TRUE.equals(((Map<?, ?>) result).get("success"))) {
+      throw new IllegalStateException(method + " failed: " + result);
+    }
+  }
+
+  private static void delete(File file) throws IOException {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    Files.deleteIfExists(file.toPath());
+  }
+
+  /** Receives what the plugin sends to Dart and answers like a listening app would. */
+  private class DartSide implements BinaryMessenger {
+    @Override
+    public void invoke(String channel, String method, Object arguments, MethodChannel.Result reply) {
+      messages.computeIfAbsent(method, m -> new AtomicLong()).incrementAndGet();
+      if (method.equals("progressBatch")) {
+        progressUpdates.addAndGet(((long[]) arguments).length / 3);
+      }
+      if (reply != null) {
+        reply.success(null);
+      }
+    }
+  }
+
+  /** An application context with its own files and cache folders, on Wi-Fi and charging. */
+  private static class JvmContext extends Context {
+    private final File filesDir;
+    private final File cacheDir;
+
+    JvmContext(File dir) {
+      filesDir = new File(dir, "files");
+      cacheDir = new File(dir, "cache");
+      filesDir.mkdirs();
+      cacheDir.mkdirs();
+    }
+
+    @Override
+    public File getFilesDir() {
+      return filesDir;
+    }
+
+    @Override
+    public File getCacheDir() {
+      return cacheDir;
+    }
+
+    @Override
+    public Object getSystemService(String name) {
+      return CONNECTIVITY_SERVICE.equals(name) ? new ConnectivityManager(true, false) : null;
+    }
+
+    @Override
+    public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter) {
+      return new Intent(Intent.ACTION_BATTERY_CHANGED)
+              .putExtra(BatteryManager.EXTRA_PLUGGED, BatteryManager.BATTERY_PLUGGED_AC);
+    }
+  }
+}
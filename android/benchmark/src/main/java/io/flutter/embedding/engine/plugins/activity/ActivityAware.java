@@ -0,0 +1,13 @@
+package io.flutter.embedding.engine.plugins.activity;
+
+/** JVM stand-in. */
+public interface ActivityAware {
+
+  void onAttachedToActivity(ActivityPluginBinding binding);
+
+  void onDetachedFromActivityForConfigChanges();
+
+  void onReattachedToActivityForConfigChanges(ActivityPluginBinding binding);
+
+  void onDetachedFromActivity();
+}
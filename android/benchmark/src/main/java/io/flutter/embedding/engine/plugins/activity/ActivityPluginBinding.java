@@ -0,0 +1,9 @@
+package io.flutter.embedding.engine.plugins.activity;
+
+import android.app.Activity;
+
+/** JVM stand-in. */
+public interface ActivityPluginBinding {
+
+  Activity getActivity();
+}
@@ -0,0 +1,15 @@
+package io.flutter.plugin.common;
+
+/**
+ * JVM stand-in for the engine's messenger. Instead of encoding messages for Dart it hands the
+ * method calls the plugin makes on a {@link MethodChannel} to whoever plays the Dart side.
+ */
+public interface BinaryMessenger {
+
+  /**
+   * Receives a call the plugin made with {@link MethodChannel#invokeMethod}.
+   *
+   * @param reply Null when the plugin does not wait for an answer.
+   */
+  void invoke(String channel, String method, Object arguments, MethodChannel.Result reply);
+}
@@ -0,0 +1,27 @@
+package io.flutter.plugin.common;
+
+import java.util.Map;
+
+/** JVM stand-in for a call from Dart; arguments are a map, as the Dart side always sends them. */
+public final class MethodCall {
+
+  public final String method;
+  public final Object arguments;
+
+  public MethodCall(String method, Object arguments) {
+    this.method = method;
+    this.arguments = arguments;
+  }
+
+  @SuppressWarnings("unchecked")
+  public <T> T argument(String key) {
+    if (arguments == null) {
+      return null;
+    }
+    return (T) ((Map<?, ?>) arguments).get(key);
+  }
+
+  public boolean hasArgument(String key) {
+    return arguments != null && ((Map<?, ?>) arguments).containsKey(key);
+  }
+}
@@ -0,0 +1,43 @@
+package io.flutter.plugin.common;
+
+/** JVM stand-in that passes outgoing calls straight to the {@link BinaryMessenger}. */
+public class MethodChannel {
+
+  private final BinaryMessenger messenger;
+  private final String name;
+  private volatile MethodCallHandler handler;
+
+  public MethodChannel(BinaryMessenger messenger, String name) {
+    this.messenger = messenger;
+    this.name = name;
+  }
+
+  public void setMethodCallHandler(MethodCallHandler handler) {
+    this.handler = handler;
+  }
+
+  /** @return the handler the plugin registered, which is how the Dart side of a harness calls it. */
+  public MethodCallHandler getMethodCallHandler() {
+    return handler;
+  }
+
+  public void invokeMethod(String method, Object arguments) {
+    invokeMethod(method, arguments, null);
+  }
+
+  public void invokeMethod(String method, Object arguments, Result callback) {
+    messenger.invoke(name, method, arguments, callback);
+  }
+
+  public interface MethodCallHandler {
+    void onMethodCall(MethodCall call, Result result);
+  }
+
+  public interface Result {
+    void success(Object result);
+
+    void error(String errorCode, String errorMessage, Object errorDetails);
+
+    void notImplemented();
+  }
+}
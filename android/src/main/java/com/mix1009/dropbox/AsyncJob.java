@@ -0,0 +1,107 @@
+package com.mix1009.dropbox;
+
+import com.dropbox.core.DbxException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Waits for a Dropbox async job (batch commits, copies, moves and deletes) by polling its
+ * {@code *_check} endpoint, starting fast and backing off while the job is still running.
+ *
+ * No worker is held between two polls: every poll is a {@link TransferScheduler.Kind#METADATA}
+ * task of its own, queued once its delay is over, so long jobs do not starve other calls.
+ */
+class AsyncJob {
+
+  private static final long POLL_INITIAL_MILLIS = 250;
+  private static final long POLL_MAX_MILLIS = 2000;
+
+  interface Check<T> {
+    /** @return the job's result, or null while it is still in progress. */
+    T poll() throws DbxException;
+  }
+
+  /** Receives the outcome of a job, on the worker that ran the last poll. */
+  interface Callback<T> {
+    void done(T result);
+
+    /** @param e A {@link DbxException} or an {@link IOException}. */
+    void failed(Exception e);
+  }
+
+  /** Something that reports to a callback when it is done, like {@link #poll}. */
+  interface Start<T> {
+    void start(Callback<T> callback);
+  }
+
+  private AsyncJob() {
+  }
+
+  /**
+   * Polls until the job is done; every poll is retried on its own by the {@link RetryPolicy}.
+   * The polls belong to the caller's operation, like tasks it submits.
+   */
+  static <T> void poll(TransferScheduler scheduler, Check<T> check, Callback<T> callback) {
+    schedulePoll(scheduler, check, callback, POLL_INITIAL_MILLIS);
+  }
+
+  /**
+   * Polls like {@link #poll} and blocks the caller until the job is done; for callers that run
+   * on a transfer worker and have nothing else to do in the meantime.
+   */
+  static <T> T await(TransferScheduler scheduler, Check<T> check) throws DbxException, IOException {
+    return await(callback -> poll(scheduler, check, callback));
+  }
+
+  /** Starts something that reports to a callback and blocks the caller until it has. */
+  static <T> T await(Start<T> operation) throws DbxException, IOException {
+    CountDownLatch finished = new CountDownLatch(1);
+    AtomicReference<T> result = new AtomicReference<>();
+    AtomicReference<Exception> failure = new AtomicReference<>();
+    operation.start(new Callback<T>() {
+      @Override
+      public void done(T value) {
+        result.set(value);
+        finished.countDown();
+      }
+
+      @Override
+      public void failed(Exception e) {
+        failure.set(e);
+        finished.countDown();
+      }
+    });
+
+    try {
+      finished.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for an async job");
+    }
+    Exception e = failure.get();
+    if (e instanceof DbxException) throw (DbxException) e;
+    if (e instanceof IOException) throw (IOException) e;
+    return result.get();
+  }
+
+  private static <T> void schedulePoll(TransferScheduler scheduler, Check<T> check, Callback<T> callback,
+                                       long delay) {
+    scheduler.submitLater(TransferScheduler.Kind.METADATA, delay, () -> {
+      T done;
+      try {
+        done = DropboxPlugin.retryPolicy.call(check::poll);
+      } catch (DbxException | IOException e) {
+        callback.failed(e);
+        return;
+      }
+      if (done != null) {
+        callback.done(done);
+      } else {
+        schedulePoll(scheduler, check, callback, Math.min(POLL_MAX_MILLIS, delay * 2));
+      }
+    });
+  }
+}
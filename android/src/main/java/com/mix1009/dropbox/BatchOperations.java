@@ -0,0 +1,287 @@
+package com.mix1009.dropbox;
+
+import com.dropbox.core.DbxException;
+import com.dropbox.core.v2.DbxClientV2;
+import com.dropbox.core.v2.files.DeleteArg;
+import com.dropbox.core.v2.files.DeleteBatchJobStatus;
+import com.dropbox.core.v2.files.DeleteBatchLaunch;
+import com.dropbox.core.v2.files.DeleteBatchResultEntry;
+import com.dropbox.core.v2.files.Metadata;
+import com.dropbox.core.v2.files.RelocationBatchResultEntry;
+import com.dropbox.core.v2.files.RelocationBatchV2JobStatus;
+import com.dropbox.core.v2.files.RelocationBatchV2Launch;
+import com.dropbox.core.v2.files.RelocationPath;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Copies, moves and deletes many paths with the {@code copy_batch_v2}, {@code move_batch_v2}
+ * and {@code delete_batch} endpoints. Entries are sent in groups of up to 1000, each group is
+ * one server-side {@link AsyncJob}, and every entry gets its own result.
+ *
+ * Groups run one after the other. A launch runs on the calling worker; while Dropbox works on a
+ * job no worker is held, and the next group is launched by the poll that saw the job finish.
+ */
+class BatchOperations {
+
+  /** Dropbox accepts at most this many entries in one batch call. */
+  static final int MAX_BATCH_ENTRIES = 1000;
+
+  private final DbxClientV2 client;
+  private final TransferScheduler scheduler;
+
+  /**
+   * @param client    The authenticated Dropbox client.
+   * @param scheduler The scheduler that runs the job polls.
+   */
+  BatchOperations(DbxClientV2 client, TransferScheduler scheduler) {
+    this.client = client;
+    this.scheduler = scheduler;
+  }
+
+  /**
+   * Copies every {@code fromPaths[i]} to {@code toPaths[i]}. The callback gets one result per
+   * entry; it only fails when the operation was interrupted.
+   */
+  void copy(List<String> fromPaths, List<String> toPaths, boolean autorename,
+            AsyncJob.Callback<List<Map<String, Object>>> callback) {
+    run(relocations(fromPaths, toPaths, autorename, false), 0, new ArrayList<>(fromPaths.size()), callback);
+  }
+
+  /** Moves every {@code fromPaths[i]} to {@code toPaths[i]}, reporting like {@link #copy}. */
+  void move(List<String> fromPaths, List<String> toPaths, boolean autorename,
+            AsyncJob.Callback<List<Map<String, Object>>> callback) {
+    run(relocations(fromPaths, toPaths, autorename, true), 0, new ArrayList<>(fromPaths.size()), callback);
+  }
+
+  /** Deletes every path, folders with their contents, reporting like {@link #copy}. */
+  void delete(List<String> paths, AsyncJob.Callback<List<Map<String, Object>>> callback) {
+    DateFormat df = DropboxPlugin.ListFolderTask.newDateFormat();
+    List<Group<?>> groups = new ArrayList<>();
+    for (int start = 0; start < paths.size(); start += MAX_BATCH_ENTRIES) {
+      groups.add(new DeleteGroup(paths.subList(start, Math.min(paths.size(), start + MAX_BATCH_ENTRIES)), df));
+    }
+    run(groups, 0, new ArrayList<>(paths.size()), callback);
+  }
+
+  /** Like {@link #delete}, but blocks the caller, which has to be a transfer worker. */
+  List<Map<String, Object>> deleteAndWait(List<String> paths) throws InterruptedIOException {
+    try {
+      return AsyncJob.await(callback -> delete(paths, callback));
+    } catch (InterruptedIOException e) {
+      throw e;
+    } catch (DbxException | IOException e) {
+      // Not reached: the groups report their own failures
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private List<Group<?>> relocations(List<String> fromPaths, List<String> toPaths, boolean autorename,
+                                     boolean move) {
+    DateFormat df = DropboxPlugin.ListFolderTask.newDateFormat();
+    List<Group<?>> groups = new ArrayList<>();
+    for (int start = 0; start < fromPaths.size(); start += MAX_BATCH_ENTRIES) {
+      int end = Math.min(fromPaths.size(), start + MAX_BATCH_ENTRIES);
+      List<RelocationPath> paths = new ArrayList<>(end - start);
+      for (int i = start; i < end; i++) {
+        paths.add(new RelocationPath(fromPaths.get(i), toPaths.get(i)));
+      }
+      groups.add(new RelocationGroup(paths, autorename, move, df));
+    }
+    return groups;
+  }
+
+  // Launches the groups from index on; returns once a group has to be polled, whose last poll
+  // carries on with the next group
+  private void run(List<Group<?>> groups, int index, List<Map<String, Object>> results,
+                   AsyncJob.Callback<List<Map<String, Object>>> callback) {
+    while (index < groups.size()) {
+      Group<?> group = groups.get(index++);
+      try {
+        group.launch();
+      } catch (InterruptedIOException e) {
+        callback.failed(e);
+        return;
+      } catch (DbxException | IOException e) {
+        e.printStackTrace();
+        DropboxPlugin.metrics.failed(e);
+        group.report(null, e.getMessage(), results);
+        continue;
+      }
+      if (group.job != null) {
+        poll(group, groups, index, results, callback);
+        return;
+      }
+      group.reportOutcomes(results);
+    }
+    callback.done(results);
+  }
+
+  private <O> void poll(Group<O> group, List<Group<?>> groups, int next, List<Map<String, Object>> results,
+                        AsyncJob.Callback<List<Map<String, Object>>> callback) {
+    AsyncJob.poll(scheduler, group.job, new AsyncJob.Callback<List<O>>() {
+      @Override
+      public void done(List<O> outcomes) {
+        group.report(outcomes, "no result", results);
+        run(groups, next, results, callback);
+      }
+
+      @Override
+      public void failed(Exception e) {
+        if (e instanceof InterruptedIOException) {
+          callback.failed(e);
+          return;
+        }
+        e.printStackTrace();
+        DropboxPlugin.metrics.failed(e);
+        group.report(null, e.getMessage(), results);
+        run(groups, next, results, callback);
+      }
+    });
+  }
+
+  // One batch call's worth of entries
+  private abstract static class Group<O> {
+    List<O> outcomes;               // Set by launch() when Dropbox finished right away
+    AsyncJob.Check<List<O>> job;    // Otherwise set to poll the job it started
+
+    abstract void launch() throws DbxException, IOException;
+
+    /** Adds one result per entry; outcomes is null when the whole group failed with error. */
+    abstract void report(List<O> outcomes, String error, List<Map<String, Object>> results);
+
+    void reportOutcomes(List<Map<String, Object>> results) {
+      report(outcomes, "no result", results);
+    }
+  }
+
+  private class DeleteGroup extends Group<DeleteBatchResultEntry> {
+    private final List<String> paths;
+    private final DateFormat df;
+
+    DeleteGroup(List<String> paths, DateFormat df) {
+      this.paths = paths;
+      this.df = df;
+    }
+
+    @Override
+    void launch() throws DbxException, IOException {
+      List<DeleteArg> args = new ArrayList<>(paths.size());
+      for (String path : paths) {
+        args.add(new DeleteArg(path));
+      }
+      DeleteBatchLaunch launch = DropboxPlugin.retryPolicy.callOnce(() -> client.files().deleteBatch(args));
+      if (launch.isComplete()) {
+        outcomes = launch.getCompleteValue().getEntries();
+      } else if (launch.isAsyncJobId()) {
+        String jobId = launch.getAsyncJobIdValue();
+        job = () -> {
+          DeleteBatchJobStatus status = client.files().deleteBatchCheck(jobId);
+          if (status.isFailed()) {
+            throw new BatchFailedException(status.getFailedValue().toString());
+          }
+          return status.isComplete() ? status.getCompleteValue().getEntries() : null;
+        };
+      } else {
+        throw new IOException("Unexpected delete_batch response: " + launch);
+      }
+    }
+
+    @Override
+    void report(List<DeleteBatchResultEntry> outcomes, String error, List<Map<String, Object>> results) {
+      for (int i = 0; i < paths.size(); i++) {
+        Map<String, Object> entry = new HashMap<>();
+        entry.put("path", paths.get(i));
+        DeleteBatchResultEntry outcome = outcomes != null && i < outcomes.size() ? outcomes.get(i) : null;
+        if (outcome != null && outcome.isSuccess()) {
+          Metadata metadata = outcome.getSuccessValue().getMetadata();
+          DropboxPlugin.metadataCache.invalidate(paths.get(i));
+          entry.put("success", true);
+          entry.put("message", "Deleted.");
+          entry.put("metadata", DropboxPlugin.ListFolderTask.toMap(metadata, df));
+        } else {
+          entry.put("success", false);
+          entry.put("message", "Delete failed: " + (outcome != null && outcome.isFailure() ? outcome.getFailureValue() : error));
+        }
+        results.add(entry);
+      }
+    }
+  }
+
+  private class RelocationGroup extends Group<RelocationBatchResultEntry> {
+    private final List<RelocationPath> paths;
+    private final boolean autorename;
+    private final boolean move;
+    private final DateFormat df;
+
+    RelocationGroup(List<RelocationPath> paths, boolean autorename, boolean move, DateFormat df) {
+      this.paths = paths;
+      this.autorename = autorename;
+      this.move = move;
+      this.df = df;
+    }
+
+    @Override
+    void launch() throws DbxException, IOException {
+      RelocationBatchV2Launch launch = DropboxPlugin.retryPolicy.callOnce(() -> move
+              ? client.files().moveBatchV2Builder(paths).withAutorename(autorename).start()
+              : client.files().copyBatchV2(paths, autorename));
+      if (launch.isComplete()) {
+        outcomes = launch.getCompleteValue().getEntries();
+      } else if (launch.isAsyncJobId()) {
+        String jobId = launch.getAsyncJobIdValue();
+        job = () -> {
+          RelocationBatchV2JobStatus status = move
+                  ? client.files().moveBatchCheckV2(jobId)
+                  : client.files().copyBatchCheckV2(jobId);
+          return status.isComplete() ? status.getCompleteValue().getEntries() : null;
+        };
+      } else {
+        throw new IOException("Unexpected batch response: " + launch);
+      }
+    }
+
+    @Override
+    void report(List<RelocationBatchResultEntry> outcomes, String error, List<Map<String, Object>> results) {
+      String verb = move ? "Move" : "Copy";
+      for (int i = 0; i < paths.size(); i++) {
+        RelocationPath path = paths.get(i);
+        Map<String, Object> entry = new HashMap<>();
+        entry.put("fromPath", path.getFromPath());
+        entry.put("toPath", path.getToPath());
+        RelocationBatchResultEntry outcome = outcomes != null && i < outcomes.size() ? outcomes.get(i) : null;
+        if (outcome != null && outcome.isSuccess()) {
+          Metadata metadata = outcome.getSuccessValue();
+          if (move) {
+            DropboxPlugin.metadataCache.invalidate(path.getFromPath());
+          }
+          // Drops the destination folder's listing, which does not know the new entry yet
+          DropboxPlugin.metadataCache.invalidate(path.getToPath());
+          DropboxPlugin.metadataCache.put(metadata);
+          entry.put("success", true);
+          entry.put("message", verb + " completed.");
+          entry.put("metadata", DropboxPlugin.ListFolderTask.toMap(metadata, df));
+        } else {
+          entry.put("success", false);
+          entry.put("message", verb + " failed: " + (outcome != null && outcome.isFailure() ? outcome.getFailureValue() : error));
+        }
+        results.add(entry);
+      }
+    }
+  }
+
+  /** A delete job that failed as a whole, e.g. because too many writes were in flight. */
+  private static class BatchFailedException extends DbxException {
+    private static final long serialVersionUID = 0L;
+
+    BatchFailedException(String message) {
+      super(message);
+    }
+  }
+}
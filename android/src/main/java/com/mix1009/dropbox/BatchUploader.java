@@ -0,0 +1,246 @@
+package com.mix1009.dropbox;
+
+import com.dropbox.core.DbxException;
+import com.dropbox.core.util.IOUtil;
+import com.dropbox.core.v2.DbxClientV2;
+import com.dropbox.core.v2.files.CommitInfo;
+import com.dropbox.core.v2.files.FileMetadata;
+import com.dropbox.core.v2.files.UploadSessionFinishArg;
+import com.dropbox.core.v2.files.UploadSessionFinishBatchJobStatus;
+import com.dropbox.core.v2.files.UploadSessionFinishBatchLaunch;
+import com.dropbox.core.v2.files.UploadSessionFinishBatchResultEntry;
+import com.dropbox.core.v2.files.UploadSessionCursor;
+import com.dropbox.core.v2.files.WriteMode;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Uploads many files with one commit per batch instead of one per file.
+ *
+ * Every file is uploaded into its own closed upload session, small files in parallel on
+ * {@link TransferScheduler.Kind#PART} slots and large files one after the other through
+ * {@link ChunkedUploader} (whose chunks already use those slots). The sessions are then
+ * committed with {@code upload_session/finish_batch} in groups of up to 1000, and the
+ * {@link AsyncJob} is polled until Dropbox reports the outcome of every entry.
+ */
+class BatchUploader {
+
+  /** Dropbox commits at most this many sessions in one {@code finish_batch} call. */
+  static final int MAX_BATCH_ENTRIES = 1000;
+
+  private final DbxClientV2 client;
+  private final TransferScheduler scheduler;
+  private final long chunkedUploadThreshold;
+  private final long chunkSize;
+
+  /**
+   * @param client                 The authenticated Dropbox client.
+   * @param scheduler              The scheduler that runs the session uploads.
+   * @param chunkedUploadThreshold Files of at least this size are uploaded in chunks.
+   * @param chunkSize              The chunk size for those files.
+   */
+  BatchUploader(DbxClientV2 client, TransferScheduler scheduler, long chunkedUploadThreshold, long chunkSize) {
+    this.client = client;
+    this.scheduler = scheduler;
+    this.chunkedUploadThreshold = chunkedUploadThreshold;
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * Uploads and commits a list of files. Blocks until every file has an outcome; a file that
+   * fails does not fail the others.
+   *
+   * @param localPaths  The local files to upload.
+   * @param remotePaths Where to commit each file, in the same order.
+   * @param listener    Receives the total number of bytes uploaded so far, over all files.
+   * @return one result map per file, in the order of the input.
+   */
+  List<Map<String, Object>> upload(List<String> localPaths, List<String> remotePaths,
+                                   IOUtil.ProgressListener listener) throws InterruptedIOException {
+    List<Item> items = new ArrayList<>(localPaths.size());
+    for (int i = 0; i < localPaths.size(); i++) {
+      items.add(new Item(localPaths.get(i), remotePaths.get(i)));
+    }
+
+    AtomicLong uploaded = new AtomicLong();
+    uploadSessions(items, uploaded, listener);
+
+    // Commit whatever made it into a closed session
+    List<Item> ready = new ArrayList<>();
+    for (Item item : items) {
+      if (item.sessionId != null) {
+        ready.add(item);
+      }
+    }
+    for (int start = 0; start < ready.size(); start += MAX_BATCH_ENTRIES) {
+      commit(ready.subList(start, Math.min(ready.size(), start + MAX_BATCH_ENTRIES)));
+    }
+
+    List<Map<String, Object>> results = new ArrayList<>(items.size());
+    for (Item item : items) {
+      results.add(item.toMap());
+    }
+    return results;
+  }
+
+  private void uploadSessions(List<Item> items, AtomicLong uploaded, IOUtil.ProgressListener listener)
+          throws InterruptedIOException {
+    List<TransferScheduler.Part> parts = new ArrayList<>();
+    List<Item> large = new ArrayList<>();
+    for (Item item : items) {
+      if (item.size >= chunkedUploadThreshold) {
+        large.add(item);
+      } else {
+        // Each part records its own failure, so one bad file never cancels the rest
+        parts.add(() -> uploadSmall(item, uploaded, listener));
+      }
+    }
+
+    try {
+      scheduler.runAll(TransferScheduler.Kind.PART, parts);
+    } catch (InterruptedIOException e) {
+      throw e;
+    } catch (DbxException | IOException e) {
+      // Not reached: the parts catch their own errors
+      e.printStackTrace();
+    }
+    // Parts of a paused or cancelled batch fail on their own; that must not reach the commit
+    DropboxPlugin.transfers.checkStopped();
+
+    // Large files fan out into PART chunks themselves, so they must not run as parts
+    ChunkedUploader chunked = new ChunkedUploader(client, scheduler, chunkSize);
+    for (Item item : large) {
+      long base = uploaded.get();
+      try {
+        item.sessionId = chunked.uploadToSession(item.file, bytes -> listener.onProgress(base + bytes));
+        uploaded.addAndGet(item.size);
+      } catch (InterruptedIOException e) {
+        throw e;
+      } catch (DbxException | IOException e) {
+        e.printStackTrace();
+        DropboxPlugin.metrics.failed(e);
+        uploaded.set(base);
+        item.error = "Upload failed: " + e.getMessage();
+      }
+    }
+  }
+
+  private void uploadSmall(Item item, AtomicLong uploaded, IOUtil.ProgressListener listener) {
+    long[] sent = new long[1];
+    try {
+      // One request uploads the whole file and closes the session; a retry reads it again
+      item.sessionId = DropboxPlugin.retryPolicy.call(() -> {
+        listener.onProgress(uploaded.addAndGet(-sent[0]));
+        sent[0] = 0;
+        try (InputStream in = new FileInputStream(item.file)) {
+          return client.files().uploadSessionStartBuilder()
+                  .withClose(true)
+                  .start()
+                  .uploadAndFinish(in, item.size, bytes -> {
+                    listener.onProgress(uploaded.addAndGet(bytes - sent[0]));
+                    sent[0] = bytes;
+                  })
+                  .getSessionId();
+        }
+      });
+    } catch (DbxException | IOException e) {
+      e.printStackTrace();
+      DropboxPlugin.metrics.failed(e);
+      listener.onProgress(uploaded.addAndGet(-sent[0]));
+      item.error = "Upload failed: " + e.getMessage();
+    }
+  }
+
+  private void commit(List<Item> batch) throws InterruptedIOException {
+    List<UploadSessionFinishArg> entries = new ArrayList<>(batch.size());
+    for (Item item : batch) {
+      CommitInfo commit = CommitInfo.newBuilder(item.remotePath)
+              .withMode(WriteMode.OVERWRITE)
+              .withAutorename(true)
+              .withMute(false)
+              .build();
+      entries.add(new UploadSessionFinishArg(new UploadSessionCursor(item.sessionId, item.size), commit));
+    }
+
+    try {
+      List<UploadSessionFinishBatchResultEntry> outcomes;
+      // The async variant is used on purpose: the sync v2 call can time out on large batches.
+      // Not retried once the server may have committed, which uses the sessions up
+      @SuppressWarnings("deprecation")  // finish_batch v1 is the only variant with an async job
+      UploadSessionFinishBatchLaunch launch = DropboxPlugin.retryPolicy.callOnce(() ->
+              client.files().uploadSessionFinishBatch(entries));
+      if (launch.isComplete()) {
+        outcomes = launch.getCompleteValue().getEntries();
+      } else if (launch.isAsyncJobId()) {
+        String jobId = launch.getAsyncJobIdValue();
+        outcomes = AsyncJob.await(scheduler, () -> {
+          UploadSessionFinishBatchJobStatus status = client.files().uploadSessionFinishBatchCheck(jobId);
+          return status.isComplete() ? status.getCompleteValue().getEntries() : null;
+        });
+      } else {
+        throw new IOException("Unexpected finish_batch response: " + launch);
+      }
+
+      for (int i = 0; i < batch.size(); i++) {
+        UploadSessionFinishBatchResultEntry outcome = i < outcomes.size() ? outcomes.get(i) : null;
+        Item item = batch.get(i);
+        if (outcome != null && outcome.isSuccess()) {
+          item.metadata = outcome.getSuccessValue();
+          DropboxPlugin.metadataCache.put(item.metadata);
+        } else {
+          item.error = "Commit failed: " + (outcome != null ? outcome.getFailureValue() : "no result");
+        }
+      }
+    } catch (InterruptedIOException e) {
+      throw e;
+    } catch (DbxException | IOException e) {
+      e.printStackTrace();
+      DropboxPlugin.metrics.failed(e);
+      for (Item item : batch) {
+        item.error = "Commit failed: " + e.getMessage();
+      }
+    }
+  }
+
+  private static class Item {
+    final File file;
+    final String localPath;
+    final String remotePath;
+    final long size;
+    volatile String sessionId;
+    volatile FileMetadata metadata;
+    volatile String error;
+
+    Item(String localPath, String remotePath) {
+      this.file = new File(localPath);
+      this.localPath = localPath;
+      this.remotePath = remotePath;
+      this.size = file.length();
+    }
+
+    Map<String, Object> toMap() {
+      Map<String, Object> map = new HashMap<>();
+      map.put("filepath", localPath);
+      map.put("dropboxpath", remotePath);
+      map.put("success", metadata != null);
+      if (metadata != null) {
+        map.put("message", "Upload completed successfully.");
+        map.put("pathDisplay", metadata.getPathDisplay());
+        map.put("rev", metadata.getRev());
+        map.put("size", metadata.getSize());
+      } else {
+        map.put("message", error != null ? error : "Upload failed.");
+      }
+      return map;
+    }
+  }
+}
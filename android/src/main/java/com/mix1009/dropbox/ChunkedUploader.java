@@ -0,0 +1,226 @@
+package com.mix1009.dropbox;
+
+import com.dropbox.core.DbxException;
+import com.dropbox.core.util.IOUtil;
+import com.dropbox.core.v2.DbxClientV2;
+import com.dropbox.core.v2.files.CommitInfo;
+import com.dropbox.core.v2.files.FileMetadata;
+import com.dropbox.core.v2.files.UploadSessionAppendErrorException;
+import com.dropbox.core.v2.files.UploadSessionCursor;
+import com.dropbox.core.v2.files.UploadSessionType;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Uploads large files through a concurrent upload session.
+ *
+ * The file is split into chunks that are appended on several connections at once, each chunk
+ * streamed straight from a positional {@link FileChannel} view. A failed chunk is retried on its
+ * own, following the {@link RetryPolicy}, instead of restarting the whole file.
+ */
+class ChunkedUploader {
+
+  /** Dropbox requires every chunk except the last one to be a multiple of 4 MB. */
+  static final long BLOCK_SIZE = 4L * 1024 * 1024;
+
+  private final DbxClientV2 client;
+  private final TransferScheduler scheduler;
+  private final long chunkSize;
+
+  /**
+   * @param client    The authenticated Dropbox client.
+   * @param scheduler The scheduler that runs the chunk uploads.
+   * @param chunkSize The requested chunk size; rounded up to a multiple of {@link #BLOCK_SIZE}.
+   */
+  ChunkedUploader(DbxClientV2 client, TransferScheduler scheduler, long chunkSize) {
+    this.client = client;
+    this.scheduler = scheduler;
+    this.chunkSize = Math.max(BLOCK_SIZE, (chunkSize + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE);
+  }
+
+  /**
+   * Uploads everything in a channel, e.g. one opened from a content URI, and commits it.
+   *
+   * @param channel  The channel to upload; it is read with positional reads only.
+   * @param commit   Where and how to commit the uploaded file.
+   * @param listener Receives the total number of bytes uploaded so far.
+   * @return the metadata of the committed file.
+   */
+  FileMetadata upload(FileChannel channel, CommitInfo commit, IOUtil.ProgressListener listener)
+          throws DbxException, IOException {
+    return upload(channel, commit, null, listener);
+  }
+
+  /**
+   * Uploads a channel like {@link #upload(FileChannel, CommitInfo, IOUtil.ProgressListener)},
+   * continuing the session recorded in a checkpoint instead of starting over.
+   *
+   * @param checkpoint Records the session and every appended chunk; may be null.
+   */
+  FileMetadata upload(FileChannel channel, CommitInfo commit, Checkpoint checkpoint,
+                      IOUtil.ProgressListener listener) throws DbxException, IOException {
+    long size = channel.size();
+    String sessionId;
+    try {
+      sessionId = uploadToSession(channel, checkpoint, listener);
+    } catch (UploadSessionAppendErrorException e) {
+      if (checkpoint == null || checkpoint.sessionId(size) == null) throw e;
+      // The recorded session expired, or a chunk made it that the checkpoint missed
+      checkpoint.reset();
+      sessionId = uploadToSession(channel, checkpoint, listener);
+    }
+    String finished = sessionId;
+    // Not retried once the server may have committed: the session would be used up, and the
+    // retry would fail with lookup_failed although the file was stored
+    return DropboxPlugin.retryPolicy.callOnce(() -> client.files()
+            .uploadSessionFinish(new UploadSessionCursor(finished, size), commit)
+            .uploadAndFinish(new ByteArrayInputStream(new byte[0]), 0));
+  }
+
+  /**
+   * Uploads a file into a new session and closes it without committing, so it can be finished
+   * later, e.g. together with other files in one {@code upload_session/finish_batch}.
+   *
+   * @param file     The local file to upload.
+   * @param listener Receives the total number of bytes uploaded so far.
+   * @return the id of the closed session.
+   */
+  String uploadToSession(File file, IOUtil.ProgressListener listener) throws DbxException, IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      return uploadToSession(raf.getChannel(), null, listener);
+    }
+  }
+
+  private String uploadToSession(FileChannel channel, Checkpoint checkpoint, IOUtil.ProgressListener listener)
+          throws DbxException, IOException {
+    long size = channel.size();
+
+    String sessionId = checkpoint != null ? checkpoint.sessionId(size) : null;
+    if (sessionId == null) {
+      // Concurrent sessions are started without data; every byte goes through append calls
+      sessionId = DropboxPlugin.retryPolicy.call(() -> client.files().uploadSessionStartBuilder()
+              .withSessionType(UploadSessionType.CONCURRENT)
+              .start()
+              .uploadAndFinish(new ByteArrayInputStream(new byte[0]), 0)
+              .getSessionId());
+      if (checkpoint != null) {
+        checkpoint.started(sessionId, size);
+      }
+    }
+
+    AtomicLong uploaded = new AtomicLong();
+    int chunkCount = (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+
+    // Every chunk but the last runs in parallel; the last one closes the session
+    uploadChunks(sessionId, channel, size, chunkCount - 1, checkpoint, uploaded, listener);
+    long lastOffset = (chunkCount - 1) * chunkSize;
+    appendChunk(sessionId, channel, lastOffset, size - lastOffset, true, checkpoint, uploaded, listener);
+    return sessionId;
+  }
+
+  private void uploadChunks(String sessionId, FileChannel channel, long size, int count, Checkpoint checkpoint,
+                            AtomicLong uploaded, IOUtil.ProgressListener listener)
+          throws DbxException, IOException {
+    List<TransferScheduler.Part> parts = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      long offset = i * chunkSize;
+      long length = Math.min(chunkSize, size - offset);
+      parts.add(() -> appendChunk(sessionId, channel, offset, length, false, checkpoint, uploaded, listener));
+    }
+    scheduler.runAll(TransferScheduler.Kind.PART, parts);
+  }
+
+  private void appendChunk(String sessionId, FileChannel channel, long offset, long length, boolean close,
+                           Checkpoint checkpoint, AtomicLong uploaded, IOUtil.ProgressListener listener)
+          throws DbxException, IOException {
+    if (checkpoint != null && checkpoint.isAppended(offset)) {
+      // Appended before the upload was interrupted
+      listener.onProgress(uploaded.addAndGet(length));
+      return;
+    }
+    for (int attempt = 1; ; attempt++) {
+      long[] sent = new long[1];
+      try {
+        client.files()
+                .uploadSessionAppendV2Builder(new UploadSessionCursor(sessionId, offset))
+                .withClose(close)
+                .start()
+                .uploadAndFinish(new ChannelRangeInputStream(channel, offset, length), length, bytes -> {
+                  listener.onProgress(uploaded.addAndGet(bytes - sent[0]));
+                  sent[0] = bytes;
+                });
+        DropboxPlugin.retryPolicy.succeeded();
+        if (checkpoint != null) {
+          checkpoint.appended(offset);
+        }
+        return;
+      } catch (DbxException | IOException e) {
+        // Take back this attempt's progress before trying the chunk again
+        listener.onProgress(uploaded.addAndGet(-sent[0]));
+        DropboxPlugin.retryPolicy.retryOrThrow(e, attempt);
+      }
+    }
+  }
+
+  /**
+   * Keeps track of an upload session across process restarts. A session lives for a week, so
+   * an upload that is continued later only sends the chunks that are missing.
+   */
+  interface Checkpoint {
+    /** @return the recorded session for a file of this size, or null to start a new one. */
+    String sessionId(long size);
+
+    /** @return whether the chunk at this offset is already in the recorded session. */
+    boolean isAppended(long offset);
+
+    void started(String sessionId, long size);
+
+    void appended(long offset);
+
+    /** Forgets the recorded session. */
+    void reset();
+  }
+
+  /** Streams a byte range of a file using positional reads, leaving the channel position alone. */
+  static class ChannelRangeInputStream extends InputStream {
+    private final FileChannel channel;
+    private final long end;
+    private long position;
+
+    ChannelRangeInputStream(FileChannel channel, long offset, long length) {
+      this.channel = channel;
+      this.position = offset;
+      this.end = offset + length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] one = new byte[1];
+      return read(one, 0, 1) < 0 ? -1 : (one[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (position >= end) return -1;
+      int count = (int) Math.min(len, end - position);
+      int read = channel.read(ByteBuffer.wrap(b, off, count), position);
+      if (read < 0) return -1;
+      position += read;
+      return read;
+    }
+
+    @Override
+    public int available() {
+      return (int) Math.min(Integer.MAX_VALUE, end - position);
+    }
+  }
+}
@@ -0,0 +1,199 @@
+package com.mix1009.dropbox;
+
+import com.dropbox.core.DbxException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Computes the Dropbox {@code content_hash} of a file: the SHA-256 of the concatenated SHA-256
+ * digests of every 4 MB block. Blocks are independent, so {@link #of(File, TransferScheduler)}
+ * hashes them in parallel straight from memory-mapped windows of the file.
+ *
+ * See https://www.dropbox.com/developers/reference/content-hash
+ */
+class ContentHash {
+
+  static final int BLOCK_SIZE = 4 * 1024 * 1024;
+
+  /** How many blocks one parallel part maps and hashes. */
+  private static final int BLOCKS_PER_PART = 16;
+
+  private final MessageDigest overall = newSha256();
+  private final MessageDigest block = newSha256();
+  private int blockFill;
+
+  /** Feeds the next bytes of the file into the hash. */
+  void update(byte[] bytes, int offset, int length) {
+    while (length > 0) {
+      if (blockFill == BLOCK_SIZE) {
+        overall.update(block.digest());
+        blockFill = 0;
+      }
+      int count = Math.min(length, BLOCK_SIZE - blockFill);
+      block.update(bytes, offset, count);
+      blockFill += count;
+      offset += count;
+      length -= count;
+    }
+  }
+
+  /** Feeds the remaining bytes of a buffer into the hash, consuming them. */
+  void update(ByteBuffer bytes) {
+    int limit = bytes.limit();
+    while (bytes.hasRemaining()) {
+      if (blockFill == BLOCK_SIZE) {
+        overall.update(block.digest());
+        blockFill = 0;
+      }
+      int count = Math.min(bytes.remaining(), BLOCK_SIZE - blockFill);
+      bytes.limit(bytes.position() + count);
+      block.update(bytes);
+      bytes.limit(limit);
+      blockFill += count;
+    }
+  }
+
+  /**
+   * @return a channel that passes the bytes of {@code source} through and feeds them into the
+   * hash on the way, e.g. as the source of a {@link FileChannel#transferFrom}.
+   */
+  ReadableByteChannel hashing(ReadableByteChannel source) {
+    return new ReadableByteChannel() {
+      @Override
+      public int read(ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        int read = source.read(dst);
+        if (read > 0) {
+          ByteBuffer view = dst.duplicate();
+          view.position(start);
+          view.limit(start + read);
+          update(view);
+        }
+        return read;
+      }
+
+      @Override
+      public boolean isOpen() {
+        return source.isOpen();
+      }
+
+      @Override
+      public void close() throws IOException {
+        source.close();
+      }
+    };
+  }
+
+  /** Feeds the first {@code length} bytes of a file into the hash. */
+  void update(File file, long length) throws IOException {
+    byte[] buffer = new byte[64 * 1024];
+    try (InputStream in = new FileInputStream(file)) {
+      while (length > 0) {
+        int read = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+        if (read < 0) throw new IOException("Unexpected end of file: " + file);
+        update(buffer, 0, read);
+        length -= read;
+      }
+    }
+  }
+
+  /** @return the lower-case hex hash. The hasher cannot be used afterwards. */
+  String finish() {
+    if (blockFill > 0) {
+      overall.update(block.digest());
+      blockFill = 0;
+    }
+    return toHex(overall.digest());
+  }
+
+  /** @return the content hash of a whole file. */
+  static String of(File file) throws IOException {
+    ContentHash hash = new ContentHash();
+    hash.update(file, file.length());
+    return hash.finish();
+  }
+
+  /**
+   * @return the content hash of a whole file, with its blocks hashed as parallel parts. Must be
+   * called from a worker that is not itself a {@link TransferScheduler.Kind#PART}.
+   */
+  static String of(File file, TransferScheduler scheduler) throws DbxException, IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      return of(raf.getChannel(), scheduler);
+    }
+  }
+
+  /** @return the content hash of everything in a channel; its position is left alone. */
+  static String of(FileChannel channel, TransferScheduler scheduler) throws DbxException, IOException {
+    long size = channel.size();
+    int blocks = (int) ((size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+    byte[][] digests = new byte[blocks][];
+    if (blocks <= BLOCKS_PER_PART) {
+      // One window; not worth a trip through the scheduler
+      hashBlocks(channel, size, 0, blocks, digests);
+    } else {
+      List<TransferScheduler.Part> parts = new ArrayList<>();
+      for (int first = 0; first < blocks; first += BLOCKS_PER_PART) {
+        int from = first;
+        int to = Math.min(blocks, first + BLOCKS_PER_PART);
+        parts.add(() -> hashBlocks(channel, size, from, to, digests));
+      }
+      scheduler.runAll(TransferScheduler.Kind.PART, parts);
+    }
+
+    MessageDigest overall = newSha256();
+    for (byte[] digest : digests) {
+      overall.update(digest);
+    }
+    return toHex(overall.digest());
+  }
+
+  // Maps blocks [from, to) and stores the digest of each in its slot
+  private static void hashBlocks(FileChannel channel, long size, int from, int to, byte[][] digests)
+          throws IOException {
+    if (from >= to) return;
+    long start = (long) from * BLOCK_SIZE;
+    long length = Math.min(size, (long) to * BLOCK_SIZE) - start;
+    MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+
+    MessageDigest block = newSha256();
+    for (int i = from; i < to; i++) {
+      int offset = (i - from) * BLOCK_SIZE;
+      window.limit((int) Math.min(length, offset + (long) BLOCK_SIZE));
+      window.position(offset);
+      block.update(window);
+      digests[i] = block.digest();
+    }
+  }
+
+  static String toHex(byte[] bytes) {
+    char[] digits = "0123456789abcdef".toCharArray();
+    char[] out = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      out[i * 2] = digits[(bytes[i] >> 4) & 0xf];
+      out[i * 2 + 1] = digits[bytes[i] & 0xf];
+    }
+    return new String(out);
+  }
+
+  static MessageDigest newSha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java and Android runtime is required to provide SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+}
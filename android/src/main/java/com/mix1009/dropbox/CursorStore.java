@@ -0,0 +1,66 @@
+package com.mix1009.dropbox;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Remembers the last {@code list_folder} cursor of every synced root, so the next sync only asks
+ * Dropbox for what changed since then. Cursors are kept in a properties file in the app's
+ * private files directory.
+ */
+class CursorStore {
+
+  private final File file;
+  private final Properties cursors = new Properties();
+
+  CursorStore(File dir) {
+    file = new File(dir, "dropbox_cursors.properties");
+    if (file.exists()) {
+      try (InputStream in = new FileInputStream(file)) {
+        cursors.load(in);
+      } catch (IOException e) {
+        // Losing the cursors only means the next sync is a full listing
+        e.printStackTrace();
+      }
+    }
+  }
+
+  synchronized String get(String root, boolean recursive) {
+    return cursors.getProperty(key(root, recursive));
+  }
+
+  synchronized void put(String root, boolean recursive, String cursor) {
+    cursors.setProperty(key(root, recursive), cursor);
+    save();
+  }
+
+  synchronized void remove(String root, boolean recursive) {
+    if (cursors.remove(key(root, recursive)) != null) {
+      save();
+    }
+  }
+
+  private void save() {
+    File tmp = new File(file.getPath() + ".tmp");
+    try (FileOutputStream out = new FileOutputStream(tmp)) {
+      cursors.store(out, null);
+      out.getFD().sync();
+    } catch (IOException e) {
+      e.printStackTrace();
+      return;
+    }
+    if (!tmp.renameTo(file)) {
+      tmp.delete();
+    }
+  }
+
+  // A cursor is only valid for the arguments it was created with
+  private static String key(String root, boolean recursive) {
+    return (recursive ? "r:" : "f:") + root.toLowerCase(Locale.ROOT);
+  }
+}
@@ -0,0 +1,114 @@
+package com.mix1009.dropbox;
+
+import android.content.Context;
+
+import com.dropbox.core.DbxDownloader;
+import com.dropbox.core.DbxException;
+import com.dropbox.core.util.IOUtil;
+import com.dropbox.core.v2.DbxClientV2;
+import com.dropbox.core.v2.files.FileMetadata;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Downloads into targets other than a local path: a byte array that goes to Dart as typed data,
+ * and a content URI. Neither has a place for a {@code .part} file, so an interrupted download
+ * starts over; both are checked against the Dropbox {@code content_hash}.
+ */
+class DirectDownloader {
+
+  /** Files larger than this are not downloaded into memory unless the caller allows it. */
+  static final long DEFAULT_MAX_MEMORY_BYTES = 64L * 1024 * 1024;
+
+  private final DbxClientV2 client;
+
+  DirectDownloader(DbxClientV2 client) {
+    this.client = client;
+  }
+
+  /**
+   * Downloads a revision straight into an array of its exact size, so the bytes are never
+   * buffered twice on this side.
+   *
+   * @param path     The Dropbox path of the file.
+   * @param metadata The metadata of the revision to download.
+   * @param maxBytes The largest file that may be held in memory.
+   * @param listener Receives the total number of bytes read so far.
+   */
+  byte[] toMemory(String path, FileMetadata metadata, long maxBytes, IOUtil.ProgressListener listener)
+          throws DbxException, IOException {
+    long size = metadata.getSize();
+    if (size > Math.min(maxBytes, Integer.MAX_VALUE - 8)) {
+      throw new IOException(metadata.getPathDisplay() + " is too large to download into memory ("
+              + size + " bytes)");
+    }
+
+    byte[] bytes = new byte[(int) size];
+    ContentHash hash = new ContentHash();
+    DbxDownloader<FileMetadata> downloader = client.files().downloadBuilder(path)
+            .withRev(metadata.getRev())
+            .start();
+    try (InputStream in = downloader.getInputStream()) {
+      int position = 0;
+      int read;
+      while (position < bytes.length && (read = in.read(bytes, position, bytes.length - position)) >= 0) {
+        hash.update(bytes, position, read);
+        position += read;
+        listener.onProgress(position);
+      }
+      if (position < bytes.length || in.read() >= 0) {
+        throw new IOException("Size mismatch for " + metadata.getPathDisplay());
+      }
+    } finally {
+      downloader.close();
+    }
+
+    verify(metadata, hash);
+    return bytes;
+  }
+
+  /**
+   * Downloads a revision into a content URI, moving the bytes with
+   * {@link FileChannel#transferFrom} like a download to a local file.
+   *
+   * @param path     The Dropbox path of the file.
+   * @param metadata The metadata of the revision to download.
+   * @param uri      The URI to write; whatever it held is replaced.
+   * @param listener Receives the total number of bytes written so far.
+   */
+  void toUri(Context context, String path, FileMetadata metadata, String uri, IOUtil.ProgressListener listener)
+          throws DbxException, IOException {
+    ContentHash hash = new ContentHash();
+    DbxDownloader<FileMetadata> downloader = client.files().downloadBuilder(path)
+            .withRev(metadata.getRev())
+            .start();
+    try (FileOutputStream out = UriFiles.openOutput(context, uri);
+         InputStream in = downloader.getInputStream()) {
+      FileChannel channel = out.getChannel();
+      ReadableByteChannel source = hash.hashing(Channels.newChannel(in));
+      long position = 0;
+      long count;
+      while ((count = channel.transferFrom(source, position, ResumableDownloader.TRANSFER_BYTES)) > 0) {
+        position += count;
+        listener.onProgress(position);
+      }
+      channel.force(false);
+    } finally {
+      downloader.close();
+    }
+
+    verify(metadata, hash);
+  }
+
+  private static void verify(FileMetadata metadata, ContentHash hash) throws IOException {
+    String expected = metadata.getContentHash();
+    if (expected != null && !expected.equals(hash.finish())) {
+      throw new IOException("Content hash mismatch for " + metadata.getPathDisplay());
+    }
+  }
+}
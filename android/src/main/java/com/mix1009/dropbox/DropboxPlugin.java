@@ -18,38 +18,45 @@ import com.dropbox.core.DbxAppInfo;
 import com.dropbox.core.DbxHost;
 import com.dropbox.core.json.JsonReadException;
 import com.dropbox.core.DbxAuthFinish;
-import com.dropbox.core.DbxDownloader;
 import com.dropbox.core.oauth.DbxCredential;
 import com.dropbox.core.DbxException;
 import com.dropbox.core.DbxRequestConfig;
 import com.dropbox.core.DbxWebAuth;
 import com.dropbox.core.android.Auth;
 import com.dropbox.core.android.AuthActivity;
+import com.dropbox.core.util.IOUtil;
 import com.dropbox.core.v2.DbxClientV2;
+import com.dropbox.core.v2.files.CommitInfo;
+import com.dropbox.core.v2.files.DeletedMetadata;
 import com.dropbox.core.v2.files.FileMetadata;
+import com.dropbox.core.v2.files.FolderMetadata;
+import com.dropbox.core.v2.files.ListFolderContinueErrorException;
+import com.dropbox.core.v2.files.GetMetadataErrorException;
 import com.dropbox.core.v2.files.GetTemporaryLinkResult;
 import com.dropbox.core.v2.files.ListFolderResult;
 
 import com.dropbox.core.v2.files.Metadata;
+import com.dropbox.core.v2.files.ThumbnailFormat;
+import com.dropbox.core.v2.files.ThumbnailMode;
+import com.dropbox.core.v2.files.ThumbnailSize;
 import com.dropbox.core.v2.files.UploadBuilder;
 import com.dropbox.core.v2.files.WriteMode;
 import com.dropbox.core.v2.users.FullAccount;
-import com.dropbox.core.http.OkHttp3Requestor;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.channels.FileChannel;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 /** DropboxPlugin */
@@ -69,6 +76,25 @@ public class DropboxPlugin implements FlutterPlugin, MethodCallHandler, Activity
   public void onDetachedFromEngine(@NonNull FlutterPluginBinding binding) {
     // Clean up the channel when detached from the engine
     teardownChannel();
+
+    // Stop folder watchers before their workers go away
+    FolderWatcher.stopAll();
+
+    // Saves that were still waiting run on a thread of their own; the workers are going away
+    boolean metadataPending = metadataSaveQueued.getAndSet(false);
+    boolean hashesPending = hashSaveQueued.getAndSet(false);
+    if (metadataPending || hashesPending) {
+      new Thread(() -> {
+        if (metadataPending) saveMetadataCache();
+        if (hashesPending) hashCache.save();
+      }, "dropbox-cache-save").start();
+    }
+
+    // Stop the shared workers; queued operations are dropped with the engine
+    if (scheduler != null) {
+      scheduler.shutdown();
+      scheduler = null;
+    }
   }
 
   @Override
@@ -99,6 +125,88 @@ public class DropboxPlugin implements FlutterPlugin, MethodCallHandler, Activity
     // Set up the MethodChannel for communication with Dart
     channel = new MethodChannel(messenger, CHANNEL_NAME);
     channel.setMethodCallHandler(this);
+    progress.setChannel(channel);
+
+    // One bounded worker pool serves every operation of the plugin
+    if (scheduler == null) {
+      scheduler = new TransferScheduler(metrics, transfers);
+      http.setSchedulerConcurrency(scheduler.concurrency());
+    }
+    metrics.setChannel(channel);
+    metrics.setGauges(DropboxPlugin::collectGauges);
+
+    appContext = context;
+
+    // Delta sync cursors survive app restarts
+    if (cursorStore == null) {
+      cursorStore = new CursorStore(context.getFilesDir());
+    }
+
+    // So are the content hashes of files uploaded in sync mode
+    if (hashCache == null) {
+      hashCache = new HashCache(context.getFilesDir());
+    }
+
+    // Thumbnails are only cached, so the system may clear them
+    if (thumbnails == null) {
+      thumbnails = new ThumbnailLoader(new File(context.getCacheDir(), "dropbox_thumbnails"));
+    }
+
+    // Queued transfers outlive the process; they run again once init is called
+    if (transferQueue == null) {
+      transferQueue = new TransferQueue(context.getFilesDir(), context, DropboxPlugin::startQueued);
+    }
+    transferQueue.setChannel(channel);
+  }
+
+  // Runs a transfer from the persistent queue, measured like a method call of its own
+  private static void startQueued(TransferQueue.Job job, Result result) {
+    boolean upload = job.kind == TransferQueue.Kind.UPLOAD;
+    Metrics.Span span = metrics.start(upload ? "queuedUpload" : "queuedDownload");
+    try {
+      Result measured = metrics.wrap(span, result);
+      if (upload) {
+        UploadTask task = new UploadTask(null, job.key(), measured);
+        task.checkpoint = job;
+        task.execute(job.localPath, null, job.remotePath, false);
+      } else {
+        new DownloadTask(null, job.key(), measured).execute(job.remotePath, job.localPath);
+      }
+    } finally {
+      metrics.leave();
+    }
+  }
+
+  static File metadataCacheFile() {
+    return new File(appContext.getFilesDir(), "dropbox_metadata.cache");
+  }
+
+  private static void scheduleMetadataSave() {
+    scheduleSave(metadataSaveQueued, DropboxPlugin::saveMetadataCache);
+  }
+
+  static void scheduleHashCacheSave() {
+    scheduleSave(hashSaveQueued, () -> hashCache.save());
+  }
+
+  // Saves a cache on a worker shortly after it changes. The process is usually killed without a
+  // detach, so waiting for one would lose the cache; changes within the delay share one save.
+  private static void scheduleSave(AtomicBoolean queued, Runnable save) {
+    TransferScheduler current = scheduler;
+    if (current == null || !queued.compareAndSet(false, true)) return;
+    current.enqueueLater(TransferScheduler.Kind.METADATA, CACHE_SAVE_DELAY_MS, () -> {
+      if (queued.getAndSet(false)) {
+        save.run();
+      }
+    });
+  }
+
+  private static void saveMetadataCache() {
+    try {
+      metadataCache.save(metadataCacheFile());
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
   }
 
   private void teardownChannel() {
@@ -107,6 +215,29 @@ public class DropboxPlugin implements FlutterPlugin, MethodCallHandler, Activity
       channel.setMethodCallHandler(null);
       channel = null;
     }
+    progress.setChannel(null);
+    metrics.setChannel(null);
+    if (transferQueue != null) {
+      transferQueue.setChannel(null);
+    }
+    metrics.streamSnapshots(0);
+  }
+
+  // Queue depths and connection state for every metrics snapshot
+  private static void collectGauges(Map<String, Object> snapshot) {
+    TransferScheduler current = scheduler;
+    if (current != null) {
+      Map<String, Object> queues = new HashMap<>();
+      for (TransferScheduler.Kind kind : TransferScheduler.Kind.values()) {
+        Map<String, Object> queue = new HashMap<>();
+        queue.put("running", current.runningCount(kind));
+        queue.put("pending", current.pendingCount(kind));
+        queues.put(kind.name().toLowerCase(Locale.ROOT), queue);
+      }
+      snapshot.put("scheduler", queues);
+    }
+    snapshot.put("http", http.stats());
+    snapshot.put("circuit", retryPolicy.circuitState().name().toLowerCase(Locale.ROOT));
   }
 
   // Static Dropbox-related variables (no change required for these)
@@ -117,6 +248,30 @@ public class DropboxPlugin implements FlutterPlugin, MethodCallHandler, Activity
   protected static DbxCredential credentials;
   protected static String clientId;
   protected static DbxAppInfo appInfo;
+  protected static TransferScheduler scheduler;
+  protected static CursorStore cursorStore;
+  protected static HashCache hashCache;
+  protected static ThumbnailLoader thumbnails;
+  protected static TransferQueue transferQueue;
+  protected static MetadataCache metadataCache = new MetadataCache(10000, 8L * 1024 * 1024);
+  protected static boolean persistMetadataCache;
+  private static final long CACHE_SAVE_DELAY_MS = 2000;
+  private static final AtomicBoolean metadataSaveQueued = new AtomicBoolean();
+  private static final AtomicBoolean hashSaveQueued = new AtomicBoolean();
+  protected static Context appContext;
+  protected static final ProgressAggregator progress = new ProgressAggregator();
+  protected static final TransferRegistry transfers = new TransferRegistry();
+  protected static final SharedHttpClient http = new SharedHttpClient(transfers);
+  protected static final Metrics metrics = new Metrics();
+  protected static final RetryPolicy retryPolicy = new RetryPolicy();
+
+  // Files at or above this size are uploaded in chunks through an upload session
+  protected static long chunkedUploadThreshold = 32L * 1024 * 1024;
+  protected static long uploadChunkSize = 8L * 1024 * 1024;
+
+  // Opt-in: files at or above the threshold are downloaded as this many parallel ranges
+  protected static int downloadSegments = 1;
+  protected static long segmentedDownloadThreshold = 32L * 1024 * 1024;
 
 
   /**
@@ -139,9 +294,7 @@ public class DropboxPlugin implements FlutterPlugin, MethodCallHandler, Activity
     // If an authorization token is found, initialize the Dropbox client
     if (authToken != null) {
       // Create a new request configuration with the app's clientId
-      sDbxRequestConfig = DbxRequestConfig.newBuilder(DropboxPlugin.clientId)  // Access clientId as a static field
-              .withHttpRequestor(new OkHttp3Requestor(OkHttp3Requestor.defaultOkHttpClient()))  // Use OkHttp for network requests
-              .build();
+      sDbxRequestConfig = http.requestConfig(DropboxPlugin.clientId);  // Shared OkHttp client and connection pool
 
       // Initialize the Dropbox client with the config and the auth token
       client = new DbxClientV2(sDbxRequestConfig, authToken);
@@ -149,6 +302,9 @@ public class DropboxPlugin implements FlutterPlugin, MethodCallHandler, Activity
       // Set the access token in the static field for future use
       DropboxPlugin.accessToken = authToken;  // Set the access token using the static field
 
+      // Queued transfers were waiting for a client
+      transferQueue.pump();
+
       // Return true to indicate successful client initialization
       return true;
     }
@@ -161,6 +317,16 @@ public class DropboxPlugin implements FlutterPlugin, MethodCallHandler, Activity
 
   @Override
   public void onMethodCall(@NonNull MethodCall call, @NonNull Result result) {
+    // Every operation is measured from here until its result goes back to Dart
+    Metrics.Span span = metrics.start(call.method);
+    try {
+      handleMethodCall(call, metrics.wrap(span, result));
+    } finally {
+      metrics.leave();
+    }
+  }
+
+  private void handleMethodCall(@NonNull MethodCall call, @NonNull Result result) {
     switch (call.method) {
 
       case "init": {
@@ -179,10 +345,102 @@ public class DropboxPlugin implements FlutterPlugin, MethodCallHandler, Activity
             throw new Exception("Client ID is null");
           }
 
+          // Optional per-kind concurrency caps for the shared scheduler
+          Integer metadataConcurrency = call.argument("metadataConcurrency");
+          Integer transferConcurrency = call.argument("transferConcurrency");
+          if (metadataConcurrency != null) {
+            scheduler.setLimit(TransferScheduler.Kind.METADATA, metadataConcurrency);
+          }
+          if (transferConcurrency != null) {
+            scheduler.setLimit(TransferScheduler.Kind.TRANSFER, transferConcurrency);
+          }
+
+          // Optional large-file upload settings
+          Number threshold = call.argument("chunkedUploadThreshold");
+          Number chunkSize = call.argument("uploadChunkSize");
+          Integer uploadParallelism = call.argument("uploadParallelism");
+          if (threshold != null) {
+            chunkedUploadThreshold = threshold.longValue();
+          }
+          if (chunkSize != null) {
+            uploadChunkSize = chunkSize.longValue();
+          }
+          if (uploadParallelism != null) {
+            scheduler.setLimit(TransferScheduler.Kind.PART, uploadParallelism);
+          }
+
+          // Optional segmented download settings
+          Integer segments = call.argument("downloadSegments");
+          Number segmentThreshold = call.argument("segmentedDownloadThreshold");
+          if (segments != null) {
+            downloadSegments = segments;
+          }
+          if (segmentThreshold != null) {
+            segmentedDownloadThreshold = segmentThreshold.longValue();
+          }
+
+          // Optional metadata cache settings
+          Integer cacheEntries = call.argument("metadataCacheEntries");
+          Number cacheBytes = call.argument("metadataCacheBytes");
+          Boolean persistCache = call.argument("persistMetadataCache");
+          if (cacheEntries != null || cacheBytes != null) {
+            metadataCache.setLimits(
+                    cacheEntries != null ? cacheEntries : 10000,
+                    cacheBytes != null ? cacheBytes.longValue() : 8L * 1024 * 1024);
+          }
+          // Optional progress throttling
+          Number progressInterval = call.argument("progressIntervalMs");
+          Number progressMinBytes = call.argument("progressMinBytes");
+          if (progressInterval != null || progressMinBytes != null) {
+            progress.configure(
+                    progressInterval != null ? progressInterval.longValue() : 100,
+                    progressMinBytes != null ? progressMinBytes.longValue() : 0);
+          }
+
+          if (persistCache != null && persistCache && !persistMetadataCache) {
+            persistMetadataCache = true;
+            metadataCache.load(metadataCacheFile());
+            metadataCache.setChangeListener(DropboxPlugin::scheduleMetadataSave);
+          }
+
+          // Optional thumbnail cache budgets
+          Number thumbnailMemoryBytes = call.argument("thumbnailMemoryCacheBytes");
+          Number thumbnailDiskBytes = call.argument("thumbnailDiskCacheBytes");
+          thumbnails.setLimits(
+                  thumbnailMemoryBytes != null ? thumbnailMemoryBytes.longValue() : null,
+                  thumbnailDiskBytes != null ? thumbnailDiskBytes.longValue() : null);
+
+          // Optional retry settings
+          Integer maxAttempts = call.argument("maxAttempts");
+          Number retryBaseDelay = call.argument("retryBaseDelayMs");
+          Number retryMaxDelay = call.argument("retryMaxDelayMs");
+          retryPolicy.configure(maxAttempts,
+                  retryBaseDelay != null ? retryBaseDelay.longValue() : null,
+                  retryMaxDelay != null ? retryMaxDelay.longValue() : null);
+
+          // Optional HTTP settings; every request config shares one OkHttp client
+          Integer maxIdleConnections = call.argument("maxIdleConnections");
+          Number keepAlive = call.argument("keepAliveMs");
+          Number connectTimeout = call.argument("connectTimeoutMs");
+          Number readTimeout = call.argument("readTimeoutMs");
+          Number writeTimeout = call.argument("writeTimeoutMs");
+          Integer maxRequestsPerHost = call.argument("maxRequestsPerHost");
+          if (maxIdleConnections != null || keepAlive != null || connectTimeout != null
+                  || readTimeout != null || writeTimeout != null || maxRequestsPerHost != null) {
+            http.configure(maxIdleConnections,
+                    keepAlive != null ? keepAlive.longValue() : null,
+                    connectTimeout != null ? connectTimeout.longValue() : null,
+                    readTimeout != null ? readTimeout.longValue() : null,
+                    writeTimeout != null ? writeTimeout.longValue() : null,
+                    maxRequestsPerHost);
+          }
+          http.setSchedulerConcurrency(scheduler.concurrency());
+
           // Set up the Dropbox request configuration
-          sDbxRequestConfig = DbxRequestConfig.newBuilder(DropboxPlugin.clientId)
-                  .withHttpRequestor(new OkHttp3Requestor(OkHttp3Requestor.defaultOkHttpClient()))
-                  .build();
+          sDbxRequestConfig = http.requestConfig(DropboxPlugin.clientId);
+
+          // Replay the transfers queued before the app was last closed
+          transferQueue.start();
 
           // Return success response
           Map<String, Object> successResponse = new HashMap<>();
@@ -205,9 +463,7 @@ public class DropboxPlugin implements FlutterPlugin, MethodCallHandler, Activity
           // Start OAuth2 authentication
           String clientId = call.argument("clientId");
 
-          sDbxRequestConfig = DbxRequestConfig.newBuilder(clientId)
-                  .withHttpRequestor(new OkHttp3Requestor(OkHttp3Requestor.defaultOkHttpClient()))
-                  .build();
+          sDbxRequestConfig = http.requestConfig(clientId);
 
           Auth.startOAuth2PKCE(
                   DropboxPlugin.activity ,
@@ -257,13 +513,12 @@ public class DropboxPlugin implements FlutterPlugin, MethodCallHandler, Activity
           String argAccessToken = call.argument("accessToken");
 
           // Build the Dropbox client configuration
-          sDbxRequestConfig = DbxRequestConfig.newBuilder(DropboxPlugin.clientId)
-                  .withHttpRequestor(new OkHttp3Requestor(OkHttp3Requestor.defaultOkHttpClient()))
-                  .build();
+          sDbxRequestConfig = http.requestConfig(DropboxPlugin.clientId);
 
           // Create the Dropbox client with the provided access token
           client = new DbxClientV2(sDbxRequestConfig, argAccessToken);
           accessToken = argAccessToken;
+          transferQueue.pump();  // Queued transfers were waiting for a client
 
           // Prepare the success response
           Map<String, Object> successResponse = new HashMap<>();
@@ -302,21 +557,138 @@ public class DropboxPlugin implements FlutterPlugin, MethodCallHandler, Activity
 
       case "listFolder": {
         String path = call.argument("path");
+        Boolean cacheOnly = call.argument("cacheOnly");
+        Boolean compact = call.argument("compact");  // One encoded byte[] instead of a map per entry
+        boolean compactListing = compact != null && compact;
+        if (cacheOnly != null && cacheOnly) {
+          // Answer straight from the cache, e.g. to render a folder on a cold start
+          List<Metadata> cached = metadataCache.getListing(path);
+          Map<String, Object> cacheResult = new HashMap<>();
+          cacheResult.put("success", cached != null);
+          cacheResult.put("message", cached != null ? "Folder listing served from cache." : "Folder listing is not cached.");
+          cacheResult.put("fromCache", true);
+          if (cached == null || !compactListing) {
+            cacheResult.put("paths", cached != null ? ListFolderTask.toMaps(cached) : null);
+            result.success(cacheResult);
+            return;
+          }
+          // Encoding a large listing is kept off the main thread
+          scheduler.submit(TransferScheduler.Kind.METADATA, () -> {
+            cacheResult.put("listing", ListingCodec.encode(cached));
+            new Handler(Looper.getMainLooper()).post(() -> result.success(cacheResult));
+          });
+          return;
+        }
         if (!checkClient(result)) return;  // Ensure client is authenticated
-        (new ListFolderTask(result)).execute(path);
+        (new ListFolderTask(result)).execute(path, compactListing);
+        break;
+      }
+
+      case "getCacheStats": {
+        Map<String, Object> statsResult = new HashMap<>();
+        statsResult.put("success", true);
+        statsResult.put("message", "Cache statistics retrieved.");
+        statsResult.put("stats", metadataCache.stats());
+        statsResult.put("thumbnails", thumbnails.stats());
+        result.success(statsResult);
+        break;
+      }
+
+      case "getThumbnail": {
+        String path = call.argument("path");
+        String size = call.argument("size");
+        String format = call.argument("format");
+        String mode = call.argument("mode");
+        if (path == null) {
+          result.error("INVALID_ARGUMENT", "Path is missing", null);
+          return;
+        }
+        ThumbnailSize thumbnailSize;
+        ThumbnailFormat thumbnailFormat;
+        ThumbnailMode thumbnailMode;
+        try {
+          // Named like the API, e.g. w256h256, png, bestfit
+          thumbnailSize = size != null ? ThumbnailSize.valueOf(size.toUpperCase(Locale.ROOT)) : ThumbnailSize.W64H64;
+          thumbnailFormat = format != null ? ThumbnailFormat.valueOf(format.toUpperCase(Locale.ROOT)) : ThumbnailFormat.JPEG;
+          thumbnailMode = mode != null ? ThumbnailMode.valueOf(mode.toUpperCase(Locale.ROOT)) : ThumbnailMode.STRICT;
+        } catch (IllegalArgumentException e) {
+          result.error("INVALID_ARGUMENT", "Unknown thumbnail size, format or mode", null);
+          return;
+        }
+        if (!checkClient(result)) return;
+        thumbnails.load(path, thumbnailSize, thumbnailFormat, thumbnailMode, (thumbnail, error) -> {
+          Map<String, Object> thumbnailResult = new HashMap<>();
+          thumbnailResult.put("success", thumbnail != null);
+          thumbnailResult.put("message", thumbnail != null ? "Thumbnail loaded." : "Thumbnail failed: " + error);
+          if (thumbnail != null) {
+            thumbnailResult.put("bytes", thumbnail);
+          }
+          new Handler(Looper.getMainLooper()).post(() -> result.success(thumbnailResult));
+        });
+        break;
+      }
+
+      case "getHttpStats": {
+        Map<String, Object> httpResult = new HashMap<>();
+        httpResult.put("success", true);
+        httpResult.put("message", "HTTP statistics retrieved.");
+        httpResult.put("stats", http.stats());
+        result.success(httpResult);
+        break;
+      }
+
+      case "getMetrics": {
+        Boolean reset = call.argument("reset");
+        Map<String, Object> metricsResult = new HashMap<>();
+        metricsResult.put("success", true);
+        metricsResult.put("message", "Metrics retrieved.");
+        metricsResult.put("metrics", metrics.snapshot(reset != null && reset));
+        result.success(metricsResult);
+        break;
+      }
+
+      case "streamMetrics": {
+        Number interval = call.argument("intervalMs");
+        metrics.streamSnapshots(interval != null ? interval.longValue() : 0);
+        result.success(null);
+        break;
+      }
+
+      case "clearCache": {
+        metadataCache.clear();
+        thumbnails.clearMemory();
+        Map<String, Object> clearResult = new HashMap<>();
+        clearResult.put("success", true);
+        clearResult.put("message", "Cache cleared.");
+        result.success(clearResult);
         break;
       }
 
       case "upload": {
         String filepath = call.argument("filepath");
+        String uri = call.argument("uri");  // A content URI can be uploaded instead of a file
         String dropboxpath = call.argument("dropboxpath");
         Integer key = call.argument("key");  // Use Integer to allow null checks
-        if (key == null || filepath == null || dropboxpath == null) {
+        if (key == null || (filepath == null && uri == null) || dropboxpath == null) {
           result.error("INVALID_ARGUMENT", "Filepath, dropboxpath, or key is missing", null);
           return;
         }
+        Boolean sync = call.argument("sync");  // Skip files that are unchanged on Dropbox
         if (!checkClient(result)) return;  // Ensure client is authenticated
-        (new UploadTask(channel, key, result)).execute(filepath, dropboxpath);
+        (new UploadTask(channel, key, result)).execute(filepath, uri, dropboxpath, sync != null && sync);
+        break;
+      }
+
+      case "uploadBatch": {
+        List<String> filepaths = call.argument("filepaths");
+        List<String> dropboxpaths = call.argument("dropboxpaths");
+        Integer key = call.argument("key");
+        if (key == null || filepaths == null || dropboxpaths == null || filepaths.size() != dropboxpaths.size()) {
+          result.error("INVALID_ARGUMENT", "Filepaths, dropboxpaths, or key is missing", null);
+          return;
+        }
+        if (!checkClient(result)) return;
+        (new UploadBatchTask(channel, key, result)).execute(filepaths, dropboxpaths);
         break;
       }
 
@@ -333,6 +705,267 @@ public class DropboxPlugin implements FlutterPlugin, MethodCallHandler, Activity
         break;
       }
 
+      case "syncFolder": {
+        String localdir = call.argument("localdir");
+        String dropboxdir = call.argument("dropboxdir");
+        String direction = call.argument("direction");  // "upload" or "download"
+        Boolean delete = call.argument("delete");
+        Boolean dryRun = call.argument("dryRun");
+        Integer key = call.argument("key");
+        if (key == null || localdir == null || dropboxdir == null) {
+          result.error("INVALID_ARGUMENT", "Localdir, dropboxdir, or key is missing", null);
+          return;
+        }
+        FolderSync.Direction syncDirection;
+        try {
+          syncDirection = direction != null ? FolderSync.Direction.valueOf(direction.toUpperCase(Locale.ROOT)) : FolderSync.Direction.UPLOAD;
+        } catch (IllegalArgumentException e) {
+          result.error("INVALID_ARGUMENT", "Direction must be upload or download", null);
+          return;
+        }
+        if (!checkClient(result)) return;  // Ensure client is authenticated
+        (new SyncFolderTask(channel, key, result)).execute(localdir, dropboxdir, syncDirection,
+                delete != null && delete, dryRun != null && dryRun);
+        break;
+      }
+
+      case "enqueueUpload":
+      case "enqueueDownload": {
+        String filepath = call.argument("filepath");
+        String dropboxpath = call.argument("dropboxpath");
+        Boolean unmetered = call.argument("unmetered");  // Wait for Wi-Fi or another unmetered network
+        Boolean charging = call.argument("charging");  // Wait for a charger
+        if (filepath == null || dropboxpath == null) {
+          result.error("INVALID_ARGUMENT", "Filepath or dropboxpath is missing", null);
+          return;
+        }
+        transferQueue.enqueue(
+                call.method.equals("enqueueUpload") ? TransferQueue.Kind.UPLOAD : TransferQueue.Kind.DOWNLOAD,
+                filepath, dropboxpath, unmetered != null && unmetered, charging != null && charging,
+                new AsyncJob.Callback<Integer>() {
+                  @Override
+                  public void done(Integer id) {
+                    Map<String, Object> queueResult = new HashMap<>();
+                    queueResult.put("success", true);
+                    queueResult.put("message", "Transfer queued.");
+                    queueResult.put("id", id);
+                    queueResult.put("key", -id);
+                    result.success(queueResult);
+                  }
+
+                  @Override
+                  public void failed(Exception e) {
+                    e.printStackTrace();
+                    Map<String, Object> queueResult = new HashMap<>();
+                    queueResult.put("success", false);
+                    queueResult.put("message", "Could not queue transfer: " + e.getMessage());
+                    result.success(queueResult);
+                  }
+                });
+        break;
+      }
+
+      case "getQueuedTransfers": {
+        transferQueue.list(queued -> {
+          Map<String, Object> queueResult = new HashMap<>();
+          queueResult.put("success", true);
+          queueResult.put("message", "Queued transfers retrieved.");
+          queueResult.put("transfers", queued);
+          result.success(queueResult);
+        });
+        break;
+      }
+
+      case "deliverQueuedTransfers": {
+        transferQueue.deliver();
+        result.success(null);
+        break;
+      }
+
+      case "cancelQueued": {
+        Integer id = call.argument("id");
+        if (id == null) {
+          result.error("INVALID_ARGUMENT", "Id is missing", null);
+          return;
+        }
+        transferQueue.cancel(id, cancelled -> {
+          Map<String, Object> queueResult = new HashMap<>();
+          queueResult.put("success", cancelled);
+          queueResult.put("message", cancelled ? "Queued transfer cancelled." : "No queued transfer to cancel for this id.");
+          result.success(queueResult);
+        });
+        break;
+      }
+
+      case "cancel":
+      case "pause":
+      case "resume": {
+        Integer key = call.argument("key");
+        if (key == null) {
+          result.error("INVALID_ARGUMENT", "Key is missing", null);
+          return;
+        }
+        // Transfers that already finished, or are in the wrong state, are left alone
+        boolean changed;
+        String done;
+        if (call.method.equals("cancel")) {
+          changed = transfers.cancel(key);
+          done = "Transfer cancelled.";
+        } else if (call.method.equals("pause")) {
+          changed = transfers.pause(key);
+          done = "Transfer paused.";
+        } else {
+          changed = transfers.resume(key);
+          done = "Transfer resumed.";
+        }
+        Map<String, Object> controlResult = new HashMap<>();
+        controlResult.put("success", changed);
+        controlResult.put("message", changed ? done : "No transfer to " + call.method + " for this key.");
+        result.success(controlResult);
+        break;
+      }
+
+      case "downloadToUri": {
+        String uri = call.argument("uri");
+        String dropboxpath = call.argument("dropboxpath");
+        Integer key = call.argument("key");
+        if (key == null || uri == null || dropboxpath == null) {
+          result.error("INVALID_ARGUMENT", "Uri, dropboxpath, or key is missing", null);
+          return;
+        }
+        if (!checkClient(result)) return;
+        (new DownloadTask(channel, key, result)).executeToUri(dropboxpath, uri);
+        break;
+      }
+
+      case "downloadToMemory": {
+        String dropboxpath = call.argument("dropboxpath");
+        Integer key = call.argument("key");
+        Number maxBytes = call.argument("maxBytes");
+        if (key == null || dropboxpath == null) {
+          result.error("INVALID_ARGUMENT", "Dropboxpath or key is missing", null);
+          return;
+        }
+        if (!checkClient(result)) return;
+        (new DownloadTask(channel, key, result)).executeToMemory(dropboxpath,
+                maxBytes != null ? maxBytes.longValue() : DirectDownloader.DEFAULT_MAX_MEMORY_BYTES);
+        break;
+      }
+
+      case "listFolderPage": {
+        String path = call.argument("path");
+        String cursor = call.argument("cursor");
+        Number limit = call.argument("limit");
+        Boolean compact = call.argument("compact");
+        if (path == null && cursor == null) {
+          result.error("INVALID_ARGUMENT", "Path or cursor is missing", null);
+          return;
+        }
+        if (!checkClient(result)) return;  // Ensure client is authenticated
+        (new ListFolderPageTask(result)).execute(path, cursor, limit != null ? limit.longValue() : null,
+                compact != null && compact);
+        break;
+      }
+
+      case "listFolderStream": {
+        String path = call.argument("path");
+        Integer key = call.argument("key");
+        Number limit = call.argument("limit");
+        Integer prefetch = call.argument("prefetch");
+        if (path == null || key == null) {
+          result.error("INVALID_ARGUMENT", "Path or key is missing", null);
+          return;
+        }
+        if (!checkClient(result)) return;  // Ensure client is authenticated
+        ListFolderStream.start(channel, key, path,
+                limit != null ? limit.longValue() : null,
+                prefetch != null ? prefetch : ListFolderStream.DEFAULT_PREFETCH);
+        result.success(null);
+        break;
+      }
+
+      case "listFolderStreamAck": {
+        Integer key = call.argument("key");
+        if (key != null) {
+          ListFolderStream.ack(key);
+        }
+        result.success(null);
+        break;
+      }
+
+      case "listFolderStreamCancel": {
+        Integer key = call.argument("key");
+        if (key != null) {
+          ListFolderStream.cancel(key);
+        }
+        result.success(null);
+        break;
+      }
+
+      case "listFolderDelta": {
+        String path = call.argument("path");
+        Boolean recursive = call.argument("recursive");
+        Boolean reset = call.argument("reset");
+        Boolean compact = call.argument("compact");
+        if (path == null) {
+          result.error("INVALID_ARGUMENT", "Path is missing", null);
+          return;
+        }
+        if (!checkClient(result)) return;  // Ensure client is authenticated
+        (new ListFolderDeltaTask(result)).execute(path, recursive == null || recursive, reset != null && reset,
+                compact != null && compact);
+        break;
+      }
+
+      case "watchFolder": {
+        String path = call.argument("path");
+        Integer key = call.argument("key");
+        Boolean recursive = call.argument("recursive");
+        Integer timeout = call.argument("timeout");
+        if (path == null || key == null) {
+          result.error("INVALID_ARGUMENT", "Path or key is missing", null);
+          return;
+        }
+        if (!checkClient(result)) return;  // Ensure client is authenticated
+        FolderWatcher.start(channel, key, path, recursive == null || recursive,
+                timeout != null ? timeout : FolderWatcher.DEFAULT_TIMEOUT_SECONDS);
+        result.success(null);
+        break;
+      }
+
+      case "unwatchFolder": {
+        Integer key = call.argument("key");
+        if (key != null) {
+          FolderWatcher.stop(key);
+        }
+        result.success(null);
+        break;
+      }
+
+      case "copyBatch":
+      case "moveBatch": {
+        List<String> fromPaths = call.argument("fromPaths");
+        List<String> toPaths = call.argument("toPaths");
+        Boolean autorename = call.argument("autorename");
+        if (fromPaths == null || toPaths == null || fromPaths.size() != toPaths.size()) {
+          result.error("INVALID_ARGUMENT", "FromPaths or toPaths is missing", null);
+          return;
+        }
+        if (!checkClient(result)) return;  // Ensure client is authenticated
+        (new BatchOperationTask(result)).execute(call.method, fromPaths, toPaths, autorename != null && autorename);
+        break;
+      }
+
+      case "deleteBatch": {
+        List<String> paths = call.argument("paths");
+        if (paths == null) {
+          result.error("INVALID_ARGUMENT", "Paths is missing", null);
+          return;
+        }
+        if (!checkClient(result)) return;  // Ensure client is authenticated
+        (new BatchOperationTask(result)).execute(call.method, paths, null, false);
+        break;
+      }
 
       default:
         result.notImplemented();  // Return not implemented if the method is not supported
@@ -343,55 +976,70 @@ public class DropboxPlugin implements FlutterPlugin, MethodCallHandler, Activity
   static class ListFolderTask {
     Result result;
     List<Object> paths = new ArrayList<>();
-    private final ExecutorService executor;
 
     // Constructor to initialize the task
     public ListFolderTask(Result _result) {
       result = _result;
-      executor = Executors.newSingleThreadExecutor();  // Background executor
     }
 
-    // Execute method to start the task
-    public void execute(String folderPath) {
-      executor.submit(() -> {
+    // Execute method to start the task; a compact listing is sent as one encoded byte[]
+    public void execute(String folderPath, boolean compact) {
+      DropboxPlugin.scheduler.submit(TransferScheduler.Kind.METADATA, () -> {
         try {
-          ListFolderResult listFolderResult = DropboxPlugin.client.files().listFolder(folderPath);
-          String pattern = "yyyyMMdd HHmmss";
-          @SuppressLint("SimpleDateFormat") DateFormat df = new SimpleDateFormat(pattern);
-
-          // Loop through folder results
-          while (true) {
-            for (Metadata metadata : listFolderResult.getEntries()) {
-              Map<String, Object> map = new HashMap<>();
-              map.put("name", metadata.getName());
-              map.put("pathLower", metadata.getPathLower());
-              map.put("pathDisplay", metadata.getPathDisplay());
-
-              if (metadata instanceof FileMetadata) {
-                FileMetadata fileMetadata = (FileMetadata) metadata;
-                map.put("filesize", fileMetadata.getSize());
-                map.put("clientModified", df.format(fileMetadata.getClientModified()));
-                map.put("serverModified", df.format(fileMetadata.getServerModified()));
+          List<Metadata> entries = null;
+          boolean fromCache = false;
+
+          // A cached listing only needs the changes since its cursor
+          String cursor = DropboxPlugin.metadataCache.listingCursor(folderPath);
+          if (cursor != null) {
+            try {
+              List<Metadata> changes = new ArrayList<>();
+              ListFolderResult listFolderResult = ListFolderTask.listFolderContinue(cursor);
+              while (true) {
+                changes.addAll(listFolderResult.getEntries());
+                if (!listFolderResult.getHasMore()) break;
+                listFolderResult = ListFolderTask.listFolderContinue(listFolderResult.getCursor());
               }
-
-              paths.add(map);
+              DropboxPlugin.metadataCache.applyDelta(folderPath, listFolderResult.getCursor(), changes);
+              entries = DropboxPlugin.metadataCache.getListing(folderPath);
+              fromCache = entries != null;
+            } catch (ListFolderContinueErrorException e) {
+              // The cursor expired; fall back to a full listing
+              DropboxPlugin.metadataCache.invalidate(folderPath);
             }
+          }
 
-            if (!listFolderResult.getHasMore()) break;
+          if (entries == null) {
+            entries = new ArrayList<>();
+            ListFolderResult listFolderResult = DropboxPlugin.retryPolicy.call(() ->
+                    DropboxPlugin.client.files().listFolder(folderPath));
 
-            listFolderResult = DropboxPlugin.client.files().listFolderContinue(listFolderResult.getCursor());
+            // Loop through folder results
+            while (true) {
+              entries.addAll(listFolderResult.getEntries());
+              if (!listFolderResult.getHasMore()) break;
+              listFolderResult = ListFolderTask.listFolderContinue(listFolderResult.getCursor());
+            }
+            DropboxPlugin.metadataCache.putListing(folderPath, listFolderResult.getCursor(), entries);
           }
 
           // Post success result on the main thread (returns true and paths)
           Map<String, Object> successResult = new HashMap<>();
           successResult.put("success", true);
           successResult.put("message", "Folder listing successful.");
-          successResult.put("paths", paths);
+          if (compact) {
+            successResult.put("listing", ListingCodec.encode(entries));
+          } else {
+            paths.addAll(toMaps(entries));
+            successResult.put("paths", paths);
+          }
+          successResult.put("fromCache", fromCache);
 
           new Handler(Looper.getMainLooper()).post(() -> result.success(successResult));
 
-        } catch (DbxException e) {
+        } catch (DbxException | IOException e) {
           e.printStackTrace();
+          DropboxPlugin.metrics.failed(e);
 
           // Post error result on the main thread (returns false and error message)
           Map<String, Object> errorResult = new HashMap<>();
@@ -402,54 +1050,343 @@ public class DropboxPlugin implements FlutterPlugin, MethodCallHandler, Activity
         }
       });
     }
+
+    // list_folder/continue, retried like every other call
+    static ListFolderResult listFolderContinue(String cursor) throws DbxException, IOException {
+      return DropboxPlugin.retryPolicy.call(() -> DropboxPlugin.client.files().listFolderContinue(cursor));
+    }
+
+    // Date format used for the modified times of listing entries
+    static DateFormat newDateFormat() {
+      String pattern = "yyyyMMdd HHmmss";
+      @SuppressLint("SimpleDateFormat") DateFormat df = new SimpleDateFormat(pattern);
+      return df;
+    }
+
+    // Convert listing entries into the maps sent to Dart
+    static List<Object> toMaps(List<Metadata> entries) {
+      DateFormat df = newDateFormat();
+      List<Object> maps = new ArrayList<>(entries.size());
+      for (Metadata metadata : entries) {
+        maps.add(toMap(metadata, df));
+      }
+      return maps;
+    }
+
+    // Convert one listing entry into the map sent to Dart
+    static Map<String, Object> toMap(Metadata metadata, DateFormat df) {
+      Map<String, Object> map = new HashMap<>();
+      map.put("name", metadata.getName());
+      map.put("pathLower", metadata.getPathLower());
+      map.put("pathDisplay", metadata.getPathDisplay());
+
+      // Lets delta listings tell deleted entries apart from files and folders
+      if (metadata instanceof FileMetadata) {
+        map.put("tag", "file");
+      } else if (metadata instanceof FolderMetadata) {
+        map.put("tag", "folder");
+      } else if (metadata instanceof DeletedMetadata) {
+        map.put("tag", "deleted");
+      }
+
+      if (metadata instanceof FileMetadata) {
+        FileMetadata fileMetadata = (FileMetadata) metadata;
+        map.put("rev", fileMetadata.getRev());
+        map.put("filesize", fileMetadata.getSize());
+        map.put("clientModified", df.format(fileMetadata.getClientModified()));
+        map.put("serverModified", df.format(fileMetadata.getServerModified()));
+      }
+      return map;
+    }
   }
 
+  static class ListFolderPageTask {
+    Result result;
+
+    // Constructor to initialize the task
+    public ListFolderPageTask(Result _result) {
+      result = _result;
+    }
+
+    // Execute method to fetch one page: the first page of a path, or the page after a cursor
+    public void execute(String folderPath, String cursor, Long limit, boolean compact) {
+      DropboxPlugin.scheduler.submit(TransferScheduler.Kind.METADATA, () -> {
+        try {
+          ListFolderResult listFolderResult = cursor != null
+                  ? ListFolderTask.listFolderContinue(cursor)
+                  : DropboxPlugin.retryPolicy.call(() ->
+                          DropboxPlugin.client.files().listFolderBuilder(folderPath).withLimit(limit).start());
+
+          for (Metadata metadata : listFolderResult.getEntries()) {
+            DropboxPlugin.metadataCache.put(metadata);
+          }
+
+          // Post success result on the main thread (returns the page and where to continue)
+          Map<String, Object> successResult = new HashMap<>();
+          successResult.put("success", true);
+          successResult.put("message", "Folder page retrieved.");
+          if (compact) {
+            successResult.put("listing", ListingCodec.encode(listFolderResult.getEntries()));
+          } else {
+            successResult.put("paths", ListFolderTask.toMaps(listFolderResult.getEntries()));
+          }
+          successResult.put("cursor", listFolderResult.getCursor());
+          successResult.put("hasMore", listFolderResult.getHasMore());
+
+          new Handler(Looper.getMainLooper()).post(() -> result.success(successResult));
+
+        } catch (DbxException | IOException e) {
+          e.printStackTrace();
+          DropboxPlugin.metrics.failed(e);
+
+          // Post error result on the main thread (returns false and error message)
+          Map<String, Object> errorResult = new HashMap<>();
+          errorResult.put("success", false);
+          errorResult.put("message", "Failed to list folder: " + e.getMessage());
+
+          new Handler(Looper.getMainLooper()).post(() -> result.success(errorResult));
+        }
+      });
+    }
+  }
+
+
+  static class ListFolderDeltaTask {
+    Result result;
+
+    // Constructor to initialize the task
+    public ListFolderDeltaTask(Result _result) {
+      result = _result;
+    }
+
+    // Execute method to list what changed under a root since the last call
+    public void execute(String root, boolean recursive, boolean reset, boolean compact) {
+      DropboxPlugin.scheduler.submit(TransferScheduler.Kind.METADATA, () -> {
+        try {
+          String cursor = reset ? null : DropboxPlugin.cursorStore.get(root, recursive);
+          boolean fullListing = cursor == null;
+          ListFolderResult listFolderResult = null;
+
+          if (cursor != null) {
+            try {
+              listFolderResult = ListFolderTask.listFolderContinue(cursor);
+            } catch (ListFolderContinueErrorException e) {
+              // An expired cursor means the app has to start over from a full listing
+              if (!e.errorValue.isReset()) throw e;
+              fullListing = true;
+            }
+          }
+          if (listFolderResult == null) {
+            listFolderResult = DropboxPlugin.retryPolicy.call(() ->
+                    DropboxPlugin.client.files().listFolderBuilder(root)
+                            .withRecursive(recursive)
+                            .start());
+          }
+
+          List<Metadata> entries = new ArrayList<>();
+          while (true) {
+            for (Metadata metadata : listFolderResult.getEntries()) {
+              entries.add(metadata);
+              // Deltas keep the metadata cache current, deleted entries included
+              DropboxPlugin.metadataCache.put(metadata);
+            }
+            if (!listFolderResult.getHasMore()) break;
+            listFolderResult = ListFolderTask.listFolderContinue(listFolderResult.getCursor());
+          }
+          DropboxPlugin.cursorStore.put(root, recursive, listFolderResult.getCursor());
+
+          // Post success result on the main thread
+          Map<String, Object> successResult = new HashMap<>();
+          successResult.put("success", true);
+          successResult.put("message", "Folder delta retrieved.");
+          successResult.put("reset", fullListing);
+          if (compact) {
+            successResult.put("listing", ListingCodec.encode(entries));
+          } else {
+            successResult.put("entries", ListFolderTask.toMaps(entries));
+          }
+          successResult.put("cursor", listFolderResult.getCursor());
+
+          new Handler(Looper.getMainLooper()).post(() -> result.success(successResult));
+
+        } catch (DbxException | IOException e) {
+          e.printStackTrace();
+          DropboxPlugin.metrics.failed(e);
+
+          // Post error result on the main thread (returns false and error message)
+          Map<String, Object> errorResult = new HashMap<>();
+          errorResult.put("success", false);
+          errorResult.put("message", "Failed to list folder changes: " + e.getMessage());
+
+          new Handler(Looper.getMainLooper()).post(() -> result.success(errorResult));
+        }
+      });
+    }
+  }
+
+
+  static class BatchOperationTask {
+    Result result;
+
+    // Constructor to initialize the task
+    public BatchOperationTask(Result _result) {
+      result = _result;
+    }
+
+    // Execute method to copy, move or delete a list of paths
+    public void execute(String operation, List<String> paths, List<String> toPaths, boolean autorename) {
+      DropboxPlugin.scheduler.submit(TransferScheduler.Kind.METADATA, () -> {
+        // Replies from the worker that finishes the last group; none is held while Dropbox works
+        AsyncJob.Callback<List<Map<String, Object>>> reply = new AsyncJob.Callback<List<Map<String, Object>>>() {
+          @Override
+          public void done(List<Map<String, Object>> entries) {
+            int failed = 0;
+            for (Map<String, Object> entry : entries) {
+              if (!Boolean.TRUE.equals(entry.get("success"))) {
+                failed++;
+              }
+            }
+
+            // One reply for the whole batch, with the outcome of every entry
+            Map<String, Object> batchResult = new HashMap<>();
+            batchResult.put("success", failed == 0);
+            batchResult.put("message", failed == 0
+                    ? "Batch completed successfully."
+                    : failed + " of " + entries.size() + " entries failed.");
+            batchResult.put("entries", entries);
+            new Handler(Looper.getMainLooper()).post(() -> result.success(batchResult));
+          }
+
+          @Override
+          public void failed(Exception e) {
+            e.printStackTrace();
+            DropboxPlugin.metrics.failed(e);
+
+            // Error response
+            Map<String, Object> errorResult = new HashMap<>();
+            errorResult.put("success", false);
+            errorResult.put("message", "Batch failed: " + e.getMessage());
+            new Handler(Looper.getMainLooper()).post(() -> result.success(errorResult));
+          }
+        };
+
+        BatchOperations operations = new BatchOperations(DropboxPlugin.client, DropboxPlugin.scheduler);
+        if (operation.equals("copyBatch")) {
+          operations.copy(paths, toPaths, autorename, reply);
+        } else if (operation.equals("moveBatch")) {
+          operations.move(paths, toPaths, autorename, reply);
+        } else {
+          operations.delete(paths, reply);
+        }
+      });
+    }
+  }
 
   static class UploadTask {
     Result result;
     int key;
     MethodChannel channel;
-    private final ExecutorService executor;
+    ChunkedUploader.Checkpoint checkpoint;  // Set for queued uploads, whose sessions are journaled
 
     // Constructor to initialize the task
     public UploadTask(MethodChannel _channel, int _key, Result _result) {
       channel = _channel;
       key = _key;
       result = _result;
-      executor = Executors.newSingleThreadExecutor();  // Background executor
     }
 
-    // Execute method to start the task
-    public void execute(String localPath, String remotePath) {
-      executor.submit(() -> {
+    // Execute method to start the task; the source is a local path or, if that is null, a content
+    // URI. A sync upload skips files whose content hash matches.
+    public void execute(String localPath, String uri, String remotePath, boolean sync) {
+      TransferRegistry.Transfer transfer = DropboxPlugin.transfers.register(key, TransferScheduler.Kind.TRANSFER);
+      DropboxPlugin.transfers.start(transfer, () -> {
         try {
-          InputStream in = null;
-          if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O) {
-            in = Files.newInputStream(Paths.get(localPath));
-          }
-          UploadBuilder uploadBuilder = DropboxPlugin.client.files()
-                  .uploadBuilder(remotePath)
-                  .withMode(WriteMode.OVERWRITE)
-                  .withAutorename(true)
-                  .withMute(false);
-
-          uploadBuilder.uploadAndFinish(in, bytesWritten -> {
-            new Handler(Looper.getMainLooper()).post(() -> {
-              List<Long> ret = new ArrayList<>();
-              ret.add((long) key);
-              ret.add(bytesWritten);
-              channel.invokeMethod("progress", ret, null);
-            });
-          });
+          // Paused or cancelled while it was queued
+          DropboxPlugin.transfers.checkStopped();
+
+          File file = localPath != null ? new File(localPath) : null;
+          try (FileInputStream source = file != null
+                  ? new FileInputStream(file)
+                  : UriFiles.openInput(DropboxPlugin.appContext, uri)) {
+            FileChannel channel = source.getChannel();
+            long fileSize = channel.size();
+            IOUtil.ProgressListener listener = bytesWritten -> DropboxPlugin.progress.update(key, bytesWritten, fileSize);
+
+            WriteMode mode = WriteMode.OVERWRITE;
+            if (sync) {
+              // Only files have a modification time to cache their hash by
+              String contentHash = file != null ? localContentHash(file) : ContentHash.of(channel, DropboxPlugin.scheduler);
+              FileMetadata remote = remoteFile(remotePath);
+              if (remote != null && contentHash.equals(remote.getContentHash())) {
+                DropboxPlugin.metadataCache.put(remote);
+                DropboxPlugin.progress.complete(key, fileSize, fileSize);
+                DropboxPlugin.transfers.finished(transfer);
+
+                Map<String, Object> skippedResult = new HashMap<>();
+                skippedResult.put("success", true);
+                skippedResult.put("skipped", true);
+                skippedResult.put("message", "File is unchanged; upload skipped.");
+                new Handler(Looper.getMainLooper()).post(() -> result.success(skippedResult));
+                return;
+              }
+              // Only replace the revision that was compared; a newer one becomes a conflicted copy
+              mode = remote != null ? WriteMode.update(remote.getRev()) : WriteMode.ADD;
+            }
+            WriteMode writeMode = mode;
+
+            if (fileSize >= DropboxPlugin.chunkedUploadThreshold) {
+              // Large file: upload chunks in parallel through an upload session
+              CommitInfo commit = CommitInfo.newBuilder(remotePath)
+                      .withMode(writeMode)
+                      .withAutorename(true)
+                      .withMute(false)
+                      .build();
+              FileMetadata uploaded = new ChunkedUploader(DropboxPlugin.client, DropboxPlugin.scheduler, DropboxPlugin.uploadChunkSize)
+                      .upload(channel, commit, checkpoint, listener);
+              DropboxPlugin.metadataCache.put(uploaded);
+            } else {
+              // Every attempt reads the file again from the start, with positional reads. Not
+              // retried once the server may have stored it: autorename would add a duplicate
+              FileMetadata uploaded = DropboxPlugin.retryPolicy.callOnce(() -> {
+                try (InputStream in = new ChunkedUploader.ChannelRangeInputStream(channel, 0, fileSize)) {
+                  UploadBuilder uploadBuilder = DropboxPlugin.client.files()
+                          .uploadBuilder(remotePath)
+                          .withMode(writeMode)
+                          .withAutorename(true)
+                          .withMute(false);
+                  return uploadBuilder.uploadAndFinish(in, listener);
+                }
+              });
+              DropboxPlugin.metadataCache.put(uploaded);
+            }
 
-          // Success response
-          Map<String, Object> successResult = new HashMap<>();
-          successResult.put("success", true);
-          successResult.put("message", "Upload completed successfully.");
-          new Handler(Looper.getMainLooper()).post(() -> result.success(successResult));
+            // The 100% event always goes out, whatever the throttling settings
+            DropboxPlugin.progress.complete(key, fileSize, fileSize);
+            DropboxPlugin.metrics.transferred(fileSize);
+            DropboxPlugin.transfers.finished(transfer);
 
+            // Success response
+            Map<String, Object> successResult = new HashMap<>();
+            successResult.put("success", true);
+            successResult.put("message", "Upload completed successfully.");
+            new Handler(Looper.getMainLooper()).post(() -> result.success(successResult));
+          }
         } catch (DbxException | IOException e) {
+          // Paused: the worker is given back and the upload starts over on resume
+          if (DropboxPlugin.transfers.park(transfer)) return;
+          DropboxPlugin.transfers.finished(transfer);
+          DropboxPlugin.progress.remove(key);
+
+          if (transfer.isCancelled()) {
+            Map<String, Object> cancelResult = new HashMap<>();
+            cancelResult.put("success", false);
+            cancelResult.put("cancelled", true);
+            cancelResult.put("message", "Upload cancelled.");
+            new Handler(Looper.getMainLooper()).post(() -> result.success(cancelResult));
+            return;
+          }
           e.printStackTrace();
+          DropboxPlugin.metrics.failed(e);
 
           // Error response
           Map<String, Object> errorResult = new HashMap<>();
@@ -459,60 +1396,310 @@ public class DropboxPlugin implements FlutterPlugin, MethodCallHandler, Activity
         }
       });
     }
+
+    // @return the cached content hash of a local file, hashing it if it changed since
+    static String localContentHash(File file) throws DbxException, IOException {
+      String hash = DropboxPlugin.hashCache.get(file);
+      if (hash == null) {
+        hash = ContentHash.of(file, DropboxPlugin.scheduler);
+        DropboxPlugin.hashCache.put(file, hash);
+        // Saved once for many uploads; the whole file is rewritten every time
+        DropboxPlugin.scheduleHashCacheSave();
+      }
+      return hash;
+    }
+
+    // @return the current metadata of a remote file, or null when there is no file at the path
+    static FileMetadata remoteFile(String remotePath) throws DbxException, IOException {
+      try {
+        Metadata metadata = DropboxPlugin.retryPolicy.call(() -> DropboxPlugin.client.files().getMetadata(remotePath));
+        return metadata instanceof FileMetadata ? (FileMetadata) metadata : null;
+      } catch (GetMetadataErrorException e) {
+        if (e.errorValue.isPath() && e.errorValue.getPathValue().isNotFound()) {
+          return null;
+        }
+        throw e;
+      }
+    }
+  }
+
+  static class UploadBatchTask {
+    Result result;
+    int key;
+    MethodChannel channel;
+
+    // Constructor to initialize the task
+    public UploadBatchTask(MethodChannel _channel, int _key, Result _result) {
+      channel = _channel;
+      key = _key;
+      result = _result;
+    }
+
+    // Execute method to start the task
+    public void execute(List<String> localPaths, List<String> remotePaths) {
+      TransferRegistry.Transfer transfer = DropboxPlugin.transfers.register(key, TransferScheduler.Kind.TRANSFER);
+      DropboxPlugin.transfers.start(transfer, () -> {
+        try {
+          // Paused or cancelled while it was queued
+          DropboxPlugin.transfers.checkStopped();
+
+          // Progress is reported for the batch as a whole
+          long totalSize = 0;
+          for (String localPath : localPaths) {
+            totalSize += new File(localPath).length();
+          }
+          long batchSize = totalSize;
+
+          List<Map<String, Object>> files = new BatchUploader(DropboxPlugin.client, DropboxPlugin.scheduler,
+                  DropboxPlugin.chunkedUploadThreshold, DropboxPlugin.uploadChunkSize)
+                  .upload(localPaths, remotePaths, bytes -> DropboxPlugin.progress.update(key, bytes, batchSize));
+
+          int failed = 0;
+          for (Map<String, Object> file : files) {
+            if (!Boolean.TRUE.equals(file.get("success"))) {
+              failed++;
+            }
+          }
+          DropboxPlugin.progress.complete(key, batchSize, batchSize);
+          DropboxPlugin.metrics.transferred(batchSize);
+          DropboxPlugin.transfers.finished(transfer);
+
+          // One reply for the whole batch, with the outcome of every file
+          Map<String, Object> batchResult = new HashMap<>();
+          batchResult.put("success", failed == 0);
+          batchResult.put("message", failed == 0
+                  ? "Batch upload completed successfully."
+                  : failed + " of " + files.size() + " files failed to upload.");
+          batchResult.put("files", files);
+          new Handler(Looper.getMainLooper()).post(() -> result.success(batchResult));
+
+        } catch (IOException e) {
+          // Paused: nothing is committed yet, so the batch starts over on resume
+          if (DropboxPlugin.transfers.park(transfer)) return;
+          DropboxPlugin.transfers.finished(transfer);
+          DropboxPlugin.progress.remove(key);
+
+          if (transfer.isCancelled()) {
+            Map<String, Object> cancelResult = new HashMap<>();
+            cancelResult.put("success", false);
+            cancelResult.put("cancelled", true);
+            cancelResult.put("message", "Batch upload cancelled.");
+            new Handler(Looper.getMainLooper()).post(() -> result.success(cancelResult));
+            return;
+          }
+          e.printStackTrace();
+          DropboxPlugin.metrics.failed(e);
+
+          // Error response
+          Map<String, Object> errorResult = new HashMap<>();
+          errorResult.put("success", false);
+          errorResult.put("message", "Batch upload failed: " + e.getMessage());
+          new Handler(Looper.getMainLooper()).post(() -> result.success(errorResult));
+        }
+      });
+    }
+  }
+
+  static class SyncFolderTask {
+    Result result;
+    int key;
+    MethodChannel channel;
+
+    // Constructor to initialize the task
+    public SyncFolderTask(MethodChannel _channel, int _key, Result _result) {
+      channel = _channel;
+      key = _key;
+      result = _result;
+    }
+
+    // Execute method to mirror a local directory into a Dropbox folder or the other way round; a
+    // dry run only reports what would change
+    public void execute(String localDir, String remoteDir, FolderSync.Direction direction, boolean delete, boolean dryRun) {
+      TransferRegistry.Transfer transfer = DropboxPlugin.transfers.register(key, TransferScheduler.Kind.TRANSFER);
+      DropboxPlugin.transfers.start(transfer, () -> {
+        FolderSync.Plan plan = null;
+        try {
+          // Paused or cancelled while it was queued
+          DropboxPlugin.transfers.checkStopped();
+
+          FolderSync sync = new FolderSync(DropboxPlugin.client, DropboxPlugin.scheduler,
+                  DropboxPlugin.chunkedUploadThreshold, DropboxPlugin.uploadChunkSize);
+          // A resumed sync compares the trees again, so whatever finished before the pause is skipped
+          plan = sync.plan(new File(localDir), remoteDir, direction, delete);
+          long totalSize = plan.bytes;
+
+          List<Map<String, Object>> entries = dryRun
+                  ? plan.toMaps()
+                  : sync.run(plan, bytes -> DropboxPlugin.progress.update(key, bytes, totalSize));
+
+          int failed = 0;
+          for (Map<String, Object> entry : entries) {
+            if (!dryRun && !Boolean.TRUE.equals(entry.get("success"))) {
+              failed++;
+            }
+          }
+          if (!dryRun) {
+            DropboxPlugin.progress.complete(key, totalSize, totalSize);
+            DropboxPlugin.metrics.transferred(totalSize);
+          }
+          DropboxPlugin.transfers.finished(transfer);
+
+          // One reply for the whole sync, with the outcome of every change
+          Map<String, Object> syncResult = new HashMap<>();
+          syncResult.put("success", failed == 0);
+          syncResult.put("message", dryRun
+                  ? entries.size() + " changes planned."
+                  : failed == 0
+                  ? "Sync completed successfully."
+                  : failed + " of " + entries.size() + " changes failed.");
+          syncResult.put("entries", entries);
+          syncResult.put("unchanged", plan.unchanged);
+          syncResult.put("bytes", totalSize);
+          new Handler(Looper.getMainLooper()).post(() -> result.success(syncResult));
+
+        } catch (DbxException | IOException e) {
+          // Paused: the sync starts over on resume and finds what is already done
+          if (DropboxPlugin.transfers.park(transfer)) return;
+          DropboxPlugin.transfers.finished(transfer);
+          DropboxPlugin.progress.remove(key);
+
+          if (transfer.isCancelled()) {
+            if (plan != null) {
+              plan.discardDownloads();
+            }
+            Map<String, Object> cancelResult = new HashMap<>();
+            cancelResult.put("success", false);
+            cancelResult.put("cancelled", true);
+            cancelResult.put("message", "Sync cancelled.");
+            new Handler(Looper.getMainLooper()).post(() -> result.success(cancelResult));
+            return;
+          }
+          e.printStackTrace();
+          DropboxPlugin.metrics.failed(e);
+
+          // Error response
+          Map<String, Object> errorResult = new HashMap<>();
+          errorResult.put("success", false);
+          errorResult.put("message", "Sync failed: " + e.getMessage());
+          new Handler(Looper.getMainLooper()).post(() -> result.success(errorResult));
+        }
+      });
+    }
   }
 
-  class DownloadTask {
+  static class DownloadTask {
     Result result;
     int key;
     long fileSize;
     MethodChannel channel;
     List<Object> paths = new ArrayList<>();
-    private final ExecutorService executor;
 
     // Constructor to initialize the task
     public DownloadTask(MethodChannel _channel, int _key, Result _result) {
       channel = _channel;
       key = _key;
       result = _result;
-      executor = Executors.newSingleThreadExecutor();  // Background executor
     }
 
     // Execute method to start the task
     public void execute(String dropboxPath, String localPath) {
-      executor.submit(() -> {
+      start(dropboxPath, localPath, null, 0);
+    }
+
+    // Downloads into a content URI instead of a local path
+    public void executeToUri(String dropboxPath, String uri) {
+      start(dropboxPath, null, uri, 0);
+    }
+
+    // Downloads into memory; the bytes go back to Dart with the result
+    public void executeToMemory(String dropboxPath, long maxBytes) {
+      start(dropboxPath, null, null, maxBytes);
+    }
+
+    private void start(String dropboxPath, String localPath, String uri, long maxMemoryBytes) {
+      TransferRegistry.Transfer transfer = DropboxPlugin.transfers.register(key, TransferScheduler.Kind.TRANSFER);
+      DropboxPlugin.transfers.start(transfer, () -> {
         try {
-          fileSize = 0;
-          Metadata metadata = DropboxPlugin.client.files().getMetadata(dropboxPath);
+          // Paused or cancelled while it was queued
+          DropboxPlugin.transfers.checkStopped();
 
-          if (metadata instanceof FileMetadata) {
-            FileMetadata fileMetadata = (FileMetadata) metadata;
-            fileSize = fileMetadata.getSize();
+          fileSize = 0;
+          boolean segmented = localPath != null && DropboxPlugin.downloadSegments > 1;
+
+          // A sequential download to a path checks the revision it gets, so cached metadata is good
+          // enough; every other target downloads the exact revision it was given
+          Metadata metadata = segmented || localPath == null ? null : DropboxPlugin.metadataCache.get(dropboxPath);
+          if (!(metadata instanceof FileMetadata)) {
+            metadata = DropboxPlugin.retryPolicy.call(() -> DropboxPlugin.client.files().getMetadata(dropboxPath));
+            DropboxPlugin.metadataCache.put(metadata);
           }
 
-          DbxDownloader<FileMetadata> downloader = DropboxPlugin.client.files().download(dropboxPath);
-          OutputStream out = null;
-          if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O) {
-            out = Files.newOutputStream(Paths.get(localPath));
+          if (!(metadata instanceof FileMetadata)) {
+            throw new IOException(dropboxPath + " is not a file");
+          }
+          FileMetadata fileMetadata = (FileMetadata) metadata;
+          fileSize = fileMetadata.getSize();
+
+          IOUtil.ProgressListener listener = bytesRead -> DropboxPlugin.progress.update(key, bytesRead, fileSize);
+
+          byte[] bytes = null;
+          if (localPath == null) {
+            // Memory or URI target: no partial file to resume from, so a retry starts over
+            DirectDownloader direct = new DirectDownloader(DropboxPlugin.client);
+            if (uri != null) {
+              DropboxPlugin.retryPolicy.call(() -> {
+                direct.toUri(DropboxPlugin.appContext, dropboxPath, fileMetadata, uri, listener);
+                return null;
+              });
+            } else {
+              bytes = DropboxPlugin.retryPolicy.call(() -> direct.toMemory(dropboxPath, fileMetadata, maxMemoryBytes, listener));
+            }
+          } else if (segmented && fileSize >= DropboxPlugin.segmentedDownloadThreshold) {
+            // Large file: fetch several ranges at once into a preallocated file
+            new SegmentedDownloader(DropboxPlugin.client, DropboxPlugin.scheduler, DropboxPlugin.downloadSegments)
+                    .download(dropboxPath, fileMetadata, new File(localPath), listener);
+          } else {
+            // Writes to <localPath>.part, so a retry picks up where the failed attempt stopped
+            FileMetadata downloaded = DropboxPlugin.retryPolicy.call(() -> new ResumableDownloader(DropboxPlugin.client)
+                    .download(dropboxPath, fileMetadata, new File(localPath), listener));
+            DropboxPlugin.metadataCache.put(downloaded);
+            fileSize = downloaded.getSize();
           }
 
-          downloader.download(out, bytesRead -> {
-            new Handler(Looper.getMainLooper()).post(() -> {
-              List<Long> ret = new ArrayList<>();
-              ret.add((long) key);
-              ret.add(bytesRead);
-              ret.add(fileSize);
-              channel.invokeMethod("progress", ret, null);
-            });
-          });
+          // The 100% event always goes out, whatever the throttling settings
+          DropboxPlugin.progress.complete(key, fileSize, fileSize);
+          DropboxPlugin.metrics.transferred(fileSize);
+          DropboxPlugin.transfers.finished(transfer);
 
           // Success response
           Map<String, Object> successResult = new HashMap<>();
           successResult.put("success", true);
           successResult.put("message", "Download completed successfully.");
+          if (bytes != null) {
+            // Arrives in Dart as a Uint8List
+            successResult.put("bytes", bytes);
+          }
           new Handler(Looper.getMainLooper()).post(() -> result.success(successResult));
 
         } catch (DbxException | IOException e) {
+          // Paused: <localPath>.part and its journal stay, so the download continues on resume
+          if (DropboxPlugin.transfers.park(transfer)) return;
+          DropboxPlugin.transfers.finished(transfer);
+          DropboxPlugin.progress.remove(key);
+
+          if (transfer.isCancelled()) {
+            if (localPath != null) {
+              ResumableDownloader.discard(new File(localPath));
+            }
+            Map<String, Object> cancelResult = new HashMap<>();
+            cancelResult.put("success", false);
+            cancelResult.put("cancelled", true);
+            cancelResult.put("message", "Download cancelled.");
+            new Handler(Looper.getMainLooper()).post(() -> result.success(cancelResult));
+            return;
+          }
           e.printStackTrace();
+          DropboxPlugin.metrics.failed(e);
 
           // Error response
           Map<String, Object> errorResult = new HashMap<>();
@@ -0,0 +1,540 @@
+package com.mix1009.dropbox;
+
+import com.dropbox.core.DbxException;
+import com.dropbox.core.util.IOUtil;
+import com.dropbox.core.v2.DbxClientV2;
+import com.dropbox.core.v2.files.FileMetadata;
+import com.dropbox.core.v2.files.FolderMetadata;
+import com.dropbox.core.v2.files.ListFolderErrorException;
+import com.dropbox.core.v2.files.ListFolderResult;
+import com.dropbox.core.v2.files.Metadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Mirrors a local directory tree into a Dropbox folder, or the other way round.
+ *
+ * Both trees are listed in full, the remote one with a single recursive listing, and compared
+ * by path, size and {@code content_hash}. Local hashes come from the {@link HashCache}, so only
+ * files that changed since the last sync are read. The difference becomes a {@link Plan} of
+ * deletes, folders to create and files to transfer, which is then run in that order: remote
+ * deletes with {@code delete_batch}, uploads through the {@link BatchUploader} and downloads in
+ * parallel on {@link TransferScheduler.Kind#PART} slots. Progress is reported for all transfers
+ * together.
+ */
+class FolderSync {
+
+  enum Direction { UPLOAD, DOWNLOAD }
+
+  private final DbxClientV2 client;
+  private final TransferScheduler scheduler;
+  private final long chunkedUploadThreshold;
+  private final long chunkSize;
+
+  /**
+   * @param client                 The authenticated Dropbox client.
+   * @param scheduler              The scheduler that runs the hashing and the transfers.
+   * @param chunkedUploadThreshold Files of at least this size are uploaded in chunks.
+   * @param chunkSize              The chunk size for those files.
+   */
+  FolderSync(DbxClientV2 client, TransferScheduler scheduler, long chunkedUploadThreshold, long chunkSize) {
+    this.client = client;
+    this.scheduler = scheduler;
+    this.chunkedUploadThreshold = chunkedUploadThreshold;
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * Compares both trees and decides what has to change. Nothing is modified yet.
+   *
+   * @param localDir  The local directory.
+   * @param remoteDir The Dropbox folder; "" or "/" is the root.
+   * @param direction Which side is copied onto the other.
+   * @param delete    Whether entries that only exist on the target side are deleted. An entry
+   *                  of the wrong type (a file where a folder has to go) is always replaced.
+   */
+  Plan plan(File localDir, String remoteDir, Direction direction, boolean delete)
+          throws DbxException, IOException {
+    String root = remoteDir.endsWith("/") ? remoteDir.substring(0, remoteDir.length() - 1) : remoteDir;
+    if (direction == Direction.UPLOAD && !localDir.isDirectory()) {
+      throw new IOException(localDir + " is not a directory");
+    }
+
+    // Both sides keyed by their lower-case path relative to the root, which is how Dropbox
+    // tells paths apart; parents sort before their children
+    TreeMap<String, File> local = listLocal(localDir);
+    TreeMap<String, Metadata> remote = listRemote(root);
+    return compare(localDir, root, local, remote, direction, delete);
+  }
+
+  /**
+   * The comparison half of {@link #plan}, for trees that were already listed.
+   *
+   * @param root The Dropbox folder without a trailing slash.
+   */
+  Plan compare(File localDir, String root, TreeMap<String, File> local, TreeMap<String, Metadata> remote,
+               Direction direction, boolean delete) throws DbxException, IOException {
+    Plan plan = new Plan();
+    try {
+      if (direction == Direction.UPLOAD) {
+        planUpload(plan, root, local, remote, delete);
+      } else {
+        planDownload(plan, root, localDir, local, remote, delete);
+      }
+    } finally {
+      // Hashes computed while comparing are kept even if the plan was not finished
+      DropboxPlugin.hashCache.save();
+    }
+    return plan;
+  }
+
+  /**
+   * Carries out a plan. Blocks until every entry has an outcome; an entry that fails does not
+   * fail the others.
+   *
+   * @param listener Receives the total number of bytes transferred so far, over all files.
+   * @return one result map per deleted, created or transferred entry.
+   */
+  List<Map<String, Object>> run(Plan plan, IOUtil.ProgressListener listener) throws InterruptedIOException {
+    List<Map<String, Object>> results = new ArrayList<>();
+
+    // Deletes go first, so nothing that is in the way of a transfer is left
+    if (!plan.remoteDeletes.isEmpty()) {
+      for (Map<String, Object> deleted : new BatchOperations(client, scheduler).deleteAndWait(plan.remoteDeletes)) {
+        Map<String, Object> entry = entry("delete", null, (String) deleted.get("path"));
+        entry.put("success", deleted.get("success"));
+        entry.put("message", deleted.get("message"));
+        results.add(entry);
+      }
+    }
+    for (File file : plan.localDeletes) {
+      Map<String, Object> entry = entry("delete", file, null);
+      boolean deleted = deleteTree(file);
+      entry.put("success", deleted);
+      entry.put("message", deleted ? "Deleted." : "Delete failed.");
+      results.add(entry);
+    }
+
+    for (File folder : plan.localFolders) {
+      Map<String, Object> entry = entry("createFolder", folder, null);
+      boolean created = folder.mkdirs() || folder.isDirectory();
+      entry.put("success", created);
+      entry.put("message", created ? "Folder created." : "Could not create folder.");
+      results.add(entry);
+    }
+    createRemoteFolders(plan.remoteFolders, results);
+
+    // A plan has uploads or downloads, never both, so each reports the total on its own
+    if (!plan.uploads.isEmpty()) {
+      List<String> localPaths = new ArrayList<>(plan.uploads.size());
+      List<String> remotePaths = new ArrayList<>(plan.uploads.size());
+      for (Item item : plan.uploads) {
+        localPaths.add(item.local.getPath());
+        remotePaths.add(item.remotePath);
+      }
+      List<Map<String, Object>> uploaded = new BatchUploader(client, scheduler, chunkedUploadThreshold, chunkSize)
+              .upload(localPaths, remotePaths, listener);
+      for (Map<String, Object> file : uploaded) {
+        file.put("action", "upload");
+        results.add(file);
+      }
+    }
+    if (!plan.downloads.isEmpty()) {
+      download(plan.downloads, listener, results);
+    }
+
+    DropboxPlugin.hashCache.save();
+    return results;
+  }
+
+  private void planUpload(Plan plan, String root, TreeMap<String, File> local, TreeMap<String, Metadata> remote,
+                          boolean delete) throws DbxException, IOException {
+    Set<String> deleted = new HashSet<>();
+    List<String> missingFolders = new ArrayList<>();
+
+    for (Map.Entry<String, File> entry : local.entrySet()) {
+      File file = entry.getValue();
+      Metadata existing = remote.get(entry.getKey());
+      String remotePath = root + "/" + relativePath(entry.getValue(), entry.getKey(), local);
+
+      if (file.isDirectory()) {
+        if (existing instanceof FolderMetadata) continue;
+        if (existing != null) {
+          plan.remoteDeletes.add(existing.getPathLower());
+          deleted.add(entry.getKey());
+        }
+        missingFolders.add(entry.getKey());
+      } else {
+        if (existing instanceof FileMetadata && isUnchanged(file, (FileMetadata) existing)) {
+          plan.unchanged++;
+          continue;
+        }
+        if (existing instanceof FolderMetadata) {
+          plan.remoteDeletes.add(existing.getPathLower());
+          deleted.add(entry.getKey());
+        }
+        plan.uploads.add(new Item(file, remotePath, null));
+        plan.bytes += file.length();
+      }
+    }
+
+    if (delete) {
+      for (Map.Entry<String, Metadata> entry : remote.entrySet()) {
+        if (local.containsKey(entry.getKey()) || isUnder(entry.getKey(), deleted)) continue;
+        plan.remoteDeletes.add(entry.getValue().getPathLower());
+        deleted.add(entry.getKey());
+      }
+    }
+
+    // Uploads create their parent folders, so only folders that stay empty are created
+    Set<String> filled = new HashSet<>();
+    for (Item item : plan.uploads) {
+      addParents(relativeKey(item.remotePath, root), filled);
+    }
+    for (String key : missingFolders) {
+      addParents(key, filled);
+    }
+    for (String key : missingFolders) {
+      if (!filled.contains(key)) {
+        plan.remoteFolders.add(root + "/" + relativePath(local.get(key), key, local));
+      }
+    }
+  }
+
+  private void planDownload(Plan plan, String root, File localDir, TreeMap<String, File> local,
+                            TreeMap<String, Metadata> remote, boolean delete) throws DbxException, IOException {
+    Set<String> deleted = new HashSet<>();
+
+    for (Map.Entry<String, Metadata> entry : remote.entrySet()) {
+      Metadata metadata = entry.getValue();
+      File existing = local.get(entry.getKey());
+      // Keep the case of a local file that is already there, otherwise take Dropbox's
+      File target = existing != null ? existing : new File(localDir, displayPath(metadata, root));
+
+      if (metadata instanceof FolderMetadata) {
+        if (existing != null && existing.isDirectory()) continue;
+        if (existing != null) {
+          plan.localDeletes.add(existing);
+          deleted.add(entry.getKey());
+        }
+        plan.localFolders.add(target);
+      } else if (metadata instanceof FileMetadata) {
+        FileMetadata file = (FileMetadata) metadata;
+        if (existing != null && existing.isFile() && isUnchanged(existing, file)) {
+          plan.unchanged++;
+          continue;
+        }
+        if (existing != null && existing.isDirectory()) {
+          plan.localDeletes.add(existing);
+          deleted.add(entry.getKey());
+        }
+        plan.downloads.add(new Item(target, file.getPathLower(), file));
+        plan.bytes += file.getSize();
+      }
+    }
+
+    if (delete) {
+      for (Map.Entry<String, File> entry : local.entrySet()) {
+        if (remote.containsKey(entry.getKey()) || isUnder(entry.getKey(), deleted)) continue;
+        plan.localDeletes.add(entry.getValue());
+        deleted.add(entry.getKey());
+      }
+    }
+
+    // Downloads create their parent folders, so only folders that stay empty are created
+    Set<String> filled = new HashSet<>();
+    String base = localDir.getPath();
+    for (Item item : plan.downloads) {
+      addParents(relativeKey(item.local.getPath(), base), filled);
+    }
+    for (File folder : plan.localFolders) {
+      addParents(relativeKey(folder.getPath(), base), filled);
+    }
+    List<File> leaves = new ArrayList<>();
+    for (File folder : plan.localFolders) {
+      if (!filled.contains(relativeKey(folder.getPath(), base))) {
+        leaves.add(folder);
+      }
+    }
+    plan.localFolders.clear();
+    plan.localFolders.addAll(leaves);
+  }
+
+  private void createRemoteFolders(List<String> paths, List<Map<String, Object>> results)
+          throws InterruptedIOException {
+    List<TransferScheduler.Part> parts = new ArrayList<>();
+    List<Map<String, Object>> entries = new ArrayList<>();
+    for (String path : paths) {
+      Map<String, Object> entry = entry("createFolder", null, path);
+      entries.add(entry);
+      // Each part records its own failure, so one bad folder never cancels the rest
+      parts.add(() -> {
+        try {
+          DropboxPlugin.retryPolicy.callOnce(() -> client.files().createFolderV2(path));
+          entry.put("success", true);
+          entry.put("message", "Folder created.");
+        } catch (DbxException | IOException e) {
+          e.printStackTrace();
+          DropboxPlugin.metrics.failed(e);
+          entry.put("success", false);
+          entry.put("message", "Could not create folder: " + e.getMessage());
+        }
+      });
+    }
+    runParts(parts);
+    results.addAll(entries);
+  }
+
+  private void download(List<Item> items, IOUtil.ProgressListener listener, List<Map<String, Object>> results)
+          throws InterruptedIOException {
+    AtomicLong transferred = new AtomicLong();
+    List<TransferScheduler.Part> parts = new ArrayList<>();
+    List<Map<String, Object>> entries = new ArrayList<>();
+    for (Item item : items) {
+      Map<String, Object> entry = entry("download", item.local, item.metadata.getPathDisplay());
+      entries.add(entry);
+      parts.add(() -> {
+        long[] counted = new long[1];
+        try {
+          File parent = item.local.getParentFile();
+          if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent);
+          }
+          // Resumes from <file>.part, so a retry or a resumed sync continues where it stopped
+          FileMetadata downloaded = DropboxPlugin.retryPolicy.call(() -> new ResumableDownloader(client)
+                  .download(item.remotePath, item.metadata, item.local, bytes -> {
+                    listener.onProgress(transferred.addAndGet(bytes - counted[0]));
+                    counted[0] = bytes;
+                  }));
+          DropboxPlugin.metadataCache.put(downloaded);
+          // The download was checked against this hash, so the next sync need not read the file
+          DropboxPlugin.hashCache.put(item.local, downloaded.getContentHash());
+          entry.put("success", true);
+          entry.put("message", "Download completed successfully.");
+        } catch (DbxException | IOException e) {
+          e.printStackTrace();
+          DropboxPlugin.metrics.failed(e);
+          listener.onProgress(transferred.addAndGet(-counted[0]));
+          entry.put("success", false);
+          entry.put("message", "Download failed: " + e.getMessage());
+        }
+      });
+    }
+    runParts(parts);
+    results.addAll(entries);
+  }
+
+  private void runParts(List<TransferScheduler.Part> parts) throws InterruptedIOException {
+    try {
+      scheduler.runAll(TransferScheduler.Kind.PART, parts);
+    } catch (InterruptedIOException e) {
+      throw e;
+    } catch (DbxException | IOException e) {
+      // Not reached: the parts catch their own errors
+      e.printStackTrace();
+    }
+    // Parts of a paused or cancelled sync fail on their own; their results must not be reported
+    DropboxPlugin.transfers.checkStopped();
+  }
+
+  // Same size and content_hash; the local hash is cached by modification time and size
+  private boolean isUnchanged(File file, FileMetadata metadata) throws DbxException, IOException {
+    // Hashing a large tree takes a while; a pause or cancel must not wait for all of it
+    DropboxPlugin.transfers.checkStopped();
+    if (file.length() != metadata.getSize() || metadata.getContentHash() == null) return false;
+    String hash = DropboxPlugin.hashCache.get(file);
+    if (hash == null) {
+      hash = ContentHash.of(file, scheduler);
+      DropboxPlugin.hashCache.put(file, hash);
+    }
+    return hash.equals(metadata.getContentHash());
+  }
+
+  private TreeMap<String, Metadata> listRemote(String root) throws DbxException, IOException {
+    TreeMap<String, Metadata> entries = new TreeMap<>();
+    ListFolderResult listFolderResult;
+    try {
+      listFolderResult = DropboxPlugin.retryPolicy.call(() ->
+              client.files().listFolderBuilder(root).withRecursive(true).start());
+    } catch (ListFolderErrorException e) {
+      // A folder that does not exist yet is an empty tree
+      if (e.errorValue.isPath() && e.errorValue.getPathValue().isNotFound()) {
+        return entries;
+      }
+      throw e;
+    }
+
+    String prefix = root.toLowerCase(Locale.ROOT) + "/";
+    while (true) {
+      for (Metadata metadata : listFolderResult.getEntries()) {
+        // The listing includes the root folder itself
+        if (metadata.getPathLower() == null || !metadata.getPathLower().startsWith(prefix)) continue;
+        entries.put(metadata.getPathLower().substring(prefix.length()), metadata);
+        DropboxPlugin.metadataCache.put(metadata);
+      }
+      if (!listFolderResult.getHasMore()) break;
+      listFolderResult = DropboxPlugin.ListFolderTask.listFolderContinue(listFolderResult.getCursor());
+    }
+    return entries;
+  }
+
+  /**
+   * Lists a local tree, keyed by lower-case relative path. A directory that does not exist yet
+   * is an empty tree.
+   *
+   * @throws IOException if the directory or one below it cannot be listed.
+   */
+  static TreeMap<String, File> listLocal(File localDir) throws IOException {
+    TreeMap<String, File> entries = new TreeMap<>();
+    if (localDir.exists()) {
+      walkLocal(localDir, "", entries);
+    }
+    return entries;
+  }
+
+  private static void walkLocal(File dir, String prefix, TreeMap<String, File> entries) throws IOException {
+    File[] children = dir.listFiles();
+    // Unreadable is not empty: planned as empty, the other side's copy would be deleted
+    if (children == null) throw new IOException("Could not list " + dir);
+    for (File child : children) {
+      String name = child.getName();
+      if (isPartialDownload(child)) continue;
+      String key = prefix + name.toLowerCase(Locale.ROOT);
+      // Two local names that only differ in case are one path on Dropbox; the first one wins
+      if (entries.containsKey(key)) continue;
+      entries.put(key, child);
+      if (child.isDirectory()) {
+        walkLocal(child, key + "/", entries);
+      }
+    }
+  }
+
+  // Files a ResumableDownloader is still working on; they belong to no tree
+  private static boolean isPartialDownload(File file) {
+    String name = file.getName();
+    if (name.endsWith(".part.journal") || name.endsWith(".part.journal.tmp")) return true;
+    return name.endsWith(".part") && new File(file.getPath() + ".journal").exists();
+  }
+
+  // The relative path of a local entry with the case of its own and its parents' names
+  private static String relativePath(File file, String key, TreeMap<String, File> local) {
+    int slash = key.lastIndexOf('/');
+    return slash < 0 ? file.getName() : relativePath(local.get(key.substring(0, slash)), key.substring(0, slash), local)
+            + "/" + file.getName();
+  }
+
+  // The path of a remote entry below the root, in the case Dropbox displays it
+  private static String displayPath(Metadata metadata, String root) {
+    String display = metadata.getPathDisplay();
+    if (display == null || display.length() != metadata.getPathLower().length()) {
+      display = metadata.getPathLower();
+    }
+    return display.substring(root.length() + 1);
+  }
+
+  private static String relativeKey(String path, String base) {
+    return path.substring(base.length() + 1).replace(File.separatorChar, '/').toLowerCase(Locale.ROOT);
+  }
+
+  private static void addParents(String key, Set<String> keys) {
+    for (int slash = key.lastIndexOf('/'); slash > 0; slash = key.lastIndexOf('/', slash - 1)) {
+      keys.add(key.substring(0, slash));
+    }
+  }
+
+  // Whether a folder that contains the key is already being deleted
+  private static boolean isUnder(String key, Set<String> deleted) {
+    for (int slash = key.lastIndexOf('/'); slash > 0; slash = key.lastIndexOf('/', slash - 1)) {
+      if (deleted.contains(key.substring(0, slash))) return true;
+    }
+    return false;
+  }
+
+  private static boolean deleteTree(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteTree(child);
+      }
+    }
+    return file.delete() || !file.exists();
+  }
+
+  private static Map<String, Object> entry(String action, File local, String remotePath) {
+    Map<String, Object> entry = new HashMap<>();
+    entry.put("action", action);
+    if (local != null) {
+      entry.put("filepath", local.getPath());
+    }
+    if (remotePath != null) {
+      entry.put("dropboxpath", remotePath);
+    }
+    return entry;
+  }
+
+  /** What a sync is going to change. */
+  static class Plan {
+    final List<String> remoteDeletes = new ArrayList<>();
+    final List<File> localDeletes = new ArrayList<>();
+    final List<String> remoteFolders = new ArrayList<>();
+    final List<File> localFolders = new ArrayList<>();
+    final List<Item> uploads = new ArrayList<>();
+    final List<Item> downloads = new ArrayList<>();
+    int unchanged;
+    long bytes;
+
+    /** Removes the partial files of downloads that did not finish. */
+    void discardDownloads() {
+      for (Item item : downloads) {
+        ResumableDownloader.discard(item.local);
+      }
+    }
+
+    /** @return one map per planned change, without outcomes, for a dry run. */
+    List<Map<String, Object>> toMaps() {
+      List<Map<String, Object>> entries = new ArrayList<>();
+      for (String path : remoteDeletes) {
+        entries.add(entry("delete", null, path));
+      }
+      for (File file : localDeletes) {
+        entries.add(entry("delete", file, null));
+      }
+      for (String path : remoteFolders) {
+        entries.add(entry("createFolder", null, path));
+      }
+      for (File folder : localFolders) {
+        entries.add(entry("createFolder", folder, null));
+      }
+      for (Item item : uploads) {
+        entries.add(entry("upload", item.local, item.remotePath));
+      }
+      for (Item item : downloads) {
+        entries.add(entry("download", item.local, item.metadata.getPathDisplay()));
+      }
+      return entries;
+    }
+  }
+
+  static class Item {
+    final File local;
+    final String remotePath;
+    final FileMetadata metadata;
+
+    Item(File local, String remotePath, FileMetadata metadata) {
+      this.local = local;
+      this.remotePath = remotePath;
+      this.metadata = metadata;
+    }
+  }
+}
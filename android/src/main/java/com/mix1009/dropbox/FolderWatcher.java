@@ -0,0 +1,137 @@
+package com.mix1009.dropbox;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.dropbox.core.DbxException;
+import com.dropbox.core.v2.files.ListFolderLongpollErrorException;
+import com.dropbox.core.v2.files.ListFolderLongpollResult;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.flutter.plugin.common.MethodChannel;
+
+/**
+ * Watches a folder with {@code list_folder/longpoll} and posts a {@code folderChanged} call only
+ * when something under it actually changed. The app then fetches the changes with
+ * {@code listFolderDelta}.
+ *
+ * Every poll is its own {@link TransferScheduler.Kind#LONGPOLL} task, so a watcher never holds a
+ * worker for longer than one poll.
+ */
+class FolderWatcher {
+
+  static final int DEFAULT_TIMEOUT_SECONDS = 60;
+
+  private static final ConcurrentHashMap<Integer, FolderWatcher> active = new ConcurrentHashMap<>();
+
+  private final MethodChannel channel;
+  private final int key;
+  private final String path;
+  private final boolean recursive;
+  private final long timeoutSeconds;
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private volatile boolean stopped;
+  private String cursor;
+
+  private FolderWatcher(MethodChannel channel, int key, String path, boolean recursive, long timeoutSeconds) {
+    this.channel = channel;
+    this.key = key;
+    this.path = path;
+    this.recursive = recursive;
+    // Dropbox accepts timeouts between 30 and 480 seconds
+    this.timeoutSeconds = Math.max(30, Math.min(480, timeoutSeconds));
+  }
+
+  /** Starts watching a folder under the given key, replacing an earlier watcher with that key. */
+  static void start(MethodChannel channel, int key, String path, boolean recursive, long timeoutSeconds) {
+    FolderWatcher watcher = new FolderWatcher(channel, key, path, recursive, timeoutSeconds);
+    FolderWatcher previous = active.put(key, watcher);
+    if (previous != null) {
+      previous.stopped = true;
+    }
+    watcher.schedule(0);
+  }
+
+  /** Stops a watcher. A poll that is in flight ends on its own and is ignored. */
+  static void stop(int key) {
+    FolderWatcher watcher = active.remove(key);
+    if (watcher != null) {
+      watcher.stopped = true;
+    }
+  }
+
+  static void stopAll() {
+    for (FolderWatcher watcher : active.values()) {
+      watcher.stopped = true;
+    }
+    active.clear();
+  }
+
+  private void schedule(long delayMillis) {
+    if (stopped) return;
+    if (delayMillis > 0) {
+      // Wait on the main looper rather than on a worker
+      mainHandler.postDelayed(() -> schedule(0), delayMillis);
+      return;
+    }
+    DropboxPlugin.scheduler.submit(TransferScheduler.Kind.LONGPOLL, this::poll);
+  }
+
+  private void poll() {
+    if (stopped) return;
+    try {
+      if (cursor == null) {
+        cursor = latestCursor();
+      }
+
+      String pollCursor = cursor;
+      ListFolderLongpollResult longpoll = DropboxPlugin.retryPolicy.call(() ->
+              DropboxPlugin.client.files().listFolderLongpoll(pollCursor, timeoutSeconds));
+      if (stopped) return;
+
+      if (longpoll.getChanges()) {
+        // Watch from the current state on; the app reads the changes through its own cursor
+        cursor = latestCursor();
+        notifyChanged(null);
+      }
+
+      // The server may ask us to wait before polling again
+      Long backoff = longpoll.getBackoff();
+      schedule(backoff != null ? backoff * 1000 : 0);
+
+    } catch (ListFolderLongpollErrorException e) {
+      // The cursor expired; start over from the current state
+      cursor = null;
+      notifyChanged(null);
+      schedule(0);
+    } catch (DbxException | IOException e) {
+      e.printStackTrace();
+      DropboxPlugin.metrics.failed(e);
+      active.remove(key, this);
+      stopped = true;
+      notifyChanged("Folder watch failed: " + e.getMessage());
+    }
+  }
+
+  private String latestCursor() throws DbxException, IOException {
+    return DropboxPlugin.retryPolicy.call(() -> DropboxPlugin.client.files().listFolderGetLatestCursorBuilder(path)
+            .withRecursive(recursive)
+            .start()
+            .getCursor());
+  }
+
+  private void notifyChanged(String error) {
+    Map<String, Object> event = new HashMap<>();
+    event.put("key", key);
+    event.put("path", path);
+    event.put("success", error == null);
+    if (error != null) {
+      event.put("message", error);
+    }
+    mainHandler.post(() -> channel.invokeMethod("folderChanged", event, null));
+  }
+}
@@ -0,0 +1,89 @@
+package com.mix1009.dropbox;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Remembers the {@code content_hash} of local files, so a sync upload of a file that did not
+ * change since it was last hashed costs a {@code get_metadata} call and nothing else. An entry
+ * is only used while the file's modification time and size are still the ones it was hashed
+ * with. Entries are kept in a properties file in the app's private files directory.
+ */
+class HashCache {
+
+  private static final int MAX_ENTRIES = 10000;
+
+  private final File file;
+
+  // Least recently used first; guarded by this
+  private final LinkedHashMap<String, String> entries = new LinkedHashMap<String, String>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+      return size() > MAX_ENTRIES;
+    }
+  };
+  private boolean dirty;
+
+  HashCache(File dir) {
+    file = new File(dir, "dropbox_hashes.properties");
+    if (file.exists()) {
+      Properties props = new Properties();
+      try (InputStream in = new FileInputStream(file)) {
+        props.load(in);
+        for (String path : props.stringPropertyNames()) {
+          entries.put(path, props.getProperty(path));
+        }
+      } catch (IOException e) {
+        // Losing the hashes only means the next sync hashes every file again
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /** @return the cached hash of a file, or null when it is unknown or the file changed since. */
+  synchronized String get(File local) {
+    String entry = entries.get(local.getAbsolutePath());
+    if (entry == null) return null;
+    String prefix = stamp(local);
+    return entry.startsWith(prefix) ? entry.substring(prefix.length()) : null;
+  }
+
+  synchronized void put(File local, String hash) {
+    entries.put(local.getAbsolutePath(), stamp(local) + hash);
+    dirty = true;
+  }
+
+  /** Writes the cache to disk if it changed since the last save. */
+  synchronized void save() {
+    if (!dirty) return;
+    Properties props = new Properties();
+    for (Map.Entry<String, String> entry : entries.entrySet()) {
+      props.setProperty(entry.getKey(), entry.getValue());
+    }
+
+    File tmp = new File(file.getPath() + ".tmp");
+    try (FileOutputStream out = new FileOutputStream(tmp)) {
+      props.store(out, null);
+      out.getFD().sync();
+    } catch (IOException e) {
+      e.printStackTrace();
+      return;
+    }
+    if (tmp.renameTo(file)) {
+      dirty = false;
+    } else {
+      tmp.delete();
+    }
+  }
+
+  // What the file looked like when it was hashed
+  private static String stamp(File local) {
+    return local.lastModified() + ":" + local.length() + ":";
+  }
+}
@@ -0,0 +1,146 @@
+package com.mix1009.dropbox;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.dropbox.core.DbxException;
+import com.dropbox.core.v2.files.ListFolderResult;
+import com.dropbox.core.v2.files.Metadata;
+
+import java.io.IOException;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.flutter.plugin.common.MethodChannel;
+
+/**
+ * Sends a folder listing to Dart one page at a time, keyed like the {@code progress} callback.
+ *
+ * Every page is posted as a {@code listFolderStreamPage} call as soon as it arrives. The native
+ * side keeps at most {@code prefetch} pages ahead of what Dart has acknowledged with
+ * {@code listFolderStreamAck}, so a slow consumer holds back the fetching instead of piling up
+ * pages in memory. {@code listFolderStreamCancel} stops the stream.
+ */
+class ListFolderStream {
+
+  static final int DEFAULT_PREFETCH = 2;
+
+  private static final ConcurrentHashMap<Integer, ListFolderStream> active = new ConcurrentHashMap<>();
+
+  private final MethodChannel channel;
+  private final int key;
+  private final String path;
+  private final Long limit;
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+  // Guarded by this
+  private int credits;
+  private boolean fetching;
+  private boolean cancelled;
+  private boolean hasMore = true;
+  private String cursor;
+
+  private ListFolderStream(MethodChannel channel, int key, String path, Long limit, int prefetch) {
+    this.channel = channel;
+    this.key = key;
+    this.path = path;
+    this.limit = limit;
+    this.credits = Math.max(1, prefetch);
+  }
+
+  /** Starts streaming the listing of a folder under the given key. */
+  static void start(MethodChannel channel, int key, String path, Long limit, int prefetch) {
+    ListFolderStream stream = new ListFolderStream(channel, key, path, limit, prefetch);
+    ListFolderStream previous = active.put(key, stream);
+    if (previous != null) {
+      previous.stop();
+    }
+    stream.fetchNextIfAllowed();
+  }
+
+  /** Dart has consumed one page; allows one more page to be fetched. */
+  static void ack(int key) {
+    ListFolderStream stream = active.get(key);
+    if (stream == null) return;
+    synchronized (stream) {
+      stream.credits++;
+    }
+    stream.fetchNextIfAllowed();
+  }
+
+  /** Stops a stream. Pages that are already in flight are dropped. */
+  static void cancel(int key) {
+    ListFolderStream stream = active.remove(key);
+    if (stream != null) {
+      stream.stop();
+    }
+  }
+
+  private synchronized void stop() {
+    cancelled = true;
+  }
+
+  private void fetchNextIfAllowed() {
+    synchronized (this) {
+      if (cancelled || fetching || !hasMore || credits <= 0) return;
+      fetching = true;
+      credits--;
+    }
+    DropboxPlugin.scheduler.submit(TransferScheduler.Kind.METADATA, this::fetchPage);
+  }
+
+  private void fetchPage() {
+    try {
+      String pageCursor;
+      synchronized (this) {
+        pageCursor = cursor;
+      }
+      ListFolderResult listFolderResult = DropboxPlugin.retryPolicy.call(() -> pageCursor != null
+              ? DropboxPlugin.client.files().listFolderContinue(pageCursor)
+              : DropboxPlugin.client.files().listFolderBuilder(path).withLimit(limit).start());
+
+      DateFormat df = DropboxPlugin.ListFolderTask.newDateFormat();
+      List<Object> paths = new ArrayList<>();
+      for (Metadata metadata : listFolderResult.getEntries()) {
+        paths.add(DropboxPlugin.ListFolderTask.toMap(metadata, df));
+      }
+
+      synchronized (this) {
+        if (cancelled) return;
+        cursor = listFolderResult.getCursor();
+        hasMore = listFolderResult.getHasMore();
+        fetching = false;
+      }
+
+      Map<String, Object> page = new HashMap<>();
+      page.put("key", key);
+      page.put("success", true);
+      page.put("paths", paths);
+      page.put("cursor", listFolderResult.getCursor());
+      page.put("hasMore", listFolderResult.getHasMore());
+      mainHandler.post(() -> channel.invokeMethod("listFolderStreamPage", page, null));
+
+      if (listFolderResult.getHasMore()) {
+        fetchNextIfAllowed();
+      } else {
+        active.remove(key, this);
+      }
+    } catch (DbxException | IOException e) {
+      e.printStackTrace();
+      DropboxPlugin.metrics.failed(e);
+      active.remove(key, this);
+
+      // Post the error as the last page of the stream
+      Map<String, Object> page = new HashMap<>();
+      page.put("key", key);
+      page.put("success", false);
+      page.put("message", "Failed to list folder: " + e.getMessage());
+      page.put("hasMore", false);
+      mainHandler.post(() -> channel.invokeMethod("listFolderStreamPage", page, null));
+    }
+  }
+}
@@ -0,0 +1,176 @@
+package com.mix1009.dropbox;
+
+import com.dropbox.core.v2.files.DeletedMetadata;
+import com.dropbox.core.v2.files.FileMetadata;
+import com.dropbox.core.v2.files.FolderMetadata;
+import com.dropbox.core.v2.files.Metadata;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes listing entries into one byte array, so a large listing crosses the method channel as
+ * a single typed-data value instead of a map of strings per entry. The Dart side
+ * ({@code DropboxListing}) reads it in place and only builds the entries it is asked for.
+ *
+ * Every string is stored once in a table and referenced by index. Paths are split into the
+ * parent folder, which most entries share, and the name. Times are milliseconds since the
+ * epoch. All numbers are little-endian:
+ *
+ * <pre>
+ * u8  version
+ * u32 entry count (n)
+ * u32 string count, then per string: u32 UTF-8 length and the bytes
+ * n x u8  tag (0 file, 1 folder, 2 deleted)
+ * n x u8  flags
+ * n x i32 name
+ * n x i32 display parent, or the whole display path with FLAG_DISPLAY_FULL (-1 = none)
+ * n x i32 lower-case parent (-1 = no lower-case path)
+ * n x i32 lower-case name (-1 = lower-case parent + "/" + the ASCII-lowered name)
+ * n x i32 rev (-1 = none)
+ * n x i64 size
+ * n x i64 client modified (0 = none)
+ * n x i64 server modified (0 = none)
+ * </pre>
+ */
+class ListingCodec {
+
+  static final int VERSION = 1;
+
+  static final byte TAG_FILE = 0;
+  static final byte TAG_FOLDER = 1;
+  static final byte TAG_DELETED = 2;
+
+  /** The display string is the whole path rather than the parent of the name. */
+  static final int FLAG_DISPLAY_FULL = 1;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private ListingCodec() {
+  }
+
+  /** Encodes entries in the order given. Meant to run on a worker, not the main thread. */
+  static byte[] encode(List<Metadata> entries) {
+    int n = entries.size();
+    Map<String, Integer> index = new HashMap<>();
+    List<byte[]> strings = new ArrayList<>();
+
+    byte[] tags = new byte[n];
+    byte[] flags = new byte[n];
+    int[] names = new int[n];
+    int[] displayParents = new int[n];
+    int[] lowerParents = new int[n];
+    int[] lowerNames = new int[n];
+    int[] revs = new int[n];
+    long[] sizes = new long[n];
+    long[] clientModified = new long[n];
+    long[] serverModified = new long[n];
+
+    for (int i = 0; i < n; i++) {
+      Metadata metadata = entries.get(i);
+      String name = metadata.getName();
+      names[i] = intern(name, index, strings);
+
+      String display = metadata.getPathDisplay();
+      if (display == null) {
+        displayParents[i] = -1;
+      } else if (display.endsWith("/" + name)) {
+        displayParents[i] = intern(display.substring(0, display.length() - name.length() - 1), index, strings);
+      } else {
+        displayParents[i] = intern(display, index, strings);
+        flags[i] |= FLAG_DISPLAY_FULL;
+      }
+
+      String lower = metadata.getPathLower();
+      int slash = lower != null ? lower.lastIndexOf('/') : -1;
+      if (slash < 0) {
+        lowerParents[i] = -1;
+        lowerNames[i] = -1;
+      } else {
+        String lowerName = lower.substring(slash + 1);
+        lowerParents[i] = intern(lower.substring(0, slash), index, strings);
+        // The lower-case name is usually the name itself; only ASCII is lowered the same way on both sides
+        lowerNames[i] = lowerName.equals(asciiLowerCase(name)) ? -1 : intern(lowerName, index, strings);
+      }
+
+      revs[i] = -1;
+      if (metadata instanceof FileMetadata) {
+        FileMetadata file = (FileMetadata) metadata;
+        tags[i] = TAG_FILE;
+        revs[i] = intern(file.getRev(), index, strings);
+        sizes[i] = file.getSize();
+        clientModified[i] = file.getClientModified() != null ? file.getClientModified().getTime() : 0;
+        serverModified[i] = file.getServerModified() != null ? file.getServerModified().getTime() : 0;
+      } else if (metadata instanceof FolderMetadata) {
+        tags[i] = TAG_FOLDER;
+      } else if (metadata instanceof DeletedMetadata) {
+        tags[i] = TAG_DELETED;
+      }
+    }
+
+    int size = 1 + 4 + 4 + n * (1 + 1 + 4 * 5 + 8 * 3);
+    for (byte[] string : strings) {
+      size += 4 + string.length;
+    }
+
+    ByteBuffer out = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    out.put((byte) VERSION);
+    out.putInt(n);
+    out.putInt(strings.size());
+    for (byte[] string : strings) {
+      out.putInt(string.length);
+      out.put(string);
+    }
+    out.put(tags);
+    out.put(flags);
+    putInts(out, names);
+    putInts(out, displayParents);
+    putInts(out, lowerParents);
+    putInts(out, lowerNames);
+    putInts(out, revs);
+    putLongs(out, sizes);
+    putLongs(out, clientModified);
+    putLongs(out, serverModified);
+    return out.array();
+  }
+
+  private static int intern(String string, Map<String, Integer> index, List<byte[]> strings) {
+    Integer i = index.get(string);
+    if (i == null) {
+      i = strings.size();
+      index.put(string, i);
+      strings.add(string.getBytes(UTF_8));
+    }
+    return i;
+  }
+
+  // Null unless the name is plain ASCII, which Dart lowers exactly like Dropbox
+  private static String asciiLowerCase(String name) {
+    char[] chars = name.toCharArray();
+    for (int i = 0; i < chars.length; i++) {
+      char c = chars[i];
+      if (c >= 0x80) return null;
+      if (c >= 'A' && c <= 'Z') {
+        chars[i] = (char) (c + ('a' - 'A'));
+      }
+    }
+    return new String(chars);
+  }
+
+  private static void putInts(ByteBuffer out, int[] values) {
+    for (int value : values) {
+      out.putInt(value);
+    }
+  }
+
+  private static void putLongs(ByteBuffer out, long[] values) {
+    for (long value : values) {
+      out.putLong(value);
+    }
+  }
+}
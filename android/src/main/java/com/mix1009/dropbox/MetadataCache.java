@@ -0,0 +1,421 @@
+package com.mix1009.dropbox;
+
+import com.dropbox.core.v2.files.DeletedMetadata;
+import com.dropbox.core.v2.files.FileMetadata;
+import com.dropbox.core.v2.files.FolderMetadata;
+import com.dropbox.core.v2.files.Metadata;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory cache of file and folder metadata, keyed by {@code pathLower}.
+ *
+ * Entries are evicted least-recently-used first once the cache is over its entry count or
+ * (estimated) byte budget. Folder listings are cached together with their {@code list_folder}
+ * cursor, so a listing can be brought up to date with a cheap delta instead of being fetched
+ * again; evicting any child drops the listing of its folder. The cache can be saved to disk so
+ * a cold start has something to show right away; a change listener lets the owner save it soon
+ * after it changes, since the process is usually killed without warning.
+ */
+class MetadataCache {
+
+  private static final int FILE_VERSION = 1;
+  private static final int TAG_FILE = 0;
+  private static final int TAG_FOLDER = 1;
+
+  private int maxEntries;
+  private long maxBytes;
+
+  // Guarded by this
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+  private final Map<String, Listing> listings = new HashMap<>();
+  private long bytes;
+  private long hits;
+  private long misses;
+  private long evictions;
+  private Runnable changeListener;
+
+  // Serializes writers of the cache file; never held together with this
+  private final Object saveLock = new Object();
+
+  MetadataCache(int maxEntries, long maxBytes) {
+    this.maxEntries = maxEntries;
+    this.maxBytes = maxBytes;
+  }
+
+  /** Called, with the lock held, after every change except loading; must not block. */
+  synchronized void setChangeListener(Runnable listener) {
+    changeListener = listener;
+  }
+
+  synchronized void setLimits(int maxEntries, long maxBytes) {
+    this.maxEntries = maxEntries;
+    this.maxBytes = maxBytes;
+    trim();
+  }
+
+  /** @return the cached metadata of a path, or null on a miss. */
+  synchronized Metadata get(String path) {
+    Entry entry = entries.get(key(path));
+    if (entry == null) {
+      misses++;
+      return null;
+    }
+    hits++;
+    return entry.metadata;
+  }
+
+  /** Caches the metadata of one entry. Deleted entries are removed instead. */
+  synchronized void put(Metadata metadata) {
+    if (metadata.getPathLower() == null) return;
+    if (metadata instanceof DeletedMetadata) {
+      remove(metadata.getPathLower());
+      changed();
+      return;
+    }
+    putEntry(metadata);
+    trim();
+    changed();
+  }
+
+  /** Drops a path, everything below it and the listing of its folder. */
+  synchronized void invalidate(String path) {
+    String key = key(path);
+    removeTree(key);
+    listings.remove(parent(key));
+    changed();
+  }
+
+  synchronized void clear() {
+    entries.clear();
+    listings.clear();
+    bytes = 0;
+    changed();
+  }
+
+  /** @return the cursor of a complete cached listing of a folder, or null if there is none. */
+  synchronized String listingCursor(String folder) {
+    Listing listing = listings.get(key(folder));
+    return listing != null ? listing.cursor : null;
+  }
+
+  /** @return the cached entries of a folder, or null (a miss) when the listing is not cached. */
+  synchronized List<Metadata> getListing(String folder) {
+    Listing listing = listings.get(key(folder));
+    if (listing == null) {
+      misses++;
+      return null;
+    }
+    hits++;
+    List<Metadata> result = new ArrayList<>(listing.children.size());
+    for (String child : listing.children) {
+      Entry entry = entries.get(child);
+      if (entry == null) {
+        // Should not happen, but an incomplete listing must never be served
+        listings.remove(key(folder));
+        return null;
+      }
+      result.add(entry.metadata);
+    }
+    return result;
+  }
+
+  /** Replaces the cached listing of a folder with a complete listing. */
+  synchronized void putListing(String folder, String cursor, List<Metadata> children) {
+    Listing listing = new Listing(cursor);
+    listings.put(key(folder), listing);
+    for (Metadata metadata : children) {
+      if (metadata instanceof DeletedMetadata || metadata.getPathLower() == null) continue;
+      putEntry(metadata);
+      listing.children.add(metadata.getPathLower());
+    }
+    trim();
+    changed();
+  }
+
+  /** Applies the changes returned for a cached listing's cursor. */
+  synchronized void applyDelta(String folder, String cursor, List<Metadata> changes) {
+    Listing listing = listings.get(key(folder));
+    if (listing == null) return;
+    listing.cursor = cursor;
+    for (Metadata metadata : changes) {
+      String path = metadata.getPathLower();
+      if (path == null) continue;
+      if (metadata instanceof DeletedMetadata) {
+        remove(path);
+      } else {
+        putEntry(metadata);
+        listing.children.add(path);
+      }
+    }
+    trim();
+    changed();
+  }
+
+  /** @return hit, miss and size counters for Dart. */
+  synchronized Map<String, Object> stats() {
+    Map<String, Object> stats = new HashMap<>();
+    stats.put("hits", hits);
+    stats.put("misses", misses);
+    stats.put("evictions", evictions);
+    stats.put("entries", entries.size());
+    stats.put("listings", listings.size());
+    stats.put("bytes", bytes);
+    stats.put("maxEntries", maxEntries);
+    stats.put("maxBytes", maxBytes);
+    return stats;
+  }
+
+  /**
+   * Writes the cache to a file; listings are saved with their cursors. The cache is copied
+   * first, so it stays usable while the file is written.
+   */
+  void save(File file) throws IOException {
+    // Least recently used first, so loading restores the same order
+    List<Metadata> metadata = new ArrayList<>();
+    Map<String, Listing> listingCopies = new HashMap<>();
+    synchronized (this) {
+      for (Entry entry : entries.values()) {
+        metadata.add(entry.metadata);
+      }
+      for (Map.Entry<String, Listing> listing : listings.entrySet()) {
+        Listing copy = new Listing(listing.getValue().cursor);
+        copy.children.addAll(listing.getValue().children);
+        listingCopies.put(listing.getKey(), copy);
+      }
+    }
+
+    synchronized (saveLock) {
+      File tmp = new File(file.getPath() + ".tmp");
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+        out.writeInt(FILE_VERSION);
+
+        out.writeInt(metadata.size());
+        for (Metadata entry : metadata) {
+          writeMetadata(out, entry);
+        }
+
+        out.writeInt(listingCopies.size());
+        for (Map.Entry<String, Listing> listing : listingCopies.entrySet()) {
+          out.writeUTF(listing.getKey());
+          out.writeUTF(listing.getValue().cursor);
+          out.writeInt(listing.getValue().children.size());
+          for (String child : listing.getValue().children) {
+            out.writeUTF(child);
+          }
+        }
+      }
+      if (!tmp.renameTo(file)) {
+        throw new IOException("Could not write " + file);
+      }
+    }
+  }
+
+  /** Loads a file written by {@link #save}. A missing or unreadable file leaves the cache empty. */
+  synchronized void load(File file) {
+    if (!file.exists()) return;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      if (in.readInt() != FILE_VERSION) return;
+
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        putEntry(readMetadata(in));
+      }
+
+      int listingCount = in.readInt();
+      for (int i = 0; i < listingCount; i++) {
+        String folder = in.readUTF();
+        Listing listing = new Listing(in.readUTF());
+        int children = in.readInt();
+        boolean complete = true;
+        for (int j = 0; j < children; j++) {
+          String child = in.readUTF();
+          complete &= entries.containsKey(child);
+          listing.children.add(child);
+        }
+        if (complete) {
+          listings.put(folder, listing);
+        }
+      }
+      trim();
+    } catch (IOException | RuntimeException e) {
+      // A damaged cache file is only a cold cache
+      e.printStackTrace();
+      clear();
+    }
+  }
+
+  // Must be called while holding the lock
+  private void putEntry(Metadata metadata) {
+    Entry entry = new Entry(metadata);
+    Entry previous = entries.put(metadata.getPathLower(), entry);
+    if (previous != null) {
+      bytes -= previous.bytes;
+    }
+    bytes += entry.bytes;
+  }
+
+  // Must be called while holding the lock. Used for paths that no longer exist on Dropbox; a
+  // deleted folder takes everything below it along.
+  private void remove(String path) {
+    Entry entry = entries.get(path);
+    if (entry != null && entry.metadata instanceof FileMetadata) {
+      // A file has nothing below it, so the whole cache need not be scanned
+      entries.remove(path);
+      bytes -= entry.bytes;
+    } else {
+      removeTree(path);
+    }
+    Listing parentListing = listings.get(parent(path));
+    if (parentListing != null) {
+      parentListing.children.remove(path);
+    }
+  }
+
+  // Must be called while holding the lock. Drops a path, everything below it and their listings.
+  private void removeTree(String key) {
+    String prefix = key + "/";
+    Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<String, Entry> entry = it.next();
+      if (entry.getKey().equals(key) || entry.getKey().startsWith(prefix)) {
+        bytes -= entry.getValue().bytes;
+        it.remove();
+      }
+    }
+    Iterator<String> folders = listings.keySet().iterator();
+    while (folders.hasNext()) {
+      String folder = folders.next();
+      if (folder.equals(key) || folder.startsWith(prefix)) {
+        folders.remove();
+      }
+    }
+  }
+
+  // Must be called while holding the lock
+  private void changed() {
+    if (changeListener != null) {
+      changeListener.run();
+    }
+  }
+
+  // Must be called while holding the lock
+  private void trim() {
+    Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+    while ((entries.size() > maxEntries || bytes > maxBytes) && it.hasNext()) {
+      Map.Entry<String, Entry> eldest = it.next();
+      it.remove();
+      bytes -= eldest.getValue().bytes;
+      evictions++;
+
+      // A listing with a missing child can no longer be served
+      listings.remove(parent(eldest.getKey()));
+    }
+  }
+
+  private static String key(String path) {
+    return path.toLowerCase(Locale.ROOT);
+  }
+
+  private static String parent(String pathLower) {
+    int slash = pathLower.lastIndexOf('/');
+    return slash <= 0 ? "" : pathLower.substring(0, slash);
+  }
+
+  private static void writeMetadata(DataOutputStream out, Metadata metadata) throws IOException {
+    if (metadata instanceof FileMetadata) {
+      FileMetadata file = (FileMetadata) metadata;
+      out.writeByte(TAG_FILE);
+      out.writeUTF(file.getName());
+      out.writeUTF(file.getId() != null ? file.getId() : "");
+      out.writeUTF(file.getPathLower());
+      out.writeUTF(file.getPathDisplay() != null ? file.getPathDisplay() : file.getPathLower());
+      out.writeUTF(file.getRev());
+      out.writeLong(file.getSize());
+      out.writeLong(file.getClientModified().getTime());
+      out.writeLong(file.getServerModified().getTime());
+      out.writeUTF(file.getContentHash() != null ? file.getContentHash() : "");
+    } else {
+      FolderMetadata folder = (FolderMetadata) metadata;
+      out.writeByte(TAG_FOLDER);
+      out.writeUTF(folder.getName());
+      out.writeUTF(folder.getId() != null ? folder.getId() : "");
+      out.writeUTF(folder.getPathLower());
+      out.writeUTF(folder.getPathDisplay() != null ? folder.getPathDisplay() : folder.getPathLower());
+    }
+  }
+
+  private static Metadata readMetadata(DataInputStream in) throws IOException {
+    int tag = in.readByte();
+    String name = in.readUTF();
+    String id = in.readUTF();
+    String pathLower = in.readUTF();
+    String pathDisplay = in.readUTF();
+    if (tag == TAG_FOLDER) {
+      return FolderMetadata.newBuilder(name, id)
+              .withPathLower(pathLower)
+              .withPathDisplay(pathDisplay)
+              .build();
+    }
+    String rev = in.readUTF();
+    long size = in.readLong();
+    Date clientModified = new Date(in.readLong());
+    Date serverModified = new Date(in.readLong());
+    String contentHash = in.readUTF();
+    return FileMetadata.newBuilder(name, id, clientModified, serverModified, rev, size)
+            .withPathLower(pathLower)
+            .withPathDisplay(pathDisplay)
+            .withContentHash(contentHash.isEmpty() ? null : contentHash)
+            .build();
+  }
+
+  private static class Entry {
+    final Metadata metadata;
+    final int bytes;
+
+    Entry(Metadata metadata) {
+      this.metadata = metadata;
+      this.bytes = estimateBytes(metadata);
+    }
+
+    // Rough heap size: the strings we keep plus a fixed object overhead
+    private static int estimateBytes(Metadata metadata) {
+      int chars = length(metadata.getName()) + length(metadata.getPathLower()) + length(metadata.getPathDisplay());
+      if (metadata instanceof FileMetadata) {
+        FileMetadata file = (FileMetadata) metadata;
+        chars += length(file.getId()) + length(file.getRev()) + length(file.getContentHash());
+      }
+      return 160 + chars * 2;
+    }
+
+    private static int length(String s) {
+      return s != null ? s.length() : 0;
+    }
+  }
+
+  private static class Listing {
+    String cursor;
+    final Set<String> children = new LinkedHashSet<>();
+
+    Listing(String cursor) {
+      this.cursor = cursor;
+    }
+  }
+}
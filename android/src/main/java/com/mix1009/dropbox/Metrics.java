@@ -0,0 +1,401 @@
+package com.mix1009.dropbox;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import io.flutter.plugin.common.MethodChannel;
+
+/**
+ * Counters and histograms for every method channel operation.
+ *
+ * Each call to {@code onMethodCall} gets a {@link Span}. The span follows the operation onto its
+ * worker through {@link #bind}, so queue time and time on the wire are told apart, and errors,
+ * retries and transferred bytes recorded on that worker are charged to it. The span ends when
+ * the operation's result is sent back to Dart.
+ *
+ * Recording is lock-free and allocation-free apart from the span itself; the numbers are read
+ * with {@link #snapshot}, either on request or periodically as a {@code metricsSnapshot} call.
+ */
+class Metrics {
+
+  /** Extra gauges that belong in every snapshot, such as queue depths. */
+  interface Gauges {
+    void collect(Map<String, Object> snapshot);
+  }
+
+  private final ConcurrentHashMap<String, Operation> operations = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, AtomicLong> errors = new ConcurrentHashMap<>();
+  private final ThreadLocal<Span> current = new ThreadLocal<>();
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final Runnable tick = this::sendSnapshot;
+  private final long createdNanos = System.nanoTime();
+
+  // Only touched on the main thread
+  private MethodChannel channel;
+  private long snapshotIntervalMillis;
+  private Gauges gauges;
+
+  void setChannel(MethodChannel channel) {
+    this.channel = channel;
+  }
+
+  void setGauges(Gauges gauges) {
+    this.gauges = gauges;
+  }
+
+  /** Starts measuring an operation and makes it current on the calling thread. */
+  Span start(String name) {
+    Span span = new Span(operation(name));
+    current.set(span);
+    return span;
+  }
+
+  /** Clears the calling thread's current span. */
+  void leave() {
+    current.remove();
+  }
+
+  /**
+   * Ties a task to the span that is current while it is submitted. The span's queue time ends
+   * when the first such task starts to run.
+   */
+  Runnable bind(Runnable task) {
+    Span span = current.get();
+    if (span == null) return task;
+    span.queued();
+    return () -> {
+      span.started();
+      Span previous = current.get();
+      current.set(span);
+      try {
+        task.run();
+      } finally {
+        if (previous != null) {
+          current.set(previous);
+        } else {
+          current.remove();
+        }
+      }
+    };
+  }
+
+  /** Wraps a method channel result so the span ends when the result is sent. */
+  MethodChannel.Result wrap(Span span, MethodChannel.Result result) {
+    return new MethodChannel.Result() {
+      @Override
+      @SuppressWarnings("unchecked")
+      public void success(Object value) {
+        boolean failed = value instanceof Map && Boolean.FALSE.equals(((Map<?, ?>) value).get("success"));
+        end(span, failed ? "OperationFailed" : null);
+
+        // Results say how hard they were to get
+        if (value instanceof Map && ((Map<?, ?>) value).containsKey("success")) {
+          Map<String, Object> map = (Map<String, Object>) value;
+          int retries = span.retries.get();
+          if (retries > 0) {
+            map.put("retries", retries);
+          }
+          RetryPolicy.CircuitState circuit = DropboxPlugin.retryPolicy.circuitState();
+          if (circuit != RetryPolicy.CircuitState.CLOSED) {
+            map.put("circuit", circuit.name().toLowerCase(Locale.ROOT));
+          }
+        }
+        result.success(value);
+      }
+
+      @Override
+      public void error(String errorCode, String errorMessage, Object errorDetails) {
+        end(span, errorCode);
+        result.error(errorCode, errorMessage, errorDetails);
+      }
+
+      @Override
+      public void notImplemented() {
+        end(span, "NotImplemented");
+        result.notImplemented();
+      }
+    };
+  }
+
+  /** Counts an error by its class and charges it to the current operation, if any. */
+  void failed(Throwable e) {
+    String errorClass = e.getClass().getSimpleName();
+    counter(errors, errorClass).incrementAndGet();
+    Span span = current.get();
+    if (span != null) {
+      span.errorClass = errorClass;
+    }
+  }
+
+  /** Counts one retry of a request of the current operation. */
+  void retried(boolean throttled) {
+    Span span = current.get();
+    if (span != null) {
+      span.retries.incrementAndGet();
+      span.operation.retries.incrementAndGet();
+      if (throttled) {
+        span.operation.throttled.incrementAndGet();
+      }
+    }
+  }
+
+  /** Adds bytes moved by the current operation, for its byte and throughput histograms. */
+  void transferred(long bytes) {
+    Span span = current.get();
+    if (span != null) {
+      span.bytes.addAndGet(bytes);
+    }
+  }
+
+  /**
+   * @param reset Whether to start counting from zero afterwards. Gauges are never reset.
+   * @return every counter, histogram and gauge, ready to be sent to Dart.
+   */
+  Map<String, Object> snapshot(boolean reset) {
+    Map<String, Object> ops = new HashMap<>();
+    for (Map.Entry<String, Operation> entry : operations.entrySet()) {
+      ops.put(entry.getKey(), entry.getValue().toMap(reset));
+    }
+    Map<String, Object> errorCounts = new HashMap<>();
+    for (Map.Entry<String, AtomicLong> entry : errors.entrySet()) {
+      errorCounts.put(entry.getKey(), reset ? entry.getValue().getAndSet(0) : entry.getValue().get());
+    }
+
+    Map<String, Object> snapshot = new HashMap<>();
+    snapshot.put("uptimeMs", (System.nanoTime() - createdNanos) / 1000000);
+    snapshot.put("operations", ops);
+    snapshot.put("errors", errorCounts);
+    Gauges extra = gauges;
+    if (extra != null) {
+      extra.collect(snapshot);
+    }
+    return snapshot;
+  }
+
+  /** Sends a snapshot to Dart every {@code intervalMillis}; 0 stops the snapshots. */
+  void streamSnapshots(long intervalMillis) {
+    snapshotIntervalMillis = Math.max(0, intervalMillis);
+    mainHandler.removeCallbacks(tick);
+    if (snapshotIntervalMillis > 0) {
+      mainHandler.postDelayed(tick, snapshotIntervalMillis);
+    }
+  }
+
+  private void sendSnapshot() {
+    if (snapshotIntervalMillis <= 0) return;
+    if (channel != null) {
+      channel.invokeMethod("metricsSnapshot", snapshot(false), null);
+    }
+    mainHandler.postDelayed(tick, snapshotIntervalMillis);
+  }
+
+  private void end(Span span, String failure) {
+    if (!span.finish()) return;
+    Operation op = span.operation;
+    long now = System.nanoTime();
+    op.count.incrementAndGet();
+    op.latency.record((now - span.createdNanos) / 1000000);
+
+    long startedNanos = span.startedNanos;
+    if (startedNanos != 0) {
+      op.queueTime.record((startedNanos - span.createdNanos) / 1000000);
+      long bytes = span.bytes.get();
+      if (bytes > 0) {
+        op.bytes.record(bytes);
+        long wireNanos = Math.max(1, now - startedNanos);
+        op.throughput.record((long) (bytes * 1e9 / wireNanos));
+      }
+    }
+
+    if (failure != null) {
+      op.failures.incrementAndGet();
+      // Failures whose exception was already counted keep that class
+      if (span.errorClass == null) {
+        counter(errors, failure).incrementAndGet();
+      }
+    }
+  }
+
+  private Operation operation(String name) {
+    Operation op = operations.get(name);
+    if (op == null) {
+      Operation created = new Operation();
+      op = operations.putIfAbsent(name, created);
+      if (op == null) op = created;
+    }
+    return op;
+  }
+
+  private static AtomicLong counter(ConcurrentHashMap<String, AtomicLong> counters, String name) {
+    AtomicLong counter = counters.get(name);
+    if (counter == null) {
+      AtomicLong created = new AtomicLong();
+      counter = counters.putIfAbsent(name, created);
+      if (counter == null) counter = created;
+    }
+    return counter;
+  }
+
+  /** One running operation. */
+  static class Span {
+    final Operation operation;
+    final long createdNanos = System.nanoTime();
+    final AtomicLong bytes = new AtomicLong();
+    final AtomicInteger retries = new AtomicInteger();
+    volatile long startedNanos;
+    volatile String errorClass;
+
+    // Guarded by this
+    private boolean waiting;
+    private boolean ended;
+
+    Span(Operation operation) {
+      this.operation = operation;
+      operation.inFlight.incrementAndGet();
+    }
+
+    synchronized void queued() {
+      if (ended || startedNanos != 0 || waiting) return;
+      waiting = true;
+      operation.queued.incrementAndGet();
+    }
+
+    synchronized void started() {
+      if (ended || startedNanos != 0) return;
+      startedNanos = System.nanoTime();
+      if (waiting) {
+        waiting = false;
+        operation.queued.decrementAndGet();
+      }
+    }
+
+    // @return false if the span had already ended
+    synchronized boolean finish() {
+      if (ended) return false;
+      ended = true;
+      operation.inFlight.decrementAndGet();
+      if (waiting) {
+        waiting = false;
+        operation.queued.decrementAndGet();
+      }
+      return true;
+    }
+  }
+
+  /** Everything recorded for one method channel operation. */
+  static class Operation {
+    final AtomicLong count = new AtomicLong();
+    final AtomicLong failures = new AtomicLong();
+    final AtomicLong retries = new AtomicLong();
+    final AtomicLong throttled = new AtomicLong();
+    final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicInteger queued = new AtomicInteger();
+    final Histogram latency = new Histogram();
+    final Histogram queueTime = new Histogram();
+    final Histogram bytes = new Histogram();
+    final Histogram throughput = new Histogram();
+
+    Map<String, Object> toMap(boolean reset) {
+      Map<String, Object> map = new HashMap<>();
+      map.put("count", reset ? count.getAndSet(0) : count.get());
+      map.put("failures", reset ? failures.getAndSet(0) : failures.get());
+      map.put("retries", reset ? retries.getAndSet(0) : retries.get());
+      map.put("throttled", reset ? throttled.getAndSet(0) : throttled.get());
+      map.put("inFlight", inFlight.get());
+      map.put("queued", queued.get());
+      map.put("latencyMs", latency.toMap(reset));
+      map.put("queuedMs", queueTime.toMap(reset));
+      map.put("bytes", bytes.toMap(reset));
+      map.put("bytesPerSecond", throughput.toMap(reset));
+      return map;
+    }
+  }
+
+  /**
+   * A log-linear histogram of non-negative longs: exact below 16, then 8 buckets per power of
+   * two, so any percentile is within 12.5% of the true value. Recording is one atomic increment.
+   */
+  static class Histogram {
+    private static final int LINEAR = 16;
+    private static final int SUB_BUCKETS = 8;
+    private static final int BUCKETS = LINEAR + (63 - 4) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long value) {
+      if (value < 0) value = 0;
+      counts.incrementAndGet(index(value));
+      sum.addAndGet(value);
+      long seen;
+      while (value > (seen = max.get()) && !max.compareAndSet(seen, value)) {
+        // Retry until max is at least value
+      }
+    }
+
+    /** @return count, mean, max and the usual percentiles; empty histograms only have a count. */
+    Map<String, Object> toMap(boolean reset) {
+      long[] snapshot = new long[BUCKETS];
+      long total = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        snapshot[i] = reset ? counts.getAndSet(i, 0) : counts.get(i);
+        total += snapshot[i];
+      }
+      long sumValue = reset ? sum.getAndSet(0) : sum.get();
+      long maxValue = reset ? max.getAndSet(0) : max.get();
+
+      Map<String, Object> map = new HashMap<>();
+      map.put("count", total);
+      if (total == 0) return map;
+      map.put("mean", sumValue / total);
+      map.put("max", maxValue);
+      List<Long> percentiles = percentiles(snapshot, total, 50, 90, 95, 99);
+      map.put("p50", Math.min(maxValue, percentiles.get(0)));
+      map.put("p90", Math.min(maxValue, percentiles.get(1)));
+      map.put("p95", Math.min(maxValue, percentiles.get(2)));
+      map.put("p99", Math.min(maxValue, percentiles.get(3)));
+      return map;
+    }
+
+    private static List<Long> percentiles(long[] snapshot, long total, int... percents) {
+      List<Long> values = new ArrayList<>(percents.length);
+      int bucket = 0;
+      long seen = snapshot[0];
+      for (int percent : percents) {
+        long rank = Math.max(1, (total * percent + 99) / 100);
+        while (seen < rank && bucket < BUCKETS - 1) {
+          seen += snapshot[++bucket];
+        }
+        values.add(upperBound(bucket));
+      }
+      return values;
+    }
+
+    static int index(long value) {
+      if (value < LINEAR) return (int) value;
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      int sub = (int) (value >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+      return LINEAR + (exponent - 4) * SUB_BUCKETS + sub;
+    }
+
+    // The largest value that falls into a bucket
+    static long upperBound(int index) {
+      if (index < LINEAR) return index;
+      int exponent = (index - LINEAR) / SUB_BUCKETS + 4;
+      int sub = (index - LINEAR) % SUB_BUCKETS;
+      long lower = (long) (SUB_BUCKETS + sub) << (exponent - 3);
+      return lower + (1L << (exponent - 3)) - 1;
+    }
+  }
+}
@@ -0,0 +1,159 @@
+package com.mix1009.dropbox;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.Arrays;
+
+import io.flutter.plugin.common.MethodChannel;
+
+/**
+ * Coalesces transfer progress for all active keys into one {@code progressBatch} message per tick.
+ *
+ * Worker threads only write into primitive arrays; a single main-thread runnable sends what
+ * changed since the last tick as a packed {@code long[]} of {@code [key, bytes, total]} triples.
+ * A key is only sent again once it has moved by at least {@code minBytes}, except for its final
+ * update, which is always delivered right away.
+ */
+class ProgressAggregator {
+
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final Runnable tick = this::flush;
+  private MethodChannel channel;
+  private long intervalMillis = 100;
+  private long minBytes;
+
+  // Guarded by this; slot i describes one active key
+  private int size;
+  private int[] keys = new int[16];
+  private long[] bytes = new long[16];
+  private long[] totals = new long[16];
+  private long[] sentBytes = new long[16];
+  private boolean[] dirty = new boolean[16];
+  private boolean[] finished = new boolean[16];
+  private boolean tickPosted;
+
+  synchronized void setChannel(MethodChannel channel) {
+    this.channel = channel;
+  }
+
+  /**
+   * @param intervalMillis How often pending updates are sent to Dart.
+   * @param minBytes       How far a key has to move before it is sent again.
+   */
+  synchronized void configure(long intervalMillis, long minBytes) {
+    this.intervalMillis = Math.max(0, intervalMillis);
+    this.minBytes = Math.max(0, minBytes);
+  }
+
+  /**
+   * Records the progress of a transfer. Safe to call for every SDK progress callback.
+   *
+   * @param total The size of the transfer, or -1 when Dart already knows it.
+   */
+  synchronized void update(int key, long current, long total) {
+    int i = slot(key);
+    bytes[i] = current;
+    totals[i] = total;
+    if (current - sentBytes[i] >= minBytes || current < sentBytes[i]) {
+      dirty[i] = true;
+      postTick(intervalMillis);
+    }
+  }
+
+  /** Records the final progress of a transfer and sends it without waiting for the next tick. */
+  synchronized void complete(int key, long current, long total) {
+    int i = slot(key);
+    bytes[i] = current;
+    totals[i] = total;
+    dirty[i] = true;
+    finished[i] = true;
+    // Send it now rather than at the next tick, so it is posted ahead of the transfer's result
+    mainHandler.removeCallbacks(tick);
+    tickPosted = false;
+    postTick(0);
+  }
+
+  /** Forgets a transfer without sending anything more for it. */
+  synchronized void remove(int key) {
+    for (int i = 0; i < size; i++) {
+      if (keys[i] == key) {
+        removeSlot(i);
+        return;
+      }
+    }
+  }
+
+  private void flush() {
+    long[] batch;
+    MethodChannel target;
+    synchronized (this) {
+      tickPosted = false;
+      int count = 0;
+      for (int i = 0; i < size; i++) {
+        if (dirty[i]) count++;
+      }
+      if (count == 0 || channel == null) return;
+
+      batch = new long[count * 3];
+      int n = 0;
+      for (int i = 0; i < size; i++) {
+        if (!dirty[i]) continue;
+        batch[n++] = keys[i];
+        batch[n++] = bytes[i];
+        batch[n++] = totals[i];
+        sentBytes[i] = bytes[i];
+        dirty[i] = false;
+      }
+
+      // Finished keys have been sent for the last time
+      for (int i = size - 1; i >= 0; i--) {
+        if (finished[i]) removeSlot(i);
+      }
+      target = channel;
+    }
+    target.invokeMethod("progressBatch", batch, null);
+  }
+
+  // Must be called while holding the lock
+  private void postTick(long delayMillis) {
+    if (tickPosted) return;
+    tickPosted = true;
+    mainHandler.postDelayed(tick, delayMillis);
+  }
+
+  // Must be called while holding the lock
+  private int slot(int key) {
+    for (int i = 0; i < size; i++) {
+      if (keys[i] == key) return i;
+    }
+    if (size == keys.length) {
+      int capacity = size * 2;
+      keys = Arrays.copyOf(keys, capacity);
+      bytes = Arrays.copyOf(bytes, capacity);
+      totals = Arrays.copyOf(totals, capacity);
+      sentBytes = Arrays.copyOf(sentBytes, capacity);
+      dirty = Arrays.copyOf(dirty, capacity);
+      finished = Arrays.copyOf(finished, capacity);
+    }
+    int i = size++;
+    keys[i] = key;
+    bytes[i] = 0;
+    totals[i] = -1;
+    sentBytes[i] = 0;
+    dirty[i] = false;
+    finished[i] = false;
+    return i;
+  }
+
+  // Must be called while holding the lock; moves the last slot into the freed one
+  private void removeSlot(int i) {
+    int last = --size;
+    keys[i] = keys[last];
+    bytes[i] = bytes[last];
+    totals[i] = totals[last];
+    sentBytes[i] = sentBytes[last];
+    dirty[i] = dirty[last];
+    finished[i] = finished[last];
+  }
+}
@@ -0,0 +1,269 @@
+package com.mix1009.dropbox;
+
+import com.dropbox.core.DbxDownloader;
+import com.dropbox.core.DbxException;
+import com.dropbox.core.util.IOUtil;
+import com.dropbox.core.v2.DbxClientV2;
+import com.dropbox.core.v2.files.FileMetadata;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Downloads a file into {@code <target>.part} and records its progress in a small journal
+ * ({@code <target>.part.journal}), so an interrupted download continues with a ranged request
+ * instead of starting from byte 0. The finished file is checked against the Dropbox
+ * {@code content_hash} before it is renamed into place.
+ */
+class ResumableDownloader {
+
+  /** How many bytes are written between two journal checkpoints. */
+  static final long CHECKPOINT_BYTES = 8L * 1024 * 1024;
+
+  /** How many bytes one {@code transferFrom} call moves, which is also the progress granularity. */
+  static final long TRANSFER_BYTES = 256 * 1024;
+
+  private final DbxClientV2 client;
+
+  ResumableDownloader(DbxClientV2 client) {
+    this.client = client;
+  }
+
+  /**
+   * Downloads a file, resuming an earlier attempt of the same revision when one is on disk.
+   *
+   * @param path     The Dropbox path of the file.
+   * @param metadata The expected metadata of the remote file. It may come from a cache; when the
+   *                 file turns out to have a newer revision the download starts over.
+   * @param target   The local file to create.
+   * @param listener Receives the total number of bytes on disk so far, including resumed ones.
+   * @return the metadata of the revision that was downloaded.
+   */
+  FileMetadata download(String path, FileMetadata metadata, File target, IOUtil.ProgressListener listener)
+          throws DbxException, IOException {
+    File part = partFile(target);
+    Journal journal = Journal.load(target);
+
+    // Only bytes of the same revision that made it to disk can be reused
+    long offset = 0;
+    if (journal != null && journal.ranges.isEmpty() && metadata.getRev().equals(journal.rev)
+            && part.exists() && part.length() >= journal.committed) {
+      offset = journal.committed;
+    }
+    if (offset > 0 && offset >= metadata.getSize()) {
+      // Everything arrived before the rename; a ranged request past the end would only get a 416
+      if (finishFromPart(target, journal)) {
+        listener.onProgress(metadata.getSize());
+        return metadata;
+      }
+      offset = 0;
+    }
+
+    DbxDownloader<FileMetadata> downloader = offset > 0
+            ? client.files().downloadBuilder(path).range(offset).start()
+            : client.files().downloadBuilder(path).start();
+    FileMetadata actual = downloader.getResult();
+
+    if (offset > 0 && !actual.getRev().equals(journal.rev)) {
+      // The file changed since the partial download; its bytes are of no use any more
+      downloader.close();
+      offset = 0;
+      downloader = client.files().downloadBuilder(path).start();
+      actual = downloader.getResult();
+    }
+    if (offset == 0) {
+      journal = new Journal(path, actual.getRev(), actual.getContentHash(), actual.getSize());
+    }
+    journal.committed = offset;
+    journal.save(target);
+
+    ContentHash hash = new ContentHash();
+    if (offset > 0) {
+      hash.update(part, offset);
+    }
+
+    try (RandomAccessFile raf = new RandomAccessFile(part, "rw");
+         InputStream in = downloader.getInputStream()) {
+      FileChannel channel = raf.getChannel();
+      channel.truncate(offset);
+
+      // The channel moves the bytes without a copy of our own; the hash sees them on the way
+      ReadableByteChannel source = hash.hashing(Channels.newChannel(in));
+      long position = offset;
+      long checkpoint = offset + CHECKPOINT_BYTES;
+      long count;
+      try {
+        while ((count = channel.transferFrom(source, position, TRANSFER_BYTES)) > 0) {
+          position += count;
+          listener.onProgress(position);
+
+          if (position >= checkpoint) {
+            // Make the bytes durable before the journal claims them
+            channel.force(false);
+            journal.committed = position;
+            journal.save(target);
+            checkpoint = position + CHECKPOINT_BYTES;
+          }
+        }
+      } catch (IOException e) {
+        // The stream broke or was aborted by a pause; keep what made it to disk
+        checkpoint(channel, journal, target, position);
+        throw e;
+      }
+      channel.force(false);
+    } finally {
+      downloader.close();
+    }
+
+    String expected = actual.getContentHash();
+    if (expected != null && !expected.equals(hash.finish())) {
+      discard(target);
+      throw new IOException("Content hash mismatch for " + actual.getPathDisplay());
+    }
+
+    moveIntoPlace(part, target);
+    Journal.file(target).delete();
+    return actual;
+  }
+
+  /**
+   * Moves a part file that the journal says is complete into place, after checking it against
+   * the content hash. A part file that does not match is discarded.
+   *
+   * @return false if the download has to start over.
+   */
+  static boolean finishFromPart(File target, Journal journal) throws IOException {
+    File part = partFile(target);
+    try (RandomAccessFile raf = new RandomAccessFile(part, "rw")) {
+      // Bytes written after the last checkpoint are not part of the file
+      raf.getChannel().truncate(journal.size);
+    }
+    ContentHash hash = new ContentHash();
+    hash.update(part, journal.size);
+    if (journal.contentHash != null && !journal.contentHash.equals(hash.finish())) {
+      discard(target);
+      return false;
+    }
+    moveIntoPlace(part, target);
+    Journal.file(target).delete();
+    return true;
+  }
+
+  private static void checkpoint(FileChannel channel, Journal journal, File target, long position) {
+    try {
+      channel.force(false);
+      journal.committed = position;
+      journal.save(target);
+    } catch (IOException e) {
+      // The last checkpoint still holds
+      e.printStackTrace();
+    }
+  }
+
+  /** Removes the partial file and journal of a download. */
+  static void discard(File target) {
+    partFile(target).delete();
+    Journal.file(target).delete();
+  }
+
+  static File partFile(File target) {
+    return new File(target.getPath() + ".part");
+  }
+
+  static void moveIntoPlace(File part, File target) throws IOException {
+    if (target.exists() && !target.delete()) {
+      throw new IOException("Could not replace " + target);
+    }
+    if (!part.renameTo(target)) {
+      throw new IOException("Could not rename " + part + " to " + target);
+    }
+  }
+
+  /** What has been downloaded so far for one target file. */
+  static class Journal {
+    private static final String RANGE_PREFIX = "range.";
+
+    final String path;
+    final String rev;
+    final String contentHash;
+    final long size;
+    long committed;
+
+    // Set by a SegmentedDownloader instead of committed: how many bytes each range, keyed by
+    // its start, has on disk. A range ends where the next one starts.
+    final TreeMap<Long, Long> ranges = new TreeMap<>();
+
+    Journal(String path, String rev, String contentHash, long size) {
+      this.path = path;
+      this.rev = rev;
+      this.contentHash = contentHash;
+      this.size = size;
+    }
+
+    static File file(File target) {
+      return new File(target.getPath() + ".part.journal");
+    }
+
+    /** @return the journal of a target file, or null when there is none or it is unreadable. */
+    static Journal load(File target) {
+      File file = file(target);
+      if (!file.exists()) return null;
+
+      Properties props = new Properties();
+      try (InputStream in = new FileInputStream(file)) {
+        props.load(in);
+        Journal journal = new Journal(
+                props.getProperty("path"),
+                props.getProperty("rev"),
+                props.getProperty("contentHash"),
+                Long.parseLong(props.getProperty("size", "0")));
+        journal.committed = Long.parseLong(props.getProperty("committed", "0"));
+        for (String name : props.stringPropertyNames()) {
+          if (name.startsWith(RANGE_PREFIX)) {
+            journal.ranges.put(Long.parseLong(name.substring(RANGE_PREFIX.length())),
+                    Long.parseLong(props.getProperty(name)));
+          }
+        }
+        return journal;
+      } catch (IOException | NumberFormatException e) {
+        // A damaged journal only means the download starts over
+        return null;
+      }
+    }
+
+    void save(File target) throws IOException {
+      Properties props = new Properties();
+      props.setProperty("path", path);
+      props.setProperty("rev", rev);
+      if (contentHash != null) {
+        props.setProperty("contentHash", contentHash);
+      }
+      props.setProperty("size", Long.toString(size));
+      props.setProperty("committed", Long.toString(committed));
+      for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+        props.setProperty(RANGE_PREFIX + range.getKey(), Long.toString(range.getValue()));
+      }
+
+      // Write a new copy and swap it in, so a crash never leaves a half-written journal
+      File file = file(target);
+      File tmp = new File(file.getPath() + ".tmp");
+      try (FileOutputStream out = new FileOutputStream(tmp)) {
+        props.store(out, null);
+        out.getFD().sync();
+      }
+      if (!tmp.renameTo(file)) {
+        throw new IOException("Could not write " + file);
+      }
+    }
+  }
+}
@@ -0,0 +1,220 @@
+package com.mix1009.dropbox;
+
+import com.dropbox.core.DbxException;
+import com.dropbox.core.NetworkIOException;
+import com.dropbox.core.RateLimitException;
+import com.dropbox.core.RetryException;
+import com.dropbox.core.ServerException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Random;
+
+/**
+ * Retries Dropbox calls that failed for a transient reason: network errors, 5xx responses and
+ * rate limiting. Calls that are not idempotent go through {@link #callOnce} instead, which only
+ * retries when the server cannot have applied the failed attempt.
+ *
+ * Delays grow exponentially with full jitter, so clients that failed together do not retry
+ * together, and never undercut the backoff the server asked for. A circuit breaker watches all
+ * operations: when Dropbox throttles us, or enough calls in a row fail, it opens and pauses the
+ * transfer queues of the {@link TransferScheduler} until the cool-down is over. The first call
+ * after that decides whether it closes again or reopens with a longer cool-down.
+ */
+class RetryPolicy {
+
+  enum CircuitState { CLOSED, OPEN, HALF_OPEN }
+
+  interface Call<T> {
+    T run() throws DbxException, IOException;
+  }
+
+  static final int DEFAULT_MAX_ATTEMPTS = 4;
+  static final long DEFAULT_BASE_DELAY_MILLIS = 500;
+  static final long DEFAULT_MAX_DELAY_MILLIS = 30000;
+
+  private static final int FAILURE_THRESHOLD = 5;
+  private static final long MAX_COOL_DOWN_MILLIS = 5 * 60 * 1000;
+
+  private final Random random = new Random();
+  private volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+  private volatile long baseDelayMillis = DEFAULT_BASE_DELAY_MILLIS;
+  private volatile long maxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+
+  // Guarded by this
+  private CircuitState state = CircuitState.CLOSED;
+  private int consecutiveFailures;
+  private long coolDownMillis;
+  private long openUntilNanos;
+
+  /**
+   * @param maxAttempts     How often one call is tried in total, at least 1.
+   * @param baseDelayMillis The delay before the first retry; doubled for every further one.
+   * @param maxDelayMillis  The longest delay between two attempts, unless the server asks for more.
+   */
+  void configure(Integer maxAttempts, Long baseDelayMillis, Long maxDelayMillis) {
+    if (maxAttempts != null) this.maxAttempts = Math.max(1, maxAttempts);
+    if (baseDelayMillis != null) this.baseDelayMillis = Math.max(1, baseDelayMillis);
+    if (maxDelayMillis != null) this.maxDelayMillis = Math.max(this.baseDelayMillis, maxDelayMillis);
+  }
+
+  /** Runs a call, retrying it while it fails transiently and attempts are left. */
+  <T> T call(Call<T> call) throws DbxException, IOException {
+    for (int attempt = 1; ; attempt++) {
+      DropboxPlugin.transfers.checkStopped();
+      try {
+        T value = call.run();
+        succeeded();
+        return value;
+      } catch (DbxException | IOException e) {
+        if (!retryable(e)) {
+          // The server answered, it just did not like the request
+          if (e instanceof DbxException) succeeded();
+          throw e;
+        }
+        // A paused or cancelled transfer fails because its calls were aborted on purpose
+        DropboxPlugin.transfers.checkStopped();
+        failed(e);
+        if (attempt >= maxAttempts) throw e;
+        backOff(e, attempt);
+      }
+    }
+  }
+
+  /**
+   * Runs a call that must not be repeated once the server may have applied it, such as an
+   * upload with autorename or a batch launch: after a lost response a retry would create a
+   * renamed duplicate or fail on work that succeeded. It is only retried when the failed
+   * attempt was turned away (throttled) or never connected; other failures are thrown.
+   */
+  <T> T callOnce(Call<T> call) throws DbxException, IOException {
+    for (int attempt = 1; ; attempt++) {
+      DropboxPlugin.transfers.checkStopped();
+      try {
+        T value = call.run();
+        succeeded();
+        return value;
+      } catch (DbxException | IOException e) {
+        if (!retryable(e)) {
+          if (e instanceof DbxException) succeeded();
+          throw e;
+        }
+        DropboxPlugin.transfers.checkStopped();
+        failed(e);
+        if (!notApplied(e) || attempt >= maxAttempts) throw e;
+        backOff(e, attempt);
+      }
+    }
+  }
+
+  /**
+   * Records a transient failure of a call that manages its own attempts and waits before the
+   * next one. Rethrows the failure when it is not transient or no attempts are left.
+   */
+  void retryOrThrow(Exception e, int attempt) throws DbxException, IOException {
+    DropboxPlugin.transfers.checkStopped();
+    if (retryable(e)) {
+      failed(e);
+      if (attempt < maxAttempts) {
+        backOff(e, attempt);
+        return;
+      }
+    }
+    if (e instanceof DbxException) throw (DbxException) e;
+    if (e instanceof IOException) throw (IOException) e;
+    throw (RuntimeException) e;
+  }
+
+  /** Records a successful call, which closes a half-open circuit. */
+  synchronized void succeeded() {
+    consecutiveFailures = 0;
+    if (state == CircuitState.HALF_OPEN) {
+      state = CircuitState.CLOSED;
+      coolDownMillis = 0;
+    }
+  }
+
+  synchronized CircuitState circuitState() {
+    if (state == CircuitState.OPEN && System.nanoTime() - openUntilNanos >= 0) {
+      state = CircuitState.HALF_OPEN;
+    }
+    return state;
+  }
+
+  static boolean retryable(Exception e) {
+    if (e instanceof RetryException || e instanceof ServerException || e instanceof NetworkIOException) {
+      return true;
+    }
+    // A connection that dropped while a response body was being read
+    return e instanceof SocketTimeoutException || e instanceof SocketException;
+  }
+
+  // Whether a failed call certainly had no effect on the server
+  static boolean notApplied(Exception e) {
+    if (e instanceof RetryException) return true;  // Throttled before it was processed
+    Throwable cause = e instanceof NetworkIOException ? e.getCause() : e;
+    return cause instanceof ConnectException || cause instanceof UnknownHostException
+            || cause instanceof NoRouteToHostException;
+  }
+
+  private void failed(Exception e) {
+    long coolDown = 0;
+    synchronized (this) {
+      consecutiveFailures++;
+      boolean throttled = e instanceof RetryException;
+      if (circuitState() == CircuitState.OPEN) {
+        // Already open; only a longer server backoff extends it
+        if (throttled) {
+          coolDown = Math.max(0, ((RetryException) e).getBackoffMillis()
+                  - (openUntilNanos - System.nanoTime()) / 1000000);
+        }
+      } else if (throttled || state == CircuitState.HALF_OPEN || consecutiveFailures >= FAILURE_THRESHOLD) {
+        coolDownMillis = coolDownMillis == 0
+                ? baseDelayMillis
+                : Math.min(MAX_COOL_DOWN_MILLIS, coolDownMillis * 2);
+        coolDown = throttled
+                ? Math.max(coolDownMillis, ((RetryException) e).getBackoffMillis())
+                : coolDownMillis;
+        state = CircuitState.OPEN;
+      }
+      if (coolDown > 0) {
+        openUntilNanos = System.nanoTime() + coolDown * 1000000;
+      }
+    }
+
+    if (coolDown > 0) {
+      TransferScheduler scheduler = DropboxPlugin.scheduler;
+      if (scheduler != null) {
+        scheduler.pause(TransferScheduler.Kind.TRANSFER, coolDown);
+        scheduler.pause(TransferScheduler.Kind.PART, coolDown);
+      }
+    }
+  }
+
+  private void backOff(Exception e, int attempt) throws InterruptedIOException {
+    long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(20, attempt - 1));
+    long delay = (long) (random.nextDouble() * ceiling);
+    if (e instanceof RetryException) {
+      delay = Math.max(delay, ((RetryException) e).getBackoffMillis());
+    }
+    synchronized (this) {
+      // Nothing gets through an open circuit
+      if (state == CircuitState.OPEN) {
+        delay = Math.max(delay, (openUntilNanos - System.nanoTime()) / 1000000);
+      }
+    }
+
+    DropboxPlugin.metrics.retried(e instanceof RateLimitException);
+    try {
+      Thread.sleep(Math.max(0, delay));
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting to retry");
+    }
+  }
+}
@@ -0,0 +1,204 @@
+package com.mix1009.dropbox;
+
+import com.dropbox.core.DbxDownloader;
+import com.dropbox.core.DbxException;
+import com.dropbox.core.NetworkIOException;
+import com.dropbox.core.util.IOUtil;
+import com.dropbox.core.v2.DbxClientV2;
+import com.dropbox.core.v2.files.FileMetadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads a large file as several byte ranges at once.
+ *
+ * The file is preallocated in {@code <target>.part} and every range is written into its own
+ * offset with positional {@link FileChannel#write(ByteBuffer, long)} calls. A dropped range is
+ * continued from where it stopped. The download journal records how far each range got, so a
+ * paused or failed download of the same revision later fetches only what is missing. The result
+ * is checked against the Dropbox {@code content_hash} before it is renamed into place.
+ */
+class SegmentedDownloader {
+
+  private final DbxClientV2 client;
+  private final TransferScheduler scheduler;
+  private final int segments;
+
+  /**
+   * @param client    The authenticated Dropbox client.
+   * @param scheduler The scheduler that runs the range requests.
+   * @param segments  How many ranges to fetch at the same time.
+   */
+  SegmentedDownloader(DbxClientV2 client, TransferScheduler scheduler, int segments) {
+    this.client = client;
+    this.scheduler = scheduler;
+    this.segments = Math.max(1, segments);
+  }
+
+  /**
+   * Downloads a file, continuing an earlier attempt of the same revision when one is on disk.
+   * Blocks until every range has been written and verified.
+   *
+   * @param path     The Dropbox path of the file.
+   * @param metadata The current metadata of the remote file; its size decides the ranges.
+   * @param target   The local file to create.
+   * @param listener Receives the total number of bytes written so far, including resumed ones.
+   */
+  void download(String path, FileMetadata metadata, File target, IOUtil.ProgressListener listener)
+          throws DbxException, IOException {
+    File part = ResumableDownloader.partFile(target);
+    long size = metadata.getSize();
+
+    ResumableDownloader.Journal journal = ResumableDownloader.Journal.load(target);
+    if (journal == null || journal.ranges.isEmpty() || !metadata.getRev().equals(journal.rev)
+            || journal.size != size || part.length() != size) {
+      // Nothing to continue; a sequential journal's bytes are laid out differently
+      ResumableDownloader.discard(target);
+      journal = new ResumableDownloader.Journal(path, metadata.getRev(), metadata.getContentHash(), size);
+      long segmentSize = (size + segments - 1) / segments;
+      for (long start = 0; start < size; start += segmentSize) {
+        journal.ranges.put(start, 0L);
+      }
+    }
+
+    // Resumed ranges keep their boundaries, even if the segment count changed since
+    Map<Long, AtomicLong> done = new LinkedHashMap<>();
+    long resumed = 0;
+    for (Map.Entry<Long, Long> range : journal.ranges.entrySet()) {
+      done.put(range.getKey(), new AtomicLong(range.getValue()));
+      resumed += range.getValue();
+    }
+    AtomicLong written = new AtomicLong(resumed);
+    if (resumed > 0) {
+      listener.onProgress(resumed);
+    }
+
+    try (RandomAccessFile raf = new RandomAccessFile(part, "rw")) {
+      FileChannel channel = raf.getChannel();
+      raf.setLength(size);
+      Checkpoints checkpoints = new Checkpoints(channel, journal, done, target, resumed);
+      checkpoints.save();
+
+      List<TransferScheduler.Part> parts = new ArrayList<>();
+      for (Map.Entry<Long, AtomicLong> range : done.entrySet()) {
+        long offset = range.getKey();
+        Long next = journal.ranges.higherKey(offset);
+        long length = (next != null ? next : size) - offset;
+        AtomicLong rangeDone = range.getValue();
+        if (rangeDone.get() >= length) continue;
+        parts.add(() -> fetchRange(path, metadata.getRev(), channel, offset, length, rangeDone, written,
+                checkpoints, listener));
+      }
+      try {
+        scheduler.runAll(TransferScheduler.Kind.PART, parts);
+      } catch (DbxException | IOException e) {
+        // A failure or a pause; every range has stopped, keep what made it to disk
+        try {
+          checkpoints.save();
+        } catch (IOException saveFailure) {
+          // The last checkpoint still holds
+          saveFailure.printStackTrace();
+        }
+        throw e;
+      }
+      channel.force(false);
+    }
+
+    String expected = metadata.getContentHash();
+    if (expected != null && !expected.equals(ContentHash.of(part))) {
+      ResumableDownloader.discard(target);
+      throw new IOException("Content hash mismatch for " + metadata.getPathDisplay());
+    }
+
+    ResumableDownloader.moveIntoPlace(part, target);
+    ResumableDownloader.Journal.file(target).delete();
+  }
+
+  private void fetchRange(String path, String rev, FileChannel channel, long offset, long length,
+                          AtomicLong done, AtomicLong written, Checkpoints checkpoints,
+                          IOUtil.ProgressListener listener)
+          throws DbxException, IOException {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        DbxDownloader<FileMetadata> downloader = client.files().downloadBuilder(path)
+                .withRev(rev)
+                .range(offset + done.get(), length - done.get())
+                .start();
+
+        try (InputStream in = downloader.getInputStream()) {
+          byte[] buffer = new byte[64 * 1024];
+          int read;
+          while (done.get() < length && (read = in.read(buffer)) >= 0) {
+            ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+            long position = offset + done.get();
+            while (chunk.hasRemaining()) {
+              position += channel.write(chunk, position);
+            }
+            done.addAndGet(read);
+            long total = written.addAndGet(read);
+            listener.onProgress(total);
+            checkpoints.reached(total);
+          }
+        } finally {
+          downloader.close();
+        }
+
+        if (done.get() < length) {
+          throw new NetworkIOException(new IOException("Range ended early at " + (offset + done.get())));
+        }
+        DropboxPlugin.retryPolicy.succeeded();
+        return;
+      } catch (DbxException | IOException e) {
+        // Bytes already written stay; the next attempt asks only for the rest of the range
+        DropboxPlugin.retryPolicy.retryOrThrow(e, attempt);
+      }
+    }
+  }
+
+  // Saves how far every range got, every CHECKPOINT_BYTES and once the ranges stop
+  private static class Checkpoints {
+    private final FileChannel channel;
+    private final ResumableDownloader.Journal journal;
+    private final Map<Long, AtomicLong> done;
+    private final File target;
+    private volatile long next;
+
+    Checkpoints(FileChannel channel, ResumableDownloader.Journal journal, Map<Long, AtomicLong> done,
+                File target, long written) {
+      this.channel = channel;
+      this.journal = journal;
+      this.done = done;
+      this.target = target;
+      this.next = written + ResumableDownloader.CHECKPOINT_BYTES;
+    }
+
+    void reached(long written) throws IOException {
+      if (written < next) return;
+      synchronized (this) {
+        if (written < next) return;
+        next = written + ResumableDownloader.CHECKPOINT_BYTES;
+        save();
+      }
+    }
+
+    synchronized void save() throws IOException {
+      // Counted bytes were written before they were counted; make them durable before the
+      // journal claims them
+      for (Map.Entry<Long, AtomicLong> range : done.entrySet()) {
+        journal.ranges.put(range.getKey(), range.getValue().get());
+      }
+      channel.force(false);
+      journal.save(target);
+    }
+  }
+}
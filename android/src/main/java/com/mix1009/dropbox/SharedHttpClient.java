@@ -0,0 +1,228 @@
+package com.mix1009.dropbox;
+
+import com.dropbox.core.DbxRequestConfig;
+import com.dropbox.core.http.OkHttp3Requestor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.EventListener;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+/**
+ * The one OkHttp client behind every {@link DbxRequestConfig} the plugin builds, so TLS sessions,
+ * pooled connections and DNS results survive re-authorization and are shared by all transfers.
+ *
+ * The SDK streams uploads through OkHttp's dispatcher, which by default runs only 5 calls per
+ * host at once; the per-host cap therefore follows the {@link TransferScheduler}'s total
+ * concurrency unless it is set explicitly, so parallel workers are never queued twice.
+ *
+ * Every call is attached to the {@link TransferRegistry} transfer of the worker that starts it,
+ * which is how pausing or cancelling a transfer aborts its streams.
+ */
+class SharedHttpClient {
+
+  static final int DEFAULT_MAX_IDLE_CONNECTIONS = 8;
+  static final long DEFAULT_KEEP_ALIVE_MILLIS = 5 * 60 * 1000;
+
+  private final Stats stats;
+
+  // Guarded by this
+  private int maxIdleConnections = DEFAULT_MAX_IDLE_CONNECTIONS;
+  private long keepAliveMillis = DEFAULT_KEEP_ALIVE_MILLIS;
+  private Long connectTimeoutMillis;
+  private Long readTimeoutMillis;
+  private Long writeTimeoutMillis;
+  private Integer maxRequestsPerHost;
+  private Interceptor interceptor;
+  private int schedulerConcurrency;
+  private OkHttpClient client;
+  private OkHttp3Requestor requestor;
+
+  SharedHttpClient(TransferRegistry transfers) {
+    this.stats = new Stats(transfers);
+  }
+
+  /**
+   * Changes the pool and timeout settings. Null leaves a setting alone. Clients created before
+   * this call keep the old settings, so call it from {@code init}, before authorizing.
+   */
+  synchronized void configure(Integer maxIdleConnections, Long keepAliveMillis,
+                              Long connectTimeoutMillis, Long readTimeoutMillis, Long writeTimeoutMillis,
+                              Integer maxRequestsPerHost) {
+    if (maxIdleConnections != null) this.maxIdleConnections = Math.max(0, maxIdleConnections);
+    if (keepAliveMillis != null) this.keepAliveMillis = Math.max(1, keepAliveMillis);
+    if (connectTimeoutMillis != null) this.connectTimeoutMillis = connectTimeoutMillis;
+    if (readTimeoutMillis != null) this.readTimeoutMillis = readTimeoutMillis;
+    if (writeTimeoutMillis != null) this.writeTimeoutMillis = writeTimeoutMillis;
+    if (maxRequestsPerHost != null && maxRequestsPerHost > 0) this.maxRequestsPerHost = maxRequestsPerHost;
+
+    // Rebuilt lazily with the new settings; the old pool's idle connections are closed
+    if (client != null) {
+      client.connectionPool().evictAll();
+    }
+    client = null;
+    requestor = null;
+  }
+
+  /**
+   * Runs every request of clients created from now on through an interceptor. The benchmark
+   * harness uses it to send the SDK's requests to a local stand-in for the Dropbox API.
+   */
+  synchronized void setInterceptor(Interceptor interceptor) {
+    this.interceptor = interceptor;
+    if (client != null) {
+      client.connectionPool().evictAll();
+    }
+    client = null;
+    requestor = null;
+  }
+
+  /** Sizes the dispatcher for the number of operations the scheduler runs at once. */
+  synchronized void setSchedulerConcurrency(int concurrency) {
+    schedulerConcurrency = concurrency;
+    if (client != null) {
+      applyDispatcherLimits(client.dispatcher());
+    }
+  }
+
+  /** @return a request config for the given client id that uses the shared client. */
+  synchronized DbxRequestConfig requestConfig(String clientId) {
+    if (requestor == null) {
+      requestor = new OkHttp3Requestor(client());
+    }
+    return DbxRequestConfig.newBuilder(clientId)
+            .withHttpRequestor(requestor)
+            .build();
+  }
+
+  /** @return connection reuse counters plus the current pool and dispatcher state. */
+  synchronized Map<String, Object> stats() {
+    Map<String, Object> result = stats.toMap();
+    if (client != null) {
+      result.put("pooledConnections", client.connectionPool().connectionCount());
+      result.put("idleConnections", client.connectionPool().idleConnectionCount());
+      result.put("runningCalls", client.dispatcher().runningCallsCount());
+      result.put("queuedCalls", client.dispatcher().queuedCallsCount());
+      result.put("maxRequestsPerHost", client.dispatcher().getMaxRequestsPerHost());
+    }
+    return result;
+  }
+
+  // Must be called while holding the lock
+  private OkHttpClient client() {
+    if (client == null) {
+      // Starts from the SDK's builder to keep its timeouts and certificate pinning
+      OkHttpClient.Builder builder = OkHttp3Requestor.defaultOkHttpClientBuilder()
+              .connectionPool(new ConnectionPool(maxIdleConnections, keepAliveMillis, TimeUnit.MILLISECONDS))
+              .dispatcher(new Dispatcher())
+              .eventListener(stats);
+      if (connectTimeoutMillis != null) builder.connectTimeout(connectTimeoutMillis, TimeUnit.MILLISECONDS);
+      if (readTimeoutMillis != null) builder.readTimeout(readTimeoutMillis, TimeUnit.MILLISECONDS);
+      if (writeTimeoutMillis != null) builder.writeTimeout(writeTimeoutMillis, TimeUnit.MILLISECONDS);
+      if (interceptor != null) builder.addInterceptor(interceptor);
+      client = builder.build();
+      applyDispatcherLimits(client.dispatcher());
+    }
+    return client;
+  }
+
+  // Must be called while holding the lock
+  private void applyDispatcherLimits(Dispatcher dispatcher) {
+    int perHost = maxRequestsPerHost != null
+            ? maxRequestsPerHost
+            : Math.max(dispatcher.getMaxRequestsPerHost(), schedulerConcurrency);
+    dispatcher.setMaxRequests(Math.max(dispatcher.getMaxRequests(), perHost));
+    dispatcher.setMaxRequestsPerHost(perHost);
+  }
+
+  /**
+   * Counts the connection work OkHttp does, to show how often a pooled connection is reused, and
+   * keeps track of which transfer every call belongs to.
+   */
+  private static class Stats extends EventListener {
+    private final TransferRegistry transfers;
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong failedCalls = new AtomicLong();
+    private final AtomicLong dnsLookups = new AtomicLong();
+    private final AtomicLong connects = new AtomicLong();
+    private final AtomicLong failedConnects = new AtomicLong();
+    private final AtomicLong tlsHandshakes = new AtomicLong();
+    private final AtomicLong acquired = new AtomicLong();
+
+    Stats(TransferRegistry transfers) {
+      this.transfers = transfers;
+    }
+
+    @Override
+    public void callStart(Call call) {
+      calls.incrementAndGet();
+      // Runs on the thread that enqueued or executed the call, i.e. the transfer's worker
+      transfers.attach(call);
+    }
+
+    @Override
+    public void callEnd(Call call) {
+      transfers.detach(call);
+    }
+
+    @Override
+    public void callFailed(Call call, IOException ioe) {
+      failedCalls.incrementAndGet();
+      transfers.detach(call);
+    }
+
+    @Override
+    public void dnsStart(Call call, String domainName) {
+      dnsLookups.incrementAndGet();
+    }
+
+    @Override
+    public void connectEnd(Call call, InetSocketAddress address, Proxy proxy, Protocol protocol) {
+      connects.incrementAndGet();
+    }
+
+    @Override
+    public void connectFailed(Call call, InetSocketAddress address, Proxy proxy, Protocol protocol,
+                              IOException ioe) {
+      failedConnects.incrementAndGet();
+    }
+
+    @Override
+    public void secureConnectStart(Call call) {
+      tlsHandshakes.incrementAndGet();
+    }
+
+    @Override
+    public void connectionAcquired(Call call, Connection connection) {
+      acquired.incrementAndGet();
+    }
+
+    Map<String, Object> toMap() {
+      long acquiredCount = acquired.get();
+      long newConnections = connects.get();
+      Map<String, Object> map = new HashMap<>();
+      map.put("calls", calls.get());
+      map.put("failedCalls", failedCalls.get());
+      map.put("dnsLookups", dnsLookups.get());
+      map.put("newConnections", newConnections);
+      map.put("failedConnects", failedConnects.get());
+      map.put("tlsHandshakes", tlsHandshakes.get());
+      map.put("connectionsAcquired", acquiredCount);
+      // Every acquisition that did not need a fresh connection came from the pool
+      map.put("connectionsReused", Math.max(0, acquiredCount - newConnections));
+      return map;
+    }
+  }
+}
@@ -0,0 +1,402 @@
+package com.mix1009.dropbox;
+
+import android.util.Base64;
+
+import com.dropbox.core.DbxException;
+import com.dropbox.core.v2.files.FileMetadata;
+import com.dropbox.core.v2.files.GetThumbnailBatchResultData;
+import com.dropbox.core.v2.files.GetThumbnailBatchResultEntry;
+import com.dropbox.core.v2.files.Metadata;
+import com.dropbox.core.v2.files.ThumbnailArg;
+import com.dropbox.core.v2.files.ThumbnailFormat;
+import com.dropbox.core.v2.files.ThumbnailMode;
+import com.dropbox.core.v2.files.ThumbnailSize;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Loads thumbnails with {@code get_thumbnail_batch}.
+ *
+ * Requests are coalesced: they queue up while a batch is on the wire and the next batch takes
+ * up to 25 of them at once. Requests for a thumbnail that is already queued or in flight join
+ * it instead of asking again. Thumbnails are cached in memory and on disk, both least recently
+ * used first, keyed by path, revision and thumbnail spec; a file that changes gets a new
+ * revision and thereby a new thumbnail.
+ */
+class ThumbnailLoader {
+
+  /** Dropbox accepts at most this many entries in one batch call. */
+  static final int MAX_BATCH_ENTRIES = 25;
+
+  static final long DEFAULT_MEMORY_BYTES = 16L * 1024 * 1024;
+  static final long DEFAULT_DISK_BYTES = 64L * 1024 * 1024;
+
+  /** How many batches run at once; more requests simply wait for the next batch. */
+  private static final int MAX_BATCHES = 2;
+
+  /** Receives a thumbnail, or an error message. Called on a worker or the calling thread. */
+  interface Callback {
+    void done(byte[] thumbnail, String error);
+  }
+
+  private final Object lock = new Object();
+  private final DiskCache disk;
+
+  // Guarded by lock
+  private final LinkedHashMap<String, Request> pending = new LinkedHashMap<>();
+  private final Map<String, Request> inFlight = new HashMap<>();
+  private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<>(64, 0.75f, true);
+  private long memoryBytes;
+  private long maxMemoryBytes = DEFAULT_MEMORY_BYTES;
+  private int runningBatches;
+  private long hits;
+  private long diskHits;
+  private long misses;
+
+  /** @param dir The directory for the disk tier, usually under the app's cache directory. */
+  ThumbnailLoader(File dir) {
+    disk = new DiskCache(dir, DEFAULT_DISK_BYTES);
+  }
+
+  void setLimits(Long maxMemoryBytes, Long maxDiskBytes) {
+    synchronized (lock) {
+      if (maxMemoryBytes != null) {
+        this.maxMemoryBytes = Math.max(0, maxMemoryBytes);
+        trimMemory();
+      }
+    }
+    if (maxDiskBytes != null) {
+      disk.setMaxBytes(Math.max(0, maxDiskBytes));
+    }
+  }
+
+  /**
+   * Loads the thumbnail of a file. A memory hit calls back right away on the calling thread,
+   * everything else is called back from a worker.
+   */
+  void load(String path, ThumbnailSize size, ThumbnailFormat format, ThumbnailMode mode, Callback callback) {
+    String spec = size.name() + "." + format.name() + "." + mode.name();
+    String requestKey = path.toLowerCase(Locale.ROOT) + "|" + spec;
+
+    // The revision comes from the metadata cache, which listing the folder has filled
+    Metadata metadata = DropboxPlugin.metadataCache.get(path);
+    String rev = metadata instanceof FileMetadata ? ((FileMetadata) metadata).getRev() : null;
+
+    byte[] cached = null;
+    synchronized (lock) {
+      if (rev != null) {
+        cached = memory.get(cacheKey(path, rev, spec));
+      }
+      if (cached != null) {
+        hits++;
+      } else {
+        Request request = inFlight.get(requestKey);
+        if (request == null) {
+          request = pending.get(requestKey);
+        }
+        if (request == null) {
+          request = new Request(requestKey, spec, rev, new ThumbnailArg(path, format, size, mode));
+          pending.put(requestKey, request);
+        }
+        request.callbacks.add(callback);
+        startBatches();
+      }
+    }
+    if (cached != null) {
+      callback.done(cached, null);
+    }
+  }
+
+  /** Drops the memory tier; the disk tier is left to its own budget. */
+  void clearMemory() {
+    synchronized (lock) {
+      memory.clear();
+      memoryBytes = 0;
+    }
+  }
+
+  Map<String, Object> stats() {
+    Map<String, Object> stats = new HashMap<>();
+    synchronized (lock) {
+      stats.put("memoryEntries", memory.size());
+      stats.put("memoryBytes", memoryBytes);
+      stats.put("hits", hits);
+      stats.put("diskHits", diskHits);
+      stats.put("misses", misses);
+      stats.put("pending", pending.size());
+    }
+    stats.put("diskBytes", disk.bytes());
+    return stats;
+  }
+
+  // Must be called while holding the lock
+  private void startBatches() {
+    while (runningBatches < MAX_BATCHES && runningBatches < pending.size()) {
+      runningBatches++;
+      // Not bound to the request that happened to start it; the batch serves many
+      DropboxPlugin.scheduler.enqueue(TransferScheduler.Kind.METADATA, this::drain);
+    }
+  }
+
+  // Runs batches until nothing is left
+  private void drain() {
+    List<Request> batch = new ArrayList<>();
+    try {
+      while (true) {
+        batch.clear();
+        synchronized (lock) {
+          Iterator<Request> it = pending.values().iterator();
+          while (batch.size() < MAX_BATCH_ENTRIES && it.hasNext()) {
+            Request request = it.next();
+            it.remove();
+            inFlight.put(request.key, request);
+            batch.add(request);
+          }
+          if (batch.isEmpty()) {
+            runningBatches--;
+            return;
+          }
+        }
+        drainBatch(batch);
+      }
+    } catch (RuntimeException e) {
+      // Whoever waits for this batch gets an answer, and the loader keeps going
+      for (Request request : batch) {
+        complete(request, null, e.toString());
+      }
+      synchronized (lock) {
+        runningBatches--;
+        startBatches();
+      }
+      throw e;
+    }
+  }
+
+  private void drainBatch(List<Request> batch) {
+
+    List<Request> fetch = new ArrayList<>();
+    for (Request request : batch) {
+      String key = request.rev != null ? cacheKey(request.arg.getPath(), request.rev, request.spec) : null;
+      byte[] cached = key != null ? disk.get(key) : null;
+      if (cached != null) {
+        synchronized (lock) {
+          diskHits++;
+          putMemory(key, cached);
+        }
+        complete(request, cached, null);
+      } else {
+        fetch.add(request);
+      }
+    }
+    if (!fetch.isEmpty()) {
+      fetch(fetch);
+    }
+  }
+
+  private void fetch(List<Request> batch) {
+    List<ThumbnailArg> args = new ArrayList<>(batch.size());
+    for (Request request : batch) {
+      args.add(request.arg);
+    }
+
+    List<GetThumbnailBatchResultEntry> entries;
+    try {
+      entries = DropboxPlugin.retryPolicy.call(() -> DropboxPlugin.client.files().getThumbnailBatch(args)).getEntries();
+    } catch (DbxException | IOException e) {
+      e.printStackTrace();
+      DropboxPlugin.metrics.failed(e);
+      for (Request request : batch) {
+        complete(request, null, e.getMessage());
+      }
+      return;
+    }
+
+    for (int i = 0; i < batch.size(); i++) {
+      Request request = batch.get(i);
+      GetThumbnailBatchResultEntry entry = i < entries.size() ? entries.get(i) : null;
+      if (entry == null || !entry.isSuccess()) {
+        complete(request, null, entry != null && entry.isFailure() ? entry.getFailureValue().toString() : "no result");
+        continue;
+      }
+
+      GetThumbnailBatchResultData data = entry.getSuccessValue();
+      byte[] thumbnail = Base64.decode(data.getThumbnail(), Base64.DEFAULT);
+      String key = cacheKey(request.arg.getPath(), data.getMetadata().getRev(), request.spec);
+      DropboxPlugin.metadataCache.put(data.getMetadata());
+      synchronized (lock) {
+        misses++;
+        putMemory(key, thumbnail);
+      }
+      disk.put(key, thumbnail);
+      complete(request, thumbnail, null);
+    }
+  }
+
+  private void complete(Request request, byte[] thumbnail, String error) {
+    List<Callback> callbacks;
+    synchronized (lock) {
+      // Every request is answered once
+      if (inFlight.get(request.key) != request) return;
+      inFlight.remove(request.key);
+      callbacks = new ArrayList<>(request.callbacks);
+    }
+    for (Callback callback : callbacks) {
+      callback.done(thumbnail, error);
+    }
+  }
+
+  // Must be called while holding the lock
+  private void putMemory(String key, byte[] thumbnail) {
+    byte[] previous = memory.put(key, thumbnail);
+    if (previous != null) {
+      memoryBytes -= previous.length;
+    }
+    memoryBytes += thumbnail.length;
+    trimMemory();
+  }
+
+  // Must be called while holding the lock
+  private void trimMemory() {
+    Iterator<byte[]> it = memory.values().iterator();
+    while (memoryBytes > maxMemoryBytes && it.hasNext()) {
+      memoryBytes -= it.next().length;
+      it.remove();
+    }
+  }
+
+  private static String cacheKey(String path, String rev, String spec) {
+    return path.toLowerCase(Locale.ROOT) + "|" + rev + "|" + spec;
+  }
+
+  /** One thumbnail that is waited for, with everyone waiting for it. */
+  private static class Request {
+    final String key;
+    final String spec;
+    final String rev;
+    final ThumbnailArg arg;
+    final List<Callback> callbacks = new ArrayList<>();
+
+    Request(String key, String spec, String rev, ThumbnailArg arg) {
+      this.key = key;
+      this.spec = spec;
+      this.rev = rev;
+      this.arg = arg;
+    }
+  }
+
+  /**
+   * Thumbnails as files named by the hash of their key. Reading a file touches its modification
+   * time, which is the recency the least recently used files are evicted by.
+   */
+  private static class DiskCache {
+    private final File dir;
+
+    // Guarded by this; the size is counted on first use
+    private long maxBytes;
+    private long bytes = -1;
+
+    DiskCache(File dir, long maxBytes) {
+      this.dir = dir;
+      this.maxBytes = maxBytes;
+    }
+
+    synchronized void setMaxBytes(long maxBytes) {
+      this.maxBytes = maxBytes;
+      if (bytes >= 0) {
+        trim();
+      }
+    }
+
+    synchronized long bytes() {
+      return Math.max(0, bytes);
+    }
+
+    byte[] get(String key) {
+      File file = file(key);
+      if (!file.exists()) return null;
+      byte[] data = new byte[(int) file.length()];
+      try (InputStream in = new FileInputStream(file)) {
+        int position = 0;
+        int read;
+        while (position < data.length && (read = in.read(data, position, data.length - position)) >= 0) {
+          position += read;
+        }
+        if (position < data.length) return null;
+      } catch (IOException e) {
+        return null;
+      }
+      file.setLastModified(System.currentTimeMillis());
+      return data;
+    }
+
+    void put(String key, byte[] data) {
+      File file = file(key);
+      File tmp = new File(file.getPath() + ".tmp");
+      if (!dir.isDirectory() && !dir.mkdirs()) return;
+      try (FileOutputStream out = new FileOutputStream(tmp)) {
+        out.write(data);
+      } catch (IOException e) {
+        // A thumbnail that is not on disk is fetched again next time
+        e.printStackTrace();
+        tmp.delete();
+        return;
+      }
+
+      synchronized (this) {
+        count();
+        long previous = file.length();
+        if (!tmp.renameTo(file)) {
+          tmp.delete();
+          return;
+        }
+        bytes += data.length - previous;
+        trim();
+      }
+    }
+
+    // Must be called while holding the lock
+    private void count() {
+      if (bytes >= 0) return;
+      bytes = 0;
+      File[] files = dir.listFiles();
+      if (files != null) {
+        for (File file : files) {
+          bytes += file.length();
+        }
+      }
+    }
+
+    // Must be called while holding the lock
+    private void trim() {
+      if (bytes <= maxBytes) return;
+      File[] files = dir.listFiles();
+      if (files == null) return;
+      Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+      // Down to 90%, so the next few puts do not list the directory again
+      for (File file : files) {
+        if (bytes <= maxBytes * 9 / 10) break;
+        long length = file.length();
+        if (file.delete()) {
+          bytes -= length;
+        }
+      }
+    }
+
+    private File file(String key) {
+      return new File(dir, ContentHash.toHex(ContentHash.newSha256().digest(key.getBytes(StandardCharsets.UTF_8))));
+    }
+  }
+}
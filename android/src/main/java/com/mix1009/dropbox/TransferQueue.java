@@ -0,0 +1,701 @@
+package com.mix1009.dropbox;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import io.flutter.plugin.common.MethodChannel;
+
+/**
+ * Uploads and downloads that must not be lost when the app is killed.
+ *
+ * Every change to a queued transfer is appended to a journal in the app's files directory
+ * before it takes effect: the transfer itself, the upload session it writes into and every
+ * chunk appended to that session, and finally its outcome. The journal is replayed on
+ * {@link #start}, which the plugin calls from {@code init}; transfers that were running when
+ * the process died are queued again and continue where their journal (or, for downloads, their
+ * {@code .part} file) says they stopped.
+ *
+ * A transfer only runs while the client is authenticated and its constraints (an unmetered
+ * network, a charger) are met; the queue checks again every {@link #RECHECK_MILLIS} while
+ * something is waiting. Outcomes are sent to Dart as {@code queuedTransferDone} calls and stay
+ * in the journal until Dart has taken them, so a result that arrives while no app is attached
+ * is delivered on the next start.
+ *
+ * The journal is read and written on a thread of its own. Everything the main thread asks of the
+ * queue runs there too, in order, and answers are posted back, so the main thread never waits
+ * for the disk or for the lock that is held while a record is synced.
+ */
+class TransferQueue {
+
+  /** How often transfers that are waiting for their constraints are checked again. */
+  static final long RECHECK_MILLIS = 30 * 1000;
+
+  /** The journal is rewritten once it holds this many lines that no longer matter. */
+  private static final int COMPACT_THRESHOLD = 200;
+
+  enum Kind { UPLOAD, DOWNLOAD }
+
+  enum State { PENDING, RUNNING, DONE }
+
+  /** Runs one queued transfer and replies to the given result like a method call would. */
+  interface Starter {
+    void start(Job job, MethodChannel.Result result);
+  }
+
+  /** Receives the answer to a call, on the main thread. */
+  interface Reply<T> {
+    void reply(T value);
+  }
+
+  private final File file;
+  private final Context context;
+  private final Starter starter;
+  private final Executor journal;  // Runs every read and write of the file, in order
+  private final Executor main;     // Runs starters, replies and deliveries
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final Runnable recheck = this::pump;
+
+  // Guarded by this
+  private final LinkedHashMap<Integer, Job> jobs = new LinkedHashMap<>();
+  private final Set<Integer> delivering = new HashSet<>();
+  private MethodChannel channel;
+  private boolean started;
+  private boolean deliverable;
+  private int nextId = 1;
+  private int deadLines;
+
+  /**
+   * @param dir     Where the journal is kept.
+   * @param context Used to check the network and the charger.
+   * @param starter Hands a transfer to the task that runs it.
+   */
+  TransferQueue(File dir, Context context, Starter starter) {
+    this(dir, context, starter, Executors.newSingleThreadExecutor(r -> {
+      Thread thread = new Thread(r, "dropbox-queue");
+      thread.setDaemon(true);
+      return thread;
+    }), new Handler(Looper.getMainLooper())::post);
+  }
+
+  /**
+   * @param journal Runs the journal work; it must run tasks one at a time, in order.
+   * @param main    Runs what has to happen on the main thread.
+   */
+  TransferQueue(File dir, Context context, Starter starter, Executor journal, Executor main) {
+    this.file = new File(dir, "dropbox_queue.log");
+    this.context = context;
+    this.starter = starter;
+    this.journal = journal;
+    this.main = main;
+    journal.execute(this::load);
+  }
+
+  void setChannel(MethodChannel channel) {
+    journal.execute(() -> {
+      synchronized (this) {
+        this.channel = channel;
+        deliverable = channel != null;
+      }
+    });
+  }
+
+  /** Runs what the journal holds and delivers outcomes that Dart has not taken yet. */
+  void start() {
+    journal.execute(() -> {
+      synchronized (this) {
+        started = true;
+        deliverable = channel != null;
+      }
+      pumpNow();
+    });
+  }
+
+  /** Delivers outcomes again once Dart listens for them, after an earlier delivery was refused. */
+  void deliver() {
+    journal.execute(() -> {
+      synchronized (this) {
+        deliverable = channel != null;
+      }
+      pumpNow();
+    });
+  }
+
+  /**
+   * Queues a transfer.
+   *
+   * @param unmetered Only run it on an unmetered network, e.g. Wi-Fi.
+   * @param charging  Only run it while the device is charging.
+   * @param callback  Gets the id of the queued transfer, whose progress is reported under the
+   *                  key {@code -id}, or the IOException that kept it out of the journal.
+   */
+  void enqueue(Kind kind, String localPath, String remotePath, boolean unmetered, boolean charging,
+               AsyncJob.Callback<Integer> callback) {
+    journal.execute(() -> {
+      Job job;
+      synchronized (this) {
+        job = new Job(nextId++, kind, localPath, remotePath, unmetered, charging);
+        jobs.put(job.id, job);
+        try {
+          append(job.records().get(0));
+        } catch (IOException e) {
+          // Not queued unless it is in the journal
+          jobs.remove(job.id);
+          main.execute(() -> callback.failed(e));
+          return;
+        }
+      }
+      main.execute(() -> callback.done(job.id));
+      pumpNow();
+    });
+  }
+
+  /**
+   * Removes a queued transfer that has not started, or cancels a running one; a cancelled
+   * transfer still delivers its outcome. The reply is false if there is no such transfer or it
+   * is already done.
+   */
+  void cancel(int id, Reply<Boolean> reply) {
+    journal.execute(() -> {
+      boolean cancelled = cancelNow(id);
+      main.execute(() -> reply.reply(cancelled));
+    });
+  }
+
+  private boolean cancelNow(int id) {
+    Job job;
+    synchronized (this) {
+      job = jobs.get(id);
+      if (job == null || job.state == State.DONE) return false;
+      if (job.state == State.PENDING) {
+        forget(job);
+        return true;
+      }
+    }
+    synchronized (job) {
+      // Running, but its starter has not registered it yet; it finishes as cancelled instead
+      if (!job.started) {
+        job.cancelledBeforeStart = true;
+        return true;
+      }
+    }
+    return DropboxPlugin.transfers.cancel(-id);
+  }
+
+  /** Replies with every transfer the queue knows about, including outcomes not yet delivered. */
+  void list(Reply<List<Map<String, Object>>> reply) {
+    journal.execute(() -> {
+      List<Map<String, Object>> list = new ArrayList<>();
+      synchronized (this) {
+        for (Job job : jobs.values()) {
+          list.add(job.toMap());
+        }
+      }
+      main.execute(() -> reply.reply(list));
+    });
+  }
+
+  /** @return the transfer with that id, or null if the queue does not know it. */
+  synchronized Job get(int id) {
+    return jobs.get(id);
+  }
+
+  /** Starts what can run now and delivers finished outcomes. Safe to call at any time. */
+  void pump() {
+    journal.execute(this::pumpNow);
+  }
+
+  // Runs on the journal thread
+  private void pumpNow() {
+    List<Job> runnable = new ArrayList<>();
+    List<Job> finished = new ArrayList<>();
+    boolean waiting = false;
+    synchronized (this) {
+      if (!started) return;
+      boolean ready = DropboxPlugin.client != null && DropboxPlugin.scheduler != null;
+      Conditions conditions = null;
+      for (Job job : jobs.values()) {
+        if (job.state == State.DONE) {
+          if (deliverable && delivering.add(job.id)) {
+            finished.add(job);
+          }
+        } else if (job.state == State.PENDING) {
+          if (conditions == null) {
+            conditions = new Conditions(context);
+          }
+          if (ready && conditions.allow(job)) {
+            job.state = State.RUNNING;
+            runnable.add(job);
+          } else {
+            waiting = true;
+          }
+        }
+      }
+      mainHandler.removeCallbacks(recheck);
+      if (waiting) {
+        mainHandler.postDelayed(recheck, RECHECK_MILLIS);
+      }
+    }
+
+    for (Job job : runnable) {
+      // Posted, so a transfer is never tied to the method call that happened to pump the queue
+      main.execute(() -> start(job));
+    }
+    for (Job job : finished) {
+      deliver(job);
+    }
+  }
+
+  // Runs on the main thread. The starter registers the transfer while the job is held, so a
+  // cancel either finds it registered or stops it before it starts.
+  private void start(Job job) {
+    synchronized (job) {
+      if (!job.cancelledBeforeStart) {
+        starter.start(job, new JobResult(job));
+        job.started = true;
+        return;
+      }
+    }
+    Map<String, Object> outcome = new HashMap<>();
+    outcome.put("success", false);
+    outcome.put("cancelled", true);
+    outcome.put("message", (job.kind == Kind.UPLOAD ? "Upload" : "Download") + " cancelled.");
+    journal.execute(() -> finish(job, outcome));
+  }
+
+  // Records the outcome first, so it survives even if Dart never hears of it. Runs on the
+  // journal thread.
+  private void finish(Job job, Map<String, Object> outcome) {
+    synchronized (this) {
+      job.state = State.DONE;
+      job.success = Boolean.TRUE.equals(outcome.get("success"));
+      job.cancelled = Boolean.TRUE.equals(outcome.get("cancelled"));
+      Object message = outcome.get("message");
+      job.message = message != null ? message.toString() : null;
+      try {
+        append(record("done", job.id)
+                .field("success", job.success)
+                .field("cancelled", job.cancelled)
+                .field("message", job.message));
+      } catch (IOException e) {
+        // Still delivered while the process lives; only a restart would lose it
+        e.printStackTrace();
+      }
+    }
+    pumpNow();
+  }
+
+  // Runs on the journal thread
+  private void deliver(Job job) {
+    MethodChannel current;
+    Map<String, Object> map;
+    synchronized (this) {
+      current = channel;
+      map = job.toMap();
+    }
+    main.execute(() -> {
+      if (current == null) {
+        journal.execute(() -> undeliverable(job));
+        return;
+      }
+      current.invokeMethod("queuedTransferDone", map, new MethodChannel.Result() {
+        @Override
+        public void success(Object result) {
+          journal.execute(() -> {
+            synchronized (TransferQueue.this) {
+              delivering.remove(job.id);
+              forget(job);
+            }
+          });
+        }
+
+        @Override
+        public void error(String code, String message, Object details) {
+          // Nobody is listening yet; delivered again on the next start
+          journal.execute(() -> undeliverable(job));
+        }
+
+        @Override
+        public void notImplemented() {
+          journal.execute(() -> undeliverable(job));
+        }
+      });
+    });
+  }
+
+  // Stops delivering until the next start, so an app without a listener is not asked again and again
+  private synchronized void undeliverable(Job job) {
+    delivering.remove(job.id);
+    deliverable = false;
+  }
+
+  // Must be called while holding the lock
+  private void forget(Job job) {
+    jobs.remove(job.id);
+    try {
+      append(record("remove", job.id));
+      deadLines += job.lines + 1;
+      if (deadLines >= COMPACT_THRESHOLD) {
+        compact();
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  // Must be called while holding the lock
+  private void append(Record record) throws IOException {
+    Job job = jobs.get(record.id);
+    if (job != null) {
+      job.lines++;
+    }
+    try (FileOutputStream out = new FileOutputStream(file, true)) {
+      out.write((record + "\n").getBytes("UTF-8"));
+      // A record must be on disk before the work it describes goes on
+      out.getFD().sync();
+    }
+  }
+
+  // Runs on the journal thread, before anything else
+  private synchronized void load() {
+    if (!file.exists()) return;
+    try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"))) {
+      String line;
+      while ((line = in.readLine()) != null) {
+        Map<String, String> fields = parse(line);
+        // A line cut short by a crash is ignored
+        if (fields == null || !fields.containsKey("op") || !fields.containsKey("id")) continue;
+        int id = Integer.parseInt(fields.get("id"));
+        nextId = Math.max(nextId, id + 1);
+        Job job = jobs.get(id);
+        switch (fields.get("op")) {
+          case "add":
+            jobs.put(id, new Job(id, Kind.valueOf(fields.get("kind")), fields.get("local"), fields.get("remote"),
+                    "true".equals(fields.get("unmetered")), "true".equals(fields.get("charging"))));
+            break;
+          case "session":
+            if (job != null) {
+              job.sessionId = fields.get("session");
+              job.sessionSize = Long.parseLong(fields.get("size"));
+              job.sessionModified = Long.parseLong(fields.get("modified"));
+              job.appended.clear();
+            }
+            break;
+          case "chunk":
+            if (job != null) {
+              job.appended.add(Long.parseLong(fields.get("offset")));
+            }
+            break;
+          case "reset":
+            if (job != null) {
+              job.sessionId = null;
+              job.appended.clear();
+            }
+            break;
+          case "done":
+            if (job != null) {
+              job.state = State.DONE;
+              job.success = "true".equals(fields.get("success"));
+              job.cancelled = "true".equals(fields.get("cancelled"));
+              job.message = fields.get("message");
+            }
+            break;
+          case "remove":
+            jobs.remove(id);
+            break;
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      // What was read so far is kept
+      e.printStackTrace();
+    }
+
+    try {
+      compact();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  // Rewrites the journal with only what the queue still holds
+  private void compact() throws IOException {
+    File tmp = new File(file.getPath() + ".tmp");
+    try (FileOutputStream out = new FileOutputStream(tmp)) {
+      StringBuilder lines = new StringBuilder();
+      for (Job job : jobs.values()) {
+        job.lines = 0;
+        for (Record record : job.records()) {
+          lines.append(record).append('\n');
+          job.lines++;
+        }
+      }
+      out.write(lines.toString().getBytes("UTF-8"));
+      out.getFD().sync();
+    }
+    if (!tmp.renameTo(file)) {
+      tmp.delete();
+      throw new IOException("Could not replace " + file);
+    }
+    deadLines = 0;
+  }
+
+  private static Record record(String op, int id) {
+    return new Record(id).field("op", op).field("id", id);
+  }
+
+  private static Map<String, String> parse(String line) {
+    Map<String, String> fields = new HashMap<>();
+    try {
+      for (String pair : line.split("&")) {
+        int eq = pair.indexOf('=');
+        if (eq < 0) return null;
+        fields.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+      }
+    } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+      return null;
+    }
+    return fields;
+  }
+
+  /** One line of the journal: URL-encoded fields, like a query string. */
+  private static class Record {
+    final int id;
+    private final StringBuilder line = new StringBuilder();
+
+    Record(int id) {
+      this.id = id;
+    }
+
+    Record field(String name, Object value) {
+      if (value == null) return this;
+      if (line.length() > 0) {
+        line.append('&');
+      }
+      try {
+        line.append(name).append('=').append(URLEncoder.encode(value.toString(), "UTF-8"));
+      } catch (UnsupportedEncodingException e) {
+        throw new AssertionError(e);
+      }
+      return this;
+    }
+
+    @Override
+    public String toString() {
+      return line.toString();
+    }
+  }
+
+  /** The constraints of the device right now, read once per {@link #pump}. */
+  private static class Conditions {
+    final boolean connected;
+    final boolean metered;
+    final boolean charging;
+
+    Conditions(Context context) {
+      ConnectivityManager connectivity = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+      NetworkInfo network = connectivity != null ? connectivity.getActiveNetworkInfo() : null;
+      connected = network != null && network.isConnected();
+      metered = connectivity == null || connectivity.isActiveNetworkMetered();
+
+      // The battery broadcast is sticky, so no receiver has to stay registered
+      Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+      charging = battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    boolean allow(Job job) {
+      return connected && (!job.unmetered || !metered) && (!job.charging || charging);
+    }
+  }
+
+  /** Records the outcome of a transfer that was started by the queue. */
+  private class JobResult implements MethodChannel.Result {
+    private final Job job;
+
+    JobResult(Job job) {
+      this.job = job;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void success(Object result) {
+      Map<String, Object> outcome = result instanceof Map ? (Map<String, Object>) result : new HashMap<>();
+      journal.execute(() -> finish(job, outcome));
+    }
+
+    @Override
+    public void error(String code, String message, Object details) {
+      Map<String, Object> outcome = new HashMap<>();
+      outcome.put("success", false);
+      outcome.put("message", message);
+      journal.execute(() -> finish(job, outcome));
+    }
+
+    @Override
+    public void notImplemented() {
+      error("NOT_IMPLEMENTED", "Transfer is not supported", null);
+    }
+  }
+
+  /** One queued transfer. Its upload session is journaled as a {@link ChunkedUploader.Checkpoint}. */
+  class Job implements ChunkedUploader.Checkpoint {
+    final int id;
+    final Kind kind;
+    final String localPath;
+    final String remotePath;
+    final boolean unmetered;
+    final boolean charging;
+
+    // Guarded by the queue
+    private State state = State.PENDING;
+    private boolean success;
+    private boolean cancelled;
+    private String message;
+    private String sessionId;
+    private long sessionSize;
+    private long sessionModified;
+    private final Set<Long> appended = new HashSet<>();
+    private int lines;
+
+    // Guarded by the job itself, which start() holds while the starter registers the transfer
+    private boolean started;
+    private boolean cancelledBeforeStart;
+
+    Job(int id, Kind kind, String localPath, String remotePath, boolean unmetered, boolean charging) {
+      this.id = id;
+      this.kind = kind;
+      this.localPath = localPath;
+      this.remotePath = remotePath;
+      this.unmetered = unmetered;
+      this.charging = charging;
+    }
+
+    /** The key the transfer's progress is reported under; negative, so it never meets a Dart key. */
+    int key() {
+      return -id;
+    }
+
+    @Override
+    public String sessionId(long size) {
+      synchronized (TransferQueue.this) {
+        // A file that changed since the session started has to be sent again in full
+        boolean same = size == sessionSize && new File(localPath).lastModified() == sessionModified;
+        return same ? sessionId : null;
+      }
+    }
+
+    @Override
+    public boolean isAppended(long offset) {
+      synchronized (TransferQueue.this) {
+        return appended.contains(offset);
+      }
+    }
+
+    @Override
+    public void started(String sessionId, long size) {
+      synchronized (TransferQueue.this) {
+        this.sessionId = sessionId;
+        sessionSize = size;
+        sessionModified = new File(localPath).lastModified();
+        appended.clear();
+        journal(record("session", id)
+                .field("session", sessionId)
+                .field("size", size)
+                .field("modified", sessionModified));
+      }
+    }
+
+    @Override
+    public void appended(long offset) {
+      synchronized (TransferQueue.this) {
+        appended.add(offset);
+        journal(record("chunk", id).field("offset", offset));
+      }
+    }
+
+    @Override
+    public void reset() {
+      synchronized (TransferQueue.this) {
+        sessionId = null;
+        appended.clear();
+        journal(record("reset", id));
+      }
+    }
+
+    // A lost checkpoint only means that some chunks are sent again
+    private void journal(Record record) {
+      try {
+        append(record);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+
+    // What a compacted journal holds for this transfer
+    private List<Record> records() {
+      List<Record> records = new ArrayList<>();
+      records.add(record("add", id)
+              .field("kind", kind.name())
+              .field("local", localPath)
+              .field("remote", remotePath)
+              .field("unmetered", unmetered)
+              .field("charging", charging));
+      if (sessionId != null && state != State.DONE) {
+        records.add(record("session", id)
+                .field("session", sessionId)
+                .field("size", sessionSize)
+                .field("modified", sessionModified));
+        for (long offset : appended) {
+          records.add(record("chunk", id).field("offset", offset));
+        }
+      }
+      if (state == State.DONE) {
+        records.add(record("done", id)
+                .field("success", success)
+                .field("cancelled", cancelled)
+                .field("message", message));
+      }
+      return records;
+    }
+
+    Map<String, Object> toMap() {
+      Map<String, Object> map = new HashMap<>();
+      map.put("id", id);
+      map.put("key", key());
+      map.put("kind", kind.name().toLowerCase(Locale.ROOT));
+      map.put("filepath", localPath);
+      map.put("dropboxpath", remotePath);
+      map.put("state", state.name().toLowerCase(Locale.ROOT));
+      if (state == State.DONE) {
+        map.put("success", success);
+        map.put("cancelled", cancelled);
+        map.put("message", message);
+      }
+      return map;
+    }
+  }
+}
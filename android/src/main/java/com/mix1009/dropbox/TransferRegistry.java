@@ -0,0 +1,240 @@
+package com.mix1009.dropbox;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import okhttp3.Call;
+
+/**
+ * Uploads and downloads that are in progress, by the key Dart gave them, so they can be
+ * cancelled, paused and resumed.
+ *
+ * A transfer follows its task onto every worker it uses through {@link #bind}, and every HTTP
+ * call started on such a worker is attached to it by the {@link SharedHttpClient}. Stopping a
+ * transfer cancels those calls, which aborts their streams right away; the task then fails on
+ * its worker and asks {@link #park} what to do. A paused task gives up its worker and is queued
+ * again by {@link #resume}, a cancelled one replies and cleans up.
+ */
+class TransferRegistry {
+
+  enum State { RUNNING, PAUSED, CANCELLED }
+
+  private final ConcurrentHashMap<Integer, Transfer> transfers = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<Call, Transfer> calls = new ConcurrentHashMap<>();
+  private final ThreadLocal<Transfer> current = new ThreadLocal<>();
+
+  /**
+   * Registers a transfer. It can be stopped right away; its task notices once it runs.
+   *
+   * @param key  The key Dart uses for the transfer's progress.
+   * @param kind The kind its task is scheduled as.
+   */
+  Transfer register(int key, TransferScheduler.Kind kind) {
+    Transfer transfer = new Transfer(key, kind);
+    transfers.put(key, transfer);
+    return transfer;
+  }
+
+  /**
+   * Queues the task of a registered transfer. The task may be run more than once, so it has to
+   * start over (or pick up its partial files) every time, and it must end with {@link #park}
+   * or {@link #finished}.
+   */
+  void start(Transfer transfer, Runnable task) {
+    Runnable bound = DropboxPlugin.metrics.bind(bind(transfer, task));
+    synchronized (transfer) {
+      // Bound once, so a resumed task still belongs to the operation that started it
+      transfer.task = bound;
+    }
+    DropboxPlugin.scheduler.enqueue(transfer.kind, bound);
+  }
+
+  /** Forgets a transfer whose task has replied. */
+  void finished(Transfer transfer) {
+    transfers.remove(transfer.key, transfer);
+  }
+
+  /** @return false if there is no such transfer or it was already cancelled. */
+  boolean cancel(int key) {
+    Transfer transfer = transfers.get(key);
+    if (transfer == null) return false;
+    Runnable reply;
+    synchronized (transfer) {
+      if (transfer.state == State.CANCELLED) return false;
+      transfer.state = State.CANCELLED;
+      reply = transfer.unpark();
+    }
+    abort(transfer);
+    if (reply != null) {
+      // The parked task only needs to reply and clean up, so it does not wait behind transfers
+      DropboxPlugin.scheduler.enqueue(TransferScheduler.Kind.METADATA, reply);
+    }
+    return true;
+  }
+
+  /** @return false if there is no such transfer or it is not running. */
+  boolean pause(int key) {
+    Transfer transfer = transfers.get(key);
+    if (transfer == null) return false;
+    synchronized (transfer) {
+      if (transfer.state != State.RUNNING) return false;
+      transfer.state = State.PAUSED;
+    }
+    abort(transfer);
+    return true;
+  }
+
+  /** @return false if there is no such transfer or it is not paused. */
+  boolean resume(int key) {
+    Transfer transfer = transfers.get(key);
+    if (transfer == null) return false;
+    Runnable task;
+    synchronized (transfer) {
+      if (transfer.state != State.PAUSED) return false;
+      transfer.state = State.RUNNING;
+      task = transfer.unpark();
+    }
+    if (task != null) {
+      DropboxPlugin.scheduler.enqueue(transfer.kind, task);
+    }
+    // Otherwise the task has not noticed the pause yet; park() queues it again when it does
+    return true;
+  }
+
+  /**
+   * Called by a task that failed, before it replies.
+   *
+   * @return true when the failure came from {@link #pause}. The task must then return without
+   * replying; it is run again on {@link #resume}, or right away if that already happened.
+   */
+  boolean park(Transfer transfer) {
+    Runnable task;
+    synchronized (transfer) {
+      if (transfer.state == State.CANCELLED) return false;
+      if (transfer.state == State.PAUSED) {
+        transfer.parked = true;
+        return true;
+      }
+      if (!transfer.aborted) return false;
+      // Paused and resumed again while the task was still stopping
+      transfer.aborted = false;
+      task = transfer.task;
+    }
+    DropboxPlugin.scheduler.enqueue(transfer.kind, task);
+    return true;
+  }
+
+  /**
+   * Stops a retry loop once the calling thread's transfer has been paused or cancelled; the
+   * failure that got it there was caused by the abort and must not be retried.
+   */
+  void checkStopped() throws TransferStoppedException {
+    Transfer transfer = current.get();
+    if (transfer != null && transfer.state != State.RUNNING) {
+      throw new TransferStoppedException(transfer.state);
+    }
+  }
+
+  /** Ties a task to the transfer that is current while it is submitted. */
+  Runnable bind(Runnable task) {
+    Transfer transfer = current.get();
+    return transfer != null ? bind(transfer, task) : task;
+  }
+
+  /** Attaches an HTTP call to the calling thread's transfer, if it has one. */
+  void attach(Call call) {
+    Transfer transfer = current.get();
+    if (transfer == null) return;
+    boolean stopped;
+    synchronized (transfer) {
+      transfer.calls.add(call);
+      calls.put(call, transfer);
+      stopped = transfer.state != State.RUNNING;
+    }
+    if (stopped) {
+      // Started after the abort went out
+      call.cancel();
+    }
+  }
+
+  void detach(Call call) {
+    Transfer transfer = calls.remove(call);
+    if (transfer != null) {
+      synchronized (transfer) {
+        transfer.calls.remove(call);
+      }
+    }
+  }
+
+  private Runnable bind(Transfer transfer, Runnable task) {
+    return () -> {
+      Transfer previous = current.get();
+      current.set(transfer);
+      try {
+        task.run();
+      } finally {
+        if (previous != null) {
+          current.set(previous);
+        } else {
+          current.remove();
+        }
+      }
+    };
+  }
+
+  private void abort(Transfer transfer) {
+    List<Call> open;
+    synchronized (transfer) {
+      transfer.aborted = true;
+      open = new ArrayList<>(transfer.calls);
+    }
+    for (Call call : open) {
+      call.cancel();
+    }
+  }
+
+  /** One upload or download, from its submission until it has replied. */
+  static class Transfer {
+    final int key;
+    final TransferScheduler.Kind kind;
+
+    // Read without the lock by checkStopped()
+    private volatile State state = State.RUNNING;
+
+    // Guarded by this
+    private final Set<Call> calls = new HashSet<>();
+    private Runnable task;
+    private boolean aborted;
+    private boolean parked;
+
+    Transfer(int key, TransferScheduler.Kind kind) {
+      this.key = key;
+      this.kind = kind;
+    }
+
+    boolean isCancelled() {
+      return state == State.CANCELLED;
+    }
+
+    // Must be called while holding the lock; @return the task if it was parked
+    private Runnable unpark() {
+      if (!parked) return null;
+      parked = false;
+      aborted = false;
+      return task;
+    }
+  }
+
+  /** Thrown on the workers of a transfer that was paused or cancelled. */
+  static class TransferStoppedException extends InterruptedIOException {
+    private static final long serialVersionUID = 0L;
+
+    TransferStoppedException(State state) {
+      super("Transfer " + (state == State.PAUSED ? "paused" : "cancelled"));
+    }
+  }
+}
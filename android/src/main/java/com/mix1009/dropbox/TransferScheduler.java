@@ -0,0 +1,321 @@
+package com.mix1009.dropbox;
+
+import com.dropbox.core.DbxException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Plugin-wide scheduler for Dropbox operations.
+ *
+ * Work is grouped by {@link Kind}. Each kind has its own concurrency cap and its own FIFO queue;
+ * whenever a worker frees up, the highest-priority kind that is below its cap gets the slot.
+ * The worker pool never grows beyond the sum of the caps and idle workers time out, so the
+ * thread count stays flat no matter how many operations Dart queues.
+ */
+class TransferScheduler {
+
+  /** Kinds of work, in dispatch priority order (first = highest). */
+  enum Kind {
+    METADATA(4),   // listFolder, getMetadata and other small API calls
+    PART(4),       // chunks of a transfer that is already running
+    TRANSFER(2),   // uploads and downloads
+    LONGPOLL(2);   // folder watchers, which sit on the server for a long time
+
+    final int defaultLimit;
+
+    Kind(int defaultLimit) {
+      this.defaultLimit = defaultLimit;
+    }
+  }
+
+  /** A piece of a larger operation, run by {@link #runAll}. */
+  interface Part {
+    void run() throws DbxException, IOException;
+  }
+
+  private static final long KEEP_ALIVE_SECONDS = 30;
+
+  private final Object lock = new Object();
+  private final Map<Kind, ArrayDeque<Runnable>> pending = new EnumMap<>(Kind.class);
+  private final Map<Kind, Integer> running = new EnumMap<>(Kind.class);
+  private final Map<Kind, Integer> limits = new EnumMap<>(Kind.class);
+  private final Map<Kind, Long> pausedUntil = new EnumMap<>(Kind.class);
+  private final ThreadPoolExecutor executor;
+  private final Metrics metrics;
+  private final TransferRegistry transfers;
+  private Timer timer;
+  private boolean shutdown;
+
+  /**
+   * @param metrics   Follows every task so its queue time is measured.
+   * @param transfers Follows every task so the parts of a transfer can be stopped with it.
+   */
+  TransferScheduler(Metrics metrics, TransferRegistry transfers) {
+    this.metrics = metrics;
+    this.transfers = transfers;
+    for (Kind kind : Kind.values()) {
+      pending.put(kind, new ArrayDeque<>());
+      running.put(kind, 0);
+      limits.put(kind, kind.defaultLimit);
+      pausedUntil.put(kind, System.nanoTime());
+    }
+
+    // Tasks are only handed to the executor when a slot is free, so its own queue stays empty.
+    executor = new ThreadPoolExecutor(
+            totalLimit(), totalLimit(),
+            KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            new WorkerThreadFactory());
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Updates the concurrency cap of a kind. Values below 1 are ignored.
+   *
+   * @param kind  The kind of work to configure.
+   * @param limit The maximum number of operations of this kind running at once.
+   */
+  void setLimit(Kind kind, int limit) {
+    if (limit < 1) return;
+    synchronized (lock) {
+      limits.put(kind, limit);
+
+      // Keep one worker per slot so a kind can always reach its cap
+      int total = totalLimit();
+      if (total > executor.getMaximumPoolSize()) {
+        executor.setMaximumPoolSize(total);
+        executor.setCorePoolSize(total);
+      } else {
+        executor.setCorePoolSize(total);
+        executor.setMaximumPoolSize(total);
+      }
+      dispatch();
+    }
+  }
+
+  /**
+   * Queues a task to be run on a worker thread.
+   *
+   * @param kind The kind of work, which decides its cap and priority.
+   * @param task The task to run.
+   */
+  void submit(Kind kind, Runnable task) {
+    enqueue(kind, metrics.bind(transfers.bind(task)));
+  }
+
+  /**
+   * Queues a task as it is, without tying it to the caller's operation; for tasks that were
+   * bound when they were first submitted, such as a transfer that is resumed.
+   */
+  void enqueue(Kind kind, Runnable task) {
+    synchronized (lock) {
+      if (shutdown) {
+        throw new IllegalStateException("Transfer scheduler has been shut down");
+      }
+      pending.get(kind).add(task);
+      dispatch();
+    }
+  }
+
+  /** Like {@link #submit}, but only after a delay, which does not hold a worker. */
+  void submitLater(Kind kind, long millis, Runnable task) {
+    enqueueLater(kind, millis, metrics.bind(transfers.bind(task)));
+  }
+
+  /**
+   * Like {@link #enqueue}, but only after a delay, which does not hold a worker. Dropped if the
+   * scheduler is shut down in the meantime.
+   */
+  void enqueueLater(Kind kind, long millis, Runnable task) {
+    synchronized (lock) {
+      if (shutdown) return;
+      timer().schedule(new TimerTask() {
+        @Override
+        public void run() {
+          synchronized (lock) {
+            if (shutdown) return;
+            pending.get(kind).add(task);
+            dispatch();
+          }
+        }
+      }, millis);
+    }
+  }
+
+  /**
+   * Runs parts of one operation in parallel and waits for all of them. Once a part fails, the
+   * parts that have not started yet are skipped and the first failure is rethrown.
+   *
+   * @param kind  The kind the parts are scheduled as. Must not be the caller's own kind, or the
+   *              caller could wait for slots that it is holding itself.
+   * @param parts The parts to run.
+   */
+  void runAll(Kind kind, List<Part> parts) throws DbxException, IOException {
+    CountDownLatch done = new CountDownLatch(parts.size());
+    AtomicReference<Exception> failure = new AtomicReference<>();
+
+    for (Part part : parts) {
+      submit(kind, () -> {
+        try {
+          if (failure.get() == null) {
+            part.run();
+          }
+        } catch (DbxException | IOException | RuntimeException e) {
+          failure.compareAndSet(null, e);
+        } finally {
+          done.countDown();
+        }
+      });
+    }
+
+    try {
+      done.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      failure.compareAndSet(null, new InterruptedIOException("Interrupted while waiting for parts"));
+    }
+
+    Exception e = failure.get();
+    if (e instanceof DbxException) throw (DbxException) e;
+    if (e instanceof IOException) throw (IOException) e;
+    if (e instanceof RuntimeException) throw (RuntimeException) e;
+  }
+
+  /**
+   * Holds back queued tasks of a kind for a while, e.g. while the server is throttling us.
+   * Tasks that are already running are not affected.
+   *
+   * @param kind   The kind of work to hold back.
+   * @param millis How long to hold it back; an earlier pause that lasts longer is kept.
+   */
+  void pause(Kind kind, long millis) {
+    synchronized (lock) {
+      if (shutdown) return;
+      long until = System.nanoTime() + millis * 1000000;
+      if (isPaused(kind) && pausedUntil.get(kind) - until >= 0) return;
+      pausedUntil.put(kind, until);
+
+      timer().schedule(new TimerTask() {
+        @Override
+        public void run() {
+          synchronized (lock) {
+            dispatch();
+          }
+        }
+      }, millis + 1);
+    }
+  }
+
+  /** @return whether queued tasks of a kind are currently held back by {@link #pause}. */
+  boolean isPaused(Kind kind) {
+    synchronized (lock) {
+      return pausedUntil.get(kind) - System.nanoTime() > 0;
+    }
+  }
+
+  /** Stops accepting work, drops queued tasks and interrupts running ones. */
+  void shutdown() {
+    synchronized (lock) {
+      shutdown = true;
+      if (timer != null) {
+        timer.cancel();
+      }
+      for (ArrayDeque<Runnable> queue : pending.values()) {
+        queue.clear();
+      }
+    }
+    executor.shutdownNow();
+  }
+
+  /** @return the number of queued tasks of a kind that have not started yet. */
+  int pendingCount(Kind kind) {
+    synchronized (lock) {
+      return pending.get(kind).size();
+    }
+  }
+
+  /** @return how many operations of all kinds together can run at once. */
+  int concurrency() {
+    synchronized (lock) {
+      return totalLimit();
+    }
+  }
+
+  /** @return the number of tasks of a kind that are currently running. */
+  int runningCount(Kind kind) {
+    synchronized (lock) {
+      return running.get(kind);
+    }
+  }
+
+  // Must be called while holding the lock
+  private void dispatch() {
+    if (shutdown) return;
+    long now = System.nanoTime();
+    for (Kind kind : Kind.values()) {
+      if (pausedUntil.get(kind) - now > 0) continue;
+      ArrayDeque<Runnable> queue = pending.get(kind);
+      while (!queue.isEmpty() && running.get(kind) < limits.get(kind)) {
+        Runnable task = queue.poll();
+        running.put(kind, running.get(kind) + 1);
+        executor.execute(() -> runTask(kind, task));
+      }
+    }
+  }
+
+  private void runTask(Kind kind, Runnable task) {
+    try {
+      task.run();
+    } catch (RuntimeException e) {
+      // A failing task must not take the slot down with it
+      e.printStackTrace();
+    } finally {
+      synchronized (lock) {
+        running.put(kind, running.get(kind) - 1);
+        dispatch();
+      }
+    }
+  }
+
+  // Must be called while holding the lock
+  private Timer timer() {
+    if (timer == null) {
+      timer = new Timer("dropbox-scheduler-timer", true);
+    }
+    return timer;
+  }
+
+  // Must be called while holding the lock (or from the constructor)
+  private int totalLimit() {
+    int total = 0;
+    for (int limit : limits.values()) {
+      total += limit;
+    }
+    return total;
+  }
+
+  private static class WorkerThreadFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "dropbox-worker-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
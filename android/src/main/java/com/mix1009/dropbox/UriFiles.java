@@ -0,0 +1,42 @@
+package com.mix1009.dropbox;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Opens content URIs (from the Storage Access Framework, MediaStore or a FileProvider) as plain
+ * file streams, so their {@link java.nio.channels.FileChannel} can be used like a local file's.
+ * Closing the stream closes the file descriptor.
+ */
+class UriFiles {
+
+  private UriFiles() {
+  }
+
+  /** Opens a URI for reading. The provider must hand out a seekable file descriptor. */
+  static FileInputStream openInput(Context context, String uri) throws IOException {
+    return new ParcelFileDescriptor.AutoCloseInputStream(open(context, uri, "r"));
+  }
+
+  /** Opens a URI for writing, dropping whatever it held before. */
+  static FileOutputStream openOutput(Context context, String uri) throws IOException {
+    return new ParcelFileDescriptor.AutoCloseOutputStream(open(context, uri, "wt"));
+  }
+
+  private static ParcelFileDescriptor open(Context context, String uri, String mode) throws IOException {
+    if (context == null) {
+      throw new IOException("Plugin is not attached");
+    }
+    ParcelFileDescriptor fd = context.getContentResolver().openFileDescriptor(Uri.parse(uri), mode);
+    if (fd == null) {
+      throw new FileNotFoundException("Could not open " + uri);
+    }
+    return fd;
+  }
+}
@@ -0,0 +1,56 @@
+package com.mix1009.dropbox;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncJobTest {
+
+  private final TransferScheduler scheduler = new TransferScheduler(new Metrics(), new TransferRegistry());
+
+  @After
+  public void tearDown() {
+    scheduler.shutdown();
+  }
+
+  @Test
+  public void pollsUntilTheJobIsDone() throws Exception {
+    AtomicInteger polls = new AtomicInteger();
+
+    String result = AsyncJob.await(scheduler, () -> polls.incrementAndGet() < 3 ? null : "done");
+
+    assertEquals("done", result);
+    assertEquals(3, polls.get());
+  }
+
+  @Test
+  public void waitingJobsDoNotHoldMetadataWorkers() throws Exception {
+    // Twice as many unfinished jobs as METADATA workers; polls that slept would take them all
+    CountDownLatch release = new CountDownLatch(1);
+    int jobs = TransferScheduler.Kind.METADATA.defaultLimit * 2;
+    for (int i = 0; i < jobs; i++) {
+      AsyncJob.poll(scheduler, () -> release.getCount() > 0 ? null : "done", new AsyncJob.Callback<String>() {
+        @Override
+        public void done(String result) {
+        }
+
+        @Override
+        public void failed(Exception e) {
+        }
+      });
+    }
+    Thread.sleep(300);
+    CountDownLatch ran = new CountDownLatch(1);
+
+    scheduler.enqueue(TransferScheduler.Kind.METADATA, ran::countDown);
+
+    assertTrue(ran.await(1, TimeUnit.SECONDS));
+    release.countDown();
+  }
+}
@@ -0,0 +1,213 @@
+package com.mix1009.dropbox;
+
+import com.dropbox.core.v2.files.FileMetadata;
+import com.dropbox.core.v2.files.FolderMetadata;
+import com.dropbox.core.v2.files.Metadata;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FolderSyncTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File localDir;
+  private final FolderSync sync = new FolderSync(null, null, Long.MAX_VALUE, 0);
+  private final TreeMap<String, Metadata> remote = new TreeMap<>();
+
+  @Before
+  public void setUp() throws IOException {
+    DropboxPlugin.hashCache = new HashCache(tmp.newFolder("files"));
+    localDir = tmp.newFolder("local");
+  }
+
+  @Test
+  public void uploadTransfersNewAndChangedFilesOnly() throws Exception {
+    File same = write("Docs/Same.txt", "same");
+    write("Docs/Changed.txt", "new content");
+    write("New.txt", "new");
+    addRemoteFile("/Sync/Docs/Same.txt", same);
+    addRemoteFile("/Sync/Docs/Changed.txt", scratch("old content"));
+    addRemoteFolder("/Sync/Docs");
+
+    FolderSync.Plan plan = plan(FolderSync.Direction.UPLOAD, false);
+
+    assertEquals(Arrays.asList("/Sync/Docs/Changed.txt", "/Sync/New.txt"), uploads(plan));
+    assertEquals(1, plan.unchanged);
+    assertEquals("new content".length() + "new".length(), plan.bytes);
+    assertTrue(plan.remoteDeletes.isEmpty());
+    assertTrue(plan.remoteFolders.isEmpty());
+  }
+
+  @Test
+  public void uploadKeepsRemoteOnlyEntriesWithoutDelete() throws Exception {
+    write("Kept.txt", "kept");
+    addRemoteFolder("/Sync/Old");
+    addRemoteFile("/Sync/Old/File.txt", scratch("old"));
+
+    FolderSync.Plan plan = plan(FolderSync.Direction.UPLOAD, false);
+
+    assertTrue(plan.remoteDeletes.isEmpty());
+  }
+
+  @Test
+  public void uploadDeletesRemoteOnlyFolderOnceWithDelete() throws Exception {
+    write("Kept.txt", "kept");
+    addRemoteFolder("/Sync/Old");
+    addRemoteFile("/Sync/Old/File.txt", scratch("old"));
+
+    FolderSync.Plan plan = plan(FolderSync.Direction.UPLOAD, true);
+
+    // The file goes with its folder
+    assertEquals(Collections.singletonList("/sync/old"), plan.remoteDeletes);
+  }
+
+  @Test
+  public void uploadReplacesEntryOfWrongTypeWithoutDelete() throws Exception {
+    write("Notes/a.txt", "a");
+    addRemoteFile("/Sync/Notes", scratch("notes"));
+
+    FolderSync.Plan plan = plan(FolderSync.Direction.UPLOAD, false);
+
+    assertEquals(Collections.singletonList("/sync/notes"), plan.remoteDeletes);
+    assertEquals(Collections.singletonList("/Sync/Notes/a.txt"), uploads(plan));
+  }
+
+  @Test
+  public void uploadCreatesOnlyFoldersThatStayEmpty() throws Exception {
+    new File(localDir, "Empty/Inner").mkdirs();
+    write("Full/a.txt", "a");
+
+    FolderSync.Plan plan = plan(FolderSync.Direction.UPLOAD, false);
+
+    assertEquals(Collections.singletonList("/Sync/Empty/Inner"), plan.remoteFolders);
+    assertEquals(Collections.singletonList("/Sync/Full/a.txt"), uploads(plan));
+  }
+
+  @Test
+  public void downloadTransfersMissingFilesAndDeletesLocalOnlyWithDelete() throws Exception {
+    File same = write("Same.txt", "same");
+    write("Extra/b.txt", "b");
+    addRemoteFile("/Sync/Same.txt", same);
+    addRemoteFile("/Sync/Docs/Report.txt", scratch("report"));
+    addRemoteFolder("/Sync/Docs");
+
+    FolderSync.Plan plan = plan(FolderSync.Direction.DOWNLOAD, true);
+
+    assertEquals(1, plan.downloads.size());
+    assertEquals(new File(localDir, "Docs/Report.txt"), plan.downloads.get(0).local);
+    assertEquals(1, plan.unchanged);
+    assertEquals(Collections.singletonList(new File(localDir, "Extra")), plan.localDeletes);
+    // Docs is created by its download
+    assertTrue(plan.localFolders.isEmpty());
+  }
+
+  @Test
+  public void downloadIntoMissingFolderPlansEverything() throws Exception {
+    addRemoteFile("/Sync/a.txt", scratch("a"));
+    File missing = new File(localDir, "missing");
+
+    FolderSync.Plan plan = sync.compare(missing, "/Sync", FolderSync.listLocal(missing), remote,
+            FolderSync.Direction.DOWNLOAD, true);
+
+    assertEquals(1, plan.downloads.size());
+    assertTrue(plan.localDeletes.isEmpty());
+  }
+
+  @Test
+  public void unreadableFolderFailsListing() {
+    File unreadable = new File(localDir, "unreadable") {
+      @Override
+      public boolean exists() {
+        return true;
+      }
+
+      @Override
+      public File[] listFiles() {
+        return null;
+      }
+    };
+
+    try {
+      FolderSync.listLocal(unreadable);
+      fail("An unreadable folder must not be listed as empty");
+    } catch (IOException expected) {
+      // The sync stops before anything is planned
+    }
+  }
+
+  private FolderSync.Plan plan(FolderSync.Direction direction, boolean delete) throws Exception {
+    return sync.compare(localDir, "/Sync", FolderSync.listLocal(localDir), remote, direction, delete);
+  }
+
+  private File write(String path, String content) throws IOException {
+    File file = new File(localDir, path);
+    file.getParentFile().mkdirs();
+    write(file, content);
+    return file;
+  }
+
+  // Content for a remote file that has no local copy
+  private File scratch(String content) throws IOException {
+    File file = tmp.newFile();
+    write(file, content);
+    return file;
+  }
+
+  private static void write(File file, String content) throws IOException {
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      out.write(content.getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  // A remote file with the size and content_hash of a local one
+  private void addRemoteFile(String path, File content) throws IOException {
+    String name = path.substring(path.lastIndexOf('/') + 1);
+    Date modified = new Date(0);
+    remote.put(key(path), FileMetadata.newBuilder(name, "id:" + path, modified, modified, "0123456789abc",
+            content.length())
+            .withPathLower(path.toLowerCase(Locale.ROOT))
+            .withPathDisplay(path)
+            .withContentHash(ContentHash.of(content))
+            .build());
+  }
+
+  private void addRemoteFolder(String path) {
+    String name = path.substring(path.lastIndexOf('/') + 1);
+    remote.put(key(path), FolderMetadata.newBuilder(name, "id:" + path)
+            .withPathLower(path.toLowerCase(Locale.ROOT))
+            .withPathDisplay(path)
+            .build());
+  }
+
+  private static String key(String path) {
+    return path.substring("/Sync/".length()).toLowerCase(Locale.ROOT);
+  }
+
+  private static List<String> uploads(FolderSync.Plan plan) {
+    List<String> paths = new ArrayList<>();
+    for (FolderSync.Item item : plan.uploads) {
+      paths.add(item.remotePath);
+    }
+    return paths;
+  }
+}
@@ -0,0 +1,113 @@
+package com.mix1009.dropbox;
+
+import com.dropbox.core.v2.files.DeletedMetadata;
+import com.dropbox.core.v2.files.FileMetadata;
+import com.dropbox.core.v2.files.FolderMetadata;
+import com.dropbox.core.v2.files.Metadata;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the compact listing against the fixtures in {@code test/fixtures}, which the Dart test
+ * of {@code DropboxListing} decodes in turn: listing.bin is what {@link ListingCodec} makes of
+ * {@link #entries()}, listing.json the maps the non-compact listing sends for them (in UTC).
+ */
+public class ListingCodecTest {
+
+  private static final File FIXTURES = new File("../test/fixtures");
+
+  private TimeZone defaultTimeZone;
+
+  @Before
+  public void setUp() {
+    defaultTimeZone = TimeZone.getDefault();
+    TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+  }
+
+  @After
+  public void tearDown() {
+    TimeZone.setDefault(defaultTimeZone);
+  }
+
+  @Test
+  public void encodesLikeTheFixture() throws Exception {
+    byte[] expected = Files.readAllBytes(new File(FIXTURES, "listing.bin").toPath());
+
+    assertArrayEquals(expected, ListingCodec.encode(entries()));
+  }
+
+  @Test
+  public void mapsLikeTheFixture() throws Exception {
+    String expected = new String(Files.readAllBytes(new File(FIXTURES, "listing.json").toPath()), "UTF-8");
+
+    assertEquals(expected, toJson(DropboxPlugin.ListFolderTask.toMaps(entries())));
+  }
+
+  static List<Metadata> entries() {
+    return Arrays.asList(
+            // Non-ASCII name, so the lower-case name is stored rather than derived
+            file("Caf\u00e9 Men\u00fc.txt", "/Docs/Caf\u00e9 Men\u00fc.txt", "/docs/caf\u00e9 men\u00fc.txt",
+                    "015f1c0a0b0c0d0e0001", 1234, 1709296496000L, 1709366400000L),
+            folder("Photos", "/Docs/Photos", "/docs/photos"),
+            deleted("Old Notes.txt", "/Docs/Old Notes.txt", "/docs/old notes.txt"),
+            // The display path does not end with the name
+            file("Report.PDF", "/Shared/report.pdf", "/shared/report.pdf",
+                    "015f1c0a0b0c0d0e0002", 5000000000L, 1700000000000L, 1700000001000L),
+            folder("Music", "/Music", "/music"),
+            deleted("\u65e5\u672c", "/Docs/Photos/\u65e5\u672c", "/docs/photos/\u65e5\u672c"));
+  }
+
+  private static FileMetadata file(String name, String display, String lower, String rev, long size,
+                                   long clientModified, long serverModified) {
+    return FileMetadata.newBuilder(name, "id:" + lower, new Date(clientModified), new Date(serverModified), rev, size)
+            .withPathLower(lower)
+            .withPathDisplay(display)
+            .build();
+  }
+
+  private static FolderMetadata folder(String name, String display, String lower) {
+    return FolderMetadata.newBuilder(name, "id:" + lower)
+            .withPathLower(lower)
+            .withPathDisplay(display)
+            .build();
+  }
+
+  private static DeletedMetadata deleted(String name, String display, String lower) {
+    return DeletedMetadata.newBuilder(name)
+            .withPathLower(lower)
+            .withPathDisplay(display)
+            .build();
+  }
+
+  // One entry per line with sorted keys; the values are strings, numbers or null
+  @SuppressWarnings("unchecked")
+  private static String toJson(List<Object> maps) {
+    List<String> lines = new ArrayList<>();
+    for (Object map : maps) {
+      StringBuilder line = new StringBuilder("  {");
+      for (Map.Entry<String, Object> field : new TreeMap<>((Map<String, Object>) map).entrySet()) {
+        if (line.length() > 3) line.append(", ");
+        line.append('"').append(field.getKey()).append("\": ");
+        Object value = field.getValue();
+        line.append(value instanceof String ? "\"" + value + "\"" : String.valueOf(value));
+      }
+      lines.add(line.append('}').toString());
+    }
+    return "[\n" + String.join(",\n", lines) + "\n]\n";
+  }
+}
@@ -0,0 +1,117 @@
+package com.mix1009.dropbox;
+
+import com.dropbox.core.v2.files.DeletedMetadata;
+import com.dropbox.core.v2.files.FileMetadata;
+import com.dropbox.core.v2.files.FolderMetadata;
+import com.dropbox.core.v2.files.Metadata;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MetadataCacheTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private final MetadataCache cache = new MetadataCache(1000, 1024 * 1024);
+
+  @Test
+  public void deletedFolderTakesItsDescendantsAlong() {
+    cache.putListing("", "c0", Arrays.asList(folder("/Photos"), file("/notes.txt")));
+    cache.putListing("/photos", "c1", Arrays.asList(folder("/Photos/2024"), file("/Photos/a.jpg")));
+    cache.putListing("/photos/2024", "c2", Collections.singletonList(file("/Photos/2024/b.jpg")));
+
+    cache.put(deleted("/Photos"));
+
+    assertNull(cache.get("/photos"));
+    assertNull(cache.get("/photos/a.jpg"));
+    assertNull(cache.get("/photos/2024/b.jpg"));
+    assertNull(cache.listingCursor("/photos"));
+    assertNull(cache.listingCursor("/photos/2024"));
+    // The parent listing stays valid without the deleted folder
+    List<Metadata> root = cache.getListing("");
+    assertNotNull(root);
+    assertEquals(1, root.size());
+    assertEquals("/notes.txt", root.get(0).getPathLower());
+  }
+
+  @Test
+  public void deltaRemovesDeletedFolderTree() {
+    cache.putListing("", "c0", Collections.singletonList(folder("/Docs")));
+    cache.putListing("/docs", "c1", Collections.singletonList(file("/Docs/a.txt")));
+
+    cache.applyDelta("", "c0b", Collections.singletonList(deleted("/Docs")));
+
+    assertNull(cache.get("/docs/a.txt"));
+    assertNull(cache.listingCursor("/docs"));
+    assertEquals("c0b", cache.listingCursor(""));
+  }
+
+  @Test
+  public void changesNotifyTheListener() {
+    AtomicInteger changes = new AtomicInteger();
+    cache.setChangeListener(changes::incrementAndGet);
+
+    cache.put(file("/a.txt"));
+    cache.put(deleted("/a.txt"));
+    cache.invalidate("/b.txt");
+
+    assertEquals(3, changes.get());
+  }
+
+  @Test
+  public void saveAndLoadKeepEntriesAndListings() throws Exception {
+    cache.putListing("/docs", "cursor", Arrays.asList(file("/Docs/a.txt"), folder("/Docs/Sub")));
+    File file = new File(tmp.getRoot(), "metadata.cache");
+
+    cache.save(file);
+    MetadataCache loaded = new MetadataCache(1000, 1024 * 1024);
+    loaded.load(file);
+
+    assertEquals("cursor", loaded.listingCursor("/docs"));
+    assertEquals(2, loaded.getListing("/docs").size());
+    FileMetadata a = (FileMetadata) loaded.get("/docs/a.txt");
+    assertEquals("/Docs/a.txt", a.getPathDisplay());
+    assertEquals(3, a.getSize());
+    assertTrue(loaded.get("/docs/sub") instanceof FolderMetadata);
+  }
+
+  private static FileMetadata file(String path) {
+    Date modified = new Date(0);
+    return FileMetadata.newBuilder(name(path), "id:" + path, modified, modified, "0123456789abc", 3)
+            .withPathLower(path.toLowerCase())
+            .withPathDisplay(path)
+            .build();
+  }
+
+  private static FolderMetadata folder(String path) {
+    return FolderMetadata.newBuilder(name(path), "id:" + path)
+            .withPathLower(path.toLowerCase())
+            .withPathDisplay(path)
+            .build();
+  }
+
+  private static DeletedMetadata deleted(String path) {
+    return DeletedMetadata.newBuilder(name(path))
+            .withPathLower(path.toLowerCase())
+            .withPathDisplay(path)
+            .build();
+  }
+
+  private static String name(String path) {
+    return path.substring(path.lastIndexOf('/') + 1);
+  }
+}
@@ -0,0 +1,115 @@
+package com.mix1009.dropbox;
+
+import com.dropbox.core.v2.files.FileMetadata;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ResumableDownloaderTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void journalKeepsSequentialProgress() throws Exception {
+    File target = new File(tmp.getRoot(), "movie.mp4");
+    ResumableDownloader.Journal journal = new ResumableDownloader.Journal("/Movie.mp4", "0123456789abc", "hash", 100);
+    journal.committed = 42;
+    journal.save(target);
+
+    ResumableDownloader.Journal loaded = ResumableDownloader.Journal.load(target);
+
+    assertEquals("/Movie.mp4", loaded.path);
+    assertEquals("0123456789abc", loaded.rev);
+    assertEquals("hash", loaded.contentHash);
+    assertEquals(100, loaded.size);
+    assertEquals(42, loaded.committed);
+    assertTrue(loaded.ranges.isEmpty());
+  }
+
+  @Test
+  public void journalKeepsProgressOfEveryRange() throws Exception {
+    File target = new File(tmp.getRoot(), "movie.mp4");
+    ResumableDownloader.Journal journal = new ResumableDownloader.Journal("/Movie.mp4", "0123456789abc", null, 300);
+    journal.ranges.put(0L, 100L);
+    journal.ranges.put(100L, 7L);
+    journal.ranges.put(200L, 0L);
+    journal.save(target);
+
+    ResumableDownloader.Journal loaded = ResumableDownloader.Journal.load(target);
+
+    assertNull(loaded.contentHash);
+    assertEquals(journal.ranges, loaded.ranges);
+  }
+
+  @Test
+  public void discardRemovesPartAndJournal() throws Exception {
+    File target = new File(tmp.getRoot(), "movie.mp4");
+    File part = ResumableDownloader.partFile(target);
+    assertTrue(part.createNewFile());
+    new ResumableDownloader.Journal("/Movie.mp4", "0123456789abc", null, 1).save(target);
+
+    ResumableDownloader.discard(target);
+
+    assertTrue(!part.exists() && !ResumableDownloader.Journal.file(target).exists());
+  }
+
+  @Test
+  public void completePartIsMovedIntoPlaceWithoutRequest() throws Exception {
+    File target = new File(tmp.getRoot(), "movie.mp4");
+    byte[] content = "all of it".getBytes("UTF-8");
+    Files.write(ResumableDownloader.partFile(target).toPath(), content);
+    ResumableDownloader.Journal journal = new ResumableDownloader.Journal("/Movie.mp4", "0123456789abc",
+            hash(content), content.length);
+    journal.committed = content.length;
+    journal.save(target);
+    FileMetadata metadata = FileMetadata.newBuilder("Movie.mp4", "id:movie", new Date(0), new Date(0),
+            "0123456789abc", content.length).build();
+    AtomicLong progress = new AtomicLong();
+
+    // No client: a request, which would only get a 416, fails the test
+    FileMetadata downloaded = new ResumableDownloader(null).download("/Movie.mp4", metadata, target, progress::set);
+
+    assertSame(metadata, downloaded);
+    assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+    assertEquals(content.length, progress.get());
+    assertFalse(ResumableDownloader.partFile(target).exists());
+    assertFalse(ResumableDownloader.Journal.file(target).exists());
+  }
+
+  @Test
+  public void completePartWithWrongHashIsDiscarded() throws Exception {
+    File target = new File(tmp.getRoot(), "movie.mp4");
+    byte[] content = "all of it".getBytes("UTF-8");
+    Files.write(ResumableDownloader.partFile(target).toPath(), content);
+    ResumableDownloader.Journal journal = new ResumableDownloader.Journal("/Movie.mp4", "0123456789abc",
+            hash("something else".getBytes("UTF-8")), content.length);
+    journal.committed = content.length;
+    journal.save(target);
+
+    assertFalse(ResumableDownloader.finishFromPart(target, journal));
+
+    assertFalse(target.exists());
+    assertFalse(ResumableDownloader.partFile(target).exists());
+    assertFalse(ResumableDownloader.Journal.file(target).exists());
+  }
+
+  private static String hash(byte[] content) {
+    ContentHash hash = new ContentHash();
+    hash.update(content, 0, content.length);
+    return hash.finish();
+  }
+}
@@ -0,0 +1,59 @@
+package com.mix1009.dropbox;
+
+import com.dropbox.core.NetworkIOException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class RetryPolicyTest {
+
+  private final RetryPolicy policy = new RetryPolicy();
+  private final AtomicInteger attempts = new AtomicInteger();
+
+  @Before
+  public void setUp() {
+    policy.configure(3, 1L, 1L);
+  }
+
+  @Test
+  public void callRetriesLostResponses() throws Exception {
+    String value = policy.call(() -> {
+      if (attempts.incrementAndGet() < 3) throw new NetworkIOException(new SocketTimeoutException("read"));
+      return "done";
+    });
+
+    assertEquals("done", value);
+    assertEquals(3, attempts.get());
+  }
+
+  @Test
+  public void callOnceDoesNotRepeatWhatMayHaveBeenApplied() throws Exception {
+    try {
+      policy.callOnce(() -> {
+        attempts.incrementAndGet();
+        throw new NetworkIOException(new SocketTimeoutException("read"));
+      });
+      fail("A lost response must not be retried");
+    } catch (NetworkIOException expected) {
+      assertEquals(1, attempts.get());
+    }
+  }
+
+  @Test
+  public void callOnceRetriesWhatNeverConnected() throws Exception {
+    String value = policy.callOnce(() -> {
+      if (attempts.incrementAndGet() < 2) throw new NetworkIOException(new ConnectException("refused"));
+      return "done";
+    });
+
+    assertEquals("done", value);
+    assertEquals(2, attempts.get());
+  }
+}
@@ -0,0 +1,200 @@
+package com.mix1009.dropbox;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TransferQueueTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  // Never started, so nothing runs and the context is not needed. Runs everything right away,
+  // so every reply is there when the call returns.
+  private TransferQueue open() {
+    return new TransferQueue(tmp.getRoot(), null, (job, result) -> {
+      throw new AssertionError("Not started");
+    }, Runnable::run, Runnable::run);
+  }
+
+  private static int enqueue(TransferQueue queue, TransferQueue.Kind kind, String localPath, String remotePath,
+                             boolean unmetered, boolean charging) {
+    AtomicReference<Integer> id = new AtomicReference<>();
+    queue.enqueue(kind, localPath, remotePath, unmetered, charging, into(id));
+    return id.get();
+  }
+
+  private static AsyncJob.Callback<Integer> into(AtomicReference<Integer> id) {
+    return new AsyncJob.Callback<Integer>() {
+      @Override
+      public void done(Integer result) {
+        id.set(result);
+      }
+
+      @Override
+      public void failed(Exception e) {
+        throw new AssertionError(e);
+      }
+    };
+  }
+
+  private static List<Map<String, Object>> list(TransferQueue queue) {
+    AtomicReference<List<Map<String, Object>>> list = new AtomicReference<>();
+    queue.list(list::set);
+    return list.get();
+  }
+
+  private static boolean cancel(TransferQueue queue, int id) {
+    AtomicReference<Boolean> cancelled = new AtomicReference<>();
+    queue.cancel(id, cancelled::set);
+    return cancelled.get();
+  }
+
+  @Test
+  public void replayRestoresQueuedTransfers() throws Exception {
+    TransferQueue queue = open();
+    int upload = enqueue(queue, TransferQueue.Kind.UPLOAD, "/data/a.bin", "/Backup/a.bin", true, false);
+    int download = enqueue(queue, TransferQueue.Kind.DOWNLOAD, "/data/b.bin", "/Backup/b.bin", false, true);
+
+    TransferQueue replayed = open();
+
+    List<Map<String, Object>> list = list(replayed);
+    assertEquals(2, list.size());
+    assertEquals(upload, list.get(0).get("id"));
+    assertEquals("upload", list.get(0).get("kind"));
+    assertEquals("/Backup/a.bin", list.get(0).get("dropboxpath"));
+    assertEquals("pending", list.get(0).get("state"));
+    TransferQueue.Job job = replayed.get(download);
+    assertEquals("/data/b.bin", job.localPath);
+    assertFalse(job.unmetered);
+    assertTrue(job.charging);
+    // Ids are not handed out twice
+    assertEquals(download + 1, enqueue(replayed, TransferQueue.Kind.UPLOAD, "/data/c.bin", "/c.bin", false, false));
+  }
+
+  @Test
+  public void replayRestoresUploadSessionAndChunks() throws Exception {
+    File local = tmp.newFile("a.bin");
+    TransferQueue queue = open();
+    int id = enqueue(queue, TransferQueue.Kind.UPLOAD, local.getPath(), "/a.bin", false, false);
+    TransferQueue.Job job = queue.get(id);
+    job.started("session-1", 3 * 1024);
+    job.appended(0);
+    job.appended(1024);
+
+    TransferQueue.Job replayed = open().get(id);
+
+    assertEquals("session-1", replayed.sessionId(3 * 1024));
+    assertTrue(replayed.isAppended(0));
+    assertTrue(replayed.isAppended(1024));
+    assertFalse(replayed.isAppended(2048));
+    // A different size is a different file, which needs a new session
+    assertNull(replayed.sessionId(4 * 1024));
+  }
+
+  @Test
+  public void replayForgetsResetSessions() throws Exception {
+    File local = tmp.newFile("a.bin");
+    TransferQueue queue = open();
+    int id = enqueue(queue, TransferQueue.Kind.UPLOAD, local.getPath(), "/a.bin", false, false);
+    TransferQueue.Job job = queue.get(id);
+    job.started("session-1", 1024);
+    job.appended(0);
+    job.reset();
+
+    TransferQueue.Job replayed = open().get(id);
+
+    assertNull(replayed.sessionId(1024));
+    assertFalse(replayed.isAppended(0));
+  }
+
+  @Test
+  public void replayKeepsUndeliveredOutcomesAndDropsRemovedTransfers() throws Exception {
+    write("op=add&id=1&kind=UPLOAD&local=%2Fdata%2Fa.bin&remote=%2Fa.bin&unmetered=false&charging=false",
+            "op=add&id=2&kind=DOWNLOAD&local=%2Fdata%2Fb.bin&remote=%2Fb.bin&unmetered=false&charging=false",
+            "op=add&id=3&kind=UPLOAD&local=%2Fdata%2Fc.bin&remote=%2Fc.bin&unmetered=false&charging=false",
+            "op=done&id=1&success=false&cancelled=false&message=Upload+failed%3A+conflict",
+            "op=remove&id=2");
+
+    TransferQueue queue = open();
+
+    List<Map<String, Object>> list = list(queue);
+    assertEquals(2, list.size());
+    assertEquals("done", list.get(0).get("state"));
+    assertEquals(false, list.get(0).get("success"));
+    assertEquals("Upload failed: conflict", list.get(0).get("message"));
+    assertNull(queue.get(2));
+    assertEquals("pending", list.get(1).get("state"));
+  }
+
+  @Test
+  public void replayIgnoresLineCutShortByCrash() throws Exception {
+    write("op=add&id=1&kind=UPLOAD&local=%2Fdata%2Fa.bin&remote=%2Fa.bin&unmetered=false&charging=false",
+            "op=done&id=1&succ");
+
+    TransferQueue queue = open();
+
+    assertEquals(1, list(queue).size());
+    assertEquals("pending", list(queue).get(0).get("state"));
+  }
+
+  @Test
+  public void replayCompactsTheJournal() throws Exception {
+    TransferQueue queue = open();
+    int first = enqueue(queue, TransferQueue.Kind.UPLOAD, "/data/a.bin", "/a.bin", false, false);
+    enqueue(queue, TransferQueue.Kind.UPLOAD, "/data/b.bin", "/b.bin", false, false);
+    assertTrue(cancel(queue, first));
+
+    open();
+
+    String journal = new String(Files.readAllBytes(journal().toPath()), "UTF-8");
+    assertFalse(journal.contains("a.bin"));
+    assertTrue(journal.contains("b.bin"));
+    // The compacted journal replays to the same queue
+    assertEquals(1, list(open()).size());
+  }
+
+  @Test
+  public void journalIsOnlyTouchedByTheJournalExecutor() throws Exception {
+    write("op=add&id=1&kind=UPLOAD&local=%2Fdata%2Fa.bin&remote=%2Fa.bin&unmetered=false&charging=false");
+    ArrayDeque<Runnable> pending = new ArrayDeque<>();
+    TransferQueue queue = new TransferQueue(tmp.getRoot(), null, (job, result) -> {
+      throw new AssertionError("Not started");
+    }, pending::add, Runnable::run);
+    AtomicReference<Integer> id = new AtomicReference<>();
+
+    queue.enqueue(TransferQueue.Kind.UPLOAD, "/data/b.bin", "/b.bin", false, false, into(id));
+
+    assertNull(id.get());
+    assertFalse(new String(Files.readAllBytes(journal().toPath()), "UTF-8").contains("b.bin"));
+    while (!pending.isEmpty()) {
+      pending.poll().run();
+    }
+    // Loaded first, so the new transfer follows the replayed one
+    assertEquals(Integer.valueOf(2), id.get());
+    assertTrue(new String(Files.readAllBytes(journal().toPath()), "UTF-8").contains("b.bin"));
+  }
+
+  private File journal() {
+    return new File(tmp.getRoot(), "dropbox_queue.log");
+  }
+
+  private void write(String... lines) throws Exception {
+    try (FileOutputStream out = new FileOutputStream(journal())) {
+      out.write((String.join("\n", lines) + "\n").getBytes("UTF-8"));
+    }
+  }
+}
@@ -1,10 +1,19 @@
 import 'dart:async';
 import 'dart:io';
+import 'dart:typed_data';
 import 'package:flutter/services.dart';
 
+import 'dropbox_listing.dart';
+
+export 'dropbox_listing.dart';
+
 typedef DropboxProgressCallback = void Function(
     int currentBytes, int totalBytes);
 
+/// Called when a watched folder changed, or with [error] when watching failed.
+typedef DropboxFolderChangedCallback = void Function(
+    String path, String? error);
+
 class _CallbackInfo {
   int filesize;
   DropboxProgressCallback? callback;
@@ -12,26 +21,121 @@ class _CallbackInfo {
   _CallbackInfo(this.filesize, this.callback);
 }
 
+class _ListFolderStreamInfo {
+  final StreamController<List<dynamic>> controller;
+  int owedAcks = 0;
+
+  _ListFolderStreamInfo(this.controller);
+}
+
 class Dropbox {
   static const MethodChannel _channel = const MethodChannel('dropbox');
 
   static int _callbackInt = 0;
   static Map<int, _CallbackInfo> _callbackMap = <int, _CallbackInfo>{};
+  static Map<int, _ListFolderStreamInfo> _listFolderStreams =
+      <int, _ListFolderStreamInfo>{};
+  static Map<int, DropboxFolderChangedCallback> _folderWatchers =
+      <int, DropboxFolderChangedCallback>{};
+  static StreamController<Map<String, dynamic>>? _metricsController;
+  static StreamController<Map<String, dynamic>>? _queuedTransfersController;
 
   /// Initialize dropbox library
   /// init() should be called only once.
+  ///
+  /// [metadataConcurrency] and [transferConcurrency] cap how many metadata calls
+  /// and uploads/downloads the native side runs at the same time.
+  ///
+  /// Files of [chunkedUploadThreshold] bytes or more are uploaded in chunks of
+  /// [uploadChunkSize] bytes, with up to [uploadParallelism] chunks in flight.
+  ///
+  /// Setting [downloadSegments] above 1 downloads files of
+  /// [segmentedDownloadThreshold] bytes or more as that many parallel ranges.
+  ///
+  /// The native metadata cache holds up to [metadataCacheEntries] entries and
+  /// [metadataCacheBytes] bytes; with [persistMetadataCache] it is saved to
+  /// disk shortly after it changes and loaded again on the next start.
+  ///
+  /// Progress callbacks are batched into one update every [progressIntervalMs]
+  /// and only fire again after [progressMinBytes] more bytes; the final
+  /// update is always delivered.
+  ///
+  /// All requests share one HTTP client. Its pool keeps up to
+  /// [maxIdleConnections] idle connections for [keepAliveMs]; the timeouts
+  /// default to the Dropbox SDK's. [maxRequestsPerHost] defaults to the total
+  /// of the concurrency caps above.
+  ///
+  /// Transient failures (network errors, 5xx, rate limiting) are retried up to
+  /// [maxAttempts] times in total, with jittered exponential backoff from
+  /// [retryBaseDelayMs] up to [retryMaxDelayMs] or the server's Retry-After.
+  /// Results that needed retries carry a 'retries' count, and a 'circuit'
+  /// state while transfers are paused because Dropbox is throttling.
+  ///
+  /// Thumbnails from [getThumbnail] are cached in up to
+  /// [thumbnailMemoryCacheBytes] of memory and [thumbnailDiskCacheBytes] of
+  /// the app's cache directory.
   static Future<Map<String, dynamic>> init(
-      String clientId, String key, String secret) async {
+      String clientId, String key, String secret,
+      {int? metadataConcurrency,
+      int? transferConcurrency,
+      int? chunkedUploadThreshold,
+      int? uploadChunkSize,
+      int? uploadParallelism,
+      int? downloadSegments,
+      int? segmentedDownloadThreshold,
+      int? metadataCacheEntries,
+      int? metadataCacheBytes,
+      bool? persistMetadataCache,
+      int? progressIntervalMs,
+      int? progressMinBytes,
+      int? maxIdleConnections,
+      int? keepAliveMs,
+      int? connectTimeoutMs,
+      int? readTimeoutMs,
+      int? writeTimeoutMs,
+      int? maxRequestsPerHost,
+      int? maxAttempts,
+      int? retryBaseDelayMs,
+      int? retryMaxDelayMs,
+      int? thumbnailMemoryCacheBytes,
+      int? thumbnailDiskCacheBytes}) async {
     _channel
         .setMethodCallHandler(_handleMethodCall); // Set up method call handler
     try {
-      final result = await _channel.invokeMethod(
-          'init', {'clientId': clientId, 'key': key, 'secret': secret});
+      final result = await _channel.invokeMethod('init', {
+        'clientId': clientId,
+        'key': key,
+        'secret': secret,
+        'metadataConcurrency': metadataConcurrency,
+        'transferConcurrency': transferConcurrency,
+        'chunkedUploadThreshold': chunkedUploadThreshold,
+        'uploadChunkSize': uploadChunkSize,
+        'uploadParallelism': uploadParallelism,
+        'downloadSegments': downloadSegments,
+        'segmentedDownloadThreshold': segmentedDownloadThreshold,
+        'metadataCacheEntries': metadataCacheEntries,
+        'metadataCacheBytes': metadataCacheBytes,
+        'persistMetadataCache': persistMetadataCache,
+        'progressIntervalMs': progressIntervalMs,
+        'progressMinBytes': progressMinBytes,
+        'maxIdleConnections': maxIdleConnections,
+        'keepAliveMs': keepAliveMs,
+        'connectTimeoutMs': connectTimeoutMs,
+        'readTimeoutMs': readTimeoutMs,
+        'writeTimeoutMs': writeTimeoutMs,
+        'maxRequestsPerHost': maxRequestsPerHost,
+        'maxAttempts': maxAttempts,
+        'retryBaseDelayMs': retryBaseDelayMs,
+        'retryMaxDelayMs': retryMaxDelayMs,
+        'thumbnailMemoryCacheBytes': thumbnailMemoryCacheBytes,
+        'thumbnailDiskCacheBytes': thumbnailDiskCacheBytes,
+      });
 
       // Return success or failure with a message
       return result != null
           ? {
               'success': result['success'] ?? false,
+              ..._retryState(result),
               'message': result['message'] ?? 'Initialization failed.',
             }
           : {
@@ -47,7 +151,47 @@ class Dropbox {
     }
   }
 
+  // What the native side adds to a result that needed retries, or that came
+  // back while transfers are paused because Dropbox is throttling
+  static Map<String, dynamic> _retryState(Map result) => {
+        if (result['retries'] != null) 'retries': result['retries'],
+        if (result['circuit'] != null) 'circuit': result['circuit'],
+      };
+
   static Future<void> _handleMethodCall(MethodCall call) async {
+    if (call.method == 'progressBatch') {
+      _handleProgressBatch(call.arguments as List<int>);
+      return;
+    }
+    if (call.method == 'listFolderStreamPage') {
+      _handleListFolderStreamPage(call.arguments as Map);
+      return;
+    }
+    if (call.method == 'metricsSnapshot') {
+      _metricsController
+          ?.add(Map<String, dynamic>.from(call.arguments as Map));
+      return;
+    }
+    if (call.method == 'queuedTransferDone') {
+      final controller = _queuedTransfersController;
+      if (controller == null || !controller.hasListener) {
+        // The native queue keeps the outcome and offers it again later
+        throw PlatformException(code: 'NO_LISTENER');
+      }
+      final job = Map<String, dynamic>.from(call.arguments as Map);
+      _callbackMap.remove(job['key']);
+      controller.add(job);
+      return;
+    }
+    if (call.method == 'folderChanged') {
+      final event = call.arguments as Map;
+      final callback = _folderWatchers[event['key']];
+      if (callback != null) {
+        if (event['success'] != true) _folderWatchers.remove(event['key']);
+        callback(event['path'], event['message']);
+      }
+      return;
+    }
     try {
       var args = call.arguments as List;
       var key = args[0];
@@ -67,6 +211,40 @@ class Dropbox {
     }
   }
 
+  // Updates arrive as packed [key, bytes, total] triples, one message per tick
+  static void _handleProgressBatch(List<int> batch) {
+    for (var i = 0; i + 2 < batch.length; i += 3) {
+      final info = _callbackMap[batch[i]];
+      if (info == null || info.callback == null) continue;
+      if (info.filesize == 0 && batch[i + 2] >= 0) {
+        info.filesize = batch[i + 2];
+      }
+      info.callback!(batch[i + 1], info.filesize);
+    }
+  }
+
+  static void _handleListFolderStreamPage(Map page) {
+    final key = page['key'] as int;
+    final info = _listFolderStreams[key];
+    if (info == null) return;
+
+    if (page['success'] == true) {
+      info.controller.add(List<dynamic>.from(page['paths'] ?? []));
+    } else {
+      info.controller.addError(Exception(page['message']));
+    }
+
+    if (page['hasMore'] != true) {
+      _listFolderStreams.remove(key);
+      info.controller.close();
+    } else if (info.controller.isPaused) {
+      // Acknowledge once the listener resumes, which holds back the native side
+      info.owedAcks++;
+    } else {
+      _channel.invokeMethod('listFolderStreamAck', {'key': key});
+    }
+  }
+
   /// Authorize using Dropbox app or web browser.
 
   static Future<Map<String, dynamic>> authorize() async {
@@ -78,6 +256,7 @@ class Dropbox {
       if (result != null) {
         return {
           'success': result['success'] ?? false,
+          ..._retryState(result),
           'message': result['message'] ??
               'Authorization result received, but no message provided',
         };
@@ -107,6 +286,7 @@ class Dropbox {
       if (result != null) {
         return {
           'success': result['success'] ?? false,
+          ..._retryState(result),
           'message': result['message'] ??
               'Authorization result received, but no message provided',
         };
@@ -137,6 +317,7 @@ class Dropbox {
       if (result != null) {
         return {
           'success': result['success'] ?? false,
+          ..._retryState(result),
           'message': result['message'] ??
               'Authorization with access token succeeded, but no message provided',
         };
@@ -166,6 +347,7 @@ class Dropbox {
         print("Access token not available.");
         return {
           'success': result['success'] ?? false,
+          ..._retryState(result),
           'message': result['message'] ??
               'Access token succeeded, but no message provided',
           'accessToken': result['accessToken'] ?? null,
@@ -193,17 +375,32 @@ class Dropbox {
   /// get folder/file list for path.
 
   /// Get folder/file list for the given path.
-  static Future<Map<String, dynamic>> listFolder(String path) async {
+  ///
+  /// Listings are cached on the native side and refreshed with a cursor
+  /// delta. With [cacheOnly] the cached listing is returned without touching
+  /// the network, or 'success' is false when the folder is not cached.
+  ///
+  /// With [compact] the entries come back under 'listing' as a
+  /// [DropboxListing] instead of a list of maps under 'paths'. It is encoded
+  /// off the main thread on the native side and decoded lazily, which is
+  /// much cheaper for large folders.
+  static Future<Map<String, dynamic>> listFolder(String path,
+      {bool cacheOnly = false, bool compact = false}) async {
     try {
       // Attempt to invoke the platform method to retrieve the folder list
-      final result = await _channel.invokeMethod('listFolder', {'path': path});
+      final result = await _channel.invokeMethod('listFolder',
+          {'path': path, 'cacheOnly': cacheOnly, 'compact': compact});
 
       // Return the result if successful
       if (result != null) {
         return {
           'success': result['success'] ?? false,
+          ..._retryState(result),
           'message': result['message'] ?? 'Folder list retrieved failed.',
           'paths': result['paths'],
+          'fromCache': result['fromCache'] ?? false,
+          if (result['listing'] != null)
+            'listing': DropboxListing(result['listing'] as Uint8List),
         };
       } else {
         // If no result, return a failure response
@@ -226,15 +423,460 @@ class Dropbox {
     }
   }
 
+  /// Get hit/miss counters and size of the native metadata cache.
+  static Future<Map<String, dynamic>> getCacheStats() async {
+    try {
+      final result = await _channel.invokeMethod('getCacheStats');
+      return {
+        'success': result?['success'] ?? false,
+        if (result != null) ..._retryState(result),
+        'message': result?['message'] ?? 'Failed to retrieve cache statistics.',
+        'stats': result?['stats'],
+      };
+    } catch (e) {
+      return {
+        'success': false,
+        'message': 'Error retrieving cache statistics: $e',
+        'stats': null,
+      };
+    }
+  }
+
+  /// Get connection reuse counters (calls, newConnections, connectionsReused,
+  /// tlsHandshakes, ...) and pool state of the shared HTTP client.
+  static Future<Map<String, dynamic>> getHttpStats() async {
+    try {
+      final result = await _channel.invokeMethod('getHttpStats');
+      return {
+        'success': result?['success'] ?? false,
+        if (result != null) ..._retryState(result),
+        'message': result?['message'] ?? 'Failed to retrieve HTTP statistics.',
+        'stats': result?['stats'],
+      };
+    } catch (e) {
+      return {
+        'success': false,
+        'message': 'Error retrieving HTTP statistics: $e',
+        'stats': null,
+      };
+    }
+  }
+
+  /// Get per-operation counters and histograms (latencyMs, queuedMs, bytes,
+  /// bytesPerSecond with count/mean/max/p50/p90/p95/p99), error counts by
+  /// class and in-flight gauges. With [reset], counting starts over.
+  static Future<Map<String, dynamic>> getMetrics({bool reset = false}) async {
+    try {
+      final result = await _channel.invokeMethod('getMetrics', {'reset': reset});
+      return {
+        'success': result?['success'] ?? false,
+        if (result != null) ..._retryState(result),
+        'message': result?['message'] ?? 'Failed to retrieve metrics.',
+        'metrics': result?['metrics'],
+      };
+    } catch (e) {
+      return {
+        'success': false,
+        'message': 'Error retrieving metrics: $e',
+        'metrics': null,
+      };
+    }
+  }
+
+  /// Stream a metrics snapshot, as returned in 'metrics' by [getMetrics],
+  /// every [interval]. Snapshots stop when the last listener cancels.
+  static Stream<Map<String, dynamic>> metricsSnapshots(Duration interval) {
+    _metricsController ??= StreamController<Map<String, dynamic>>.broadcast(
+      onCancel: () {
+        _channel.invokeMethod('streamMetrics', {'intervalMs': 0});
+      },
+    );
+    _channel.invokeMethod(
+        'streamMetrics', {'intervalMs': interval.inMilliseconds});
+    return _metricsController!.stream;
+  }
+
+  /// Drop everything from the native metadata cache and the thumbnails held
+  /// in memory.
+  static Future<Map<String, dynamic>> clearCache() async {
+    try {
+      final result = await _channel.invokeMethod('clearCache');
+      return {
+        'success': result?['success'] ?? false,
+        if (result != null) ..._retryState(result),
+        'message': result?['message'] ?? 'Failed to clear cache.',
+      };
+    } catch (e) {
+      return {
+        'success': false,
+        'message': 'Error clearing cache: $e',
+      };
+    }
+  }
+
+  /// Get a thumbnail of the image at [path]. On success the result holds the
+  /// image as a Uint8List under 'bytes'.
+  ///
+  /// [size], [format] and [mode] are named like the Dropbox API (e.g.
+  /// 'w256h256', 'png', 'bestfit'). Requests made at about the same time are
+  /// fetched together, up to 25 per call, and the same thumbnail is only
+  /// fetched once; thumbnails are cached until the file changes.
+  static Future<Map<String, dynamic>> getThumbnail(String path,
+      {String size = 'w64h64',
+      String format = 'jpeg',
+      String mode = 'strict'}) async {
+    try {
+      final result = await _channel.invokeMethod('getThumbnail', {
+        'path': path,
+        'size': size,
+        'format': format,
+        'mode': mode,
+      });
+      return {
+        'success': result?['success'] ?? false,
+        if (result != null) ..._retryState(result),
+        'message': result?['message'] ?? 'Failed to get thumbnail.',
+        if (result?['bytes'] != null) 'bytes': result['bytes'] as Uint8List,
+      };
+    } catch (e) {
+      return {
+        'success': false,
+        'message': 'Error getting thumbnail: $e',
+      };
+    }
+  }
+
+  /// Get one page of the folder/file list for [path], at most [limit] entries.
+  ///
+  /// The result contains 'paths', 'cursor' and 'hasMore'. Pass the cursor to
+  /// [listFolderContinue] to get the next page. With [compact] the entries
+  /// come back under 'listing', like [listFolder].
+  static Future<Map<String, dynamic>> listFolderPage(String path,
+      {int? limit, bool compact = false}) async {
+    return _listFolderPage({'path': path, 'limit': limit, 'compact': compact});
+  }
+
+  /// Get the page that follows [cursor], as returned by [listFolderPage].
+  static Future<Map<String, dynamic>> listFolderContinue(String cursor,
+      {bool compact = false}) async {
+    return _listFolderPage({'cursor': cursor, 'compact': compact});
+  }
+
+  static Future<Map<String, dynamic>> _listFolderPage(
+      Map<String, dynamic> args) async {
+    try {
+      final result = await _channel.invokeMethod('listFolderPage', args);
+
+      if (result != null) {
+        return {
+          'success': result['success'] ?? false,
+          ..._retryState(result),
+          'message': result['message'] ?? 'Folder page retrieval failed.',
+          'paths': result['paths'],
+          if (result['listing'] != null)
+            'listing': DropboxListing(result['listing'] as Uint8List),
+          'cursor': result['cursor'],
+          'hasMore': result['hasMore'] ?? false,
+        };
+      } else {
+        return {
+          'success': false,
+          'message': 'Failed to retrieve folder page.',
+          'paths': null,
+          'cursor': null,
+          'hasMore': false,
+        };
+      }
+    } catch (e) {
+      print("Error retrieving folder page: $e");
+
+      return {
+        'success': false,
+        'message': 'Error retrieving folder page: $e',
+        'paths': null,
+        'cursor': null,
+        'hasMore': false,
+      };
+    }
+  }
+
+  /// Stream the folder/file list for [path], one page of entries per event.
+  ///
+  /// Pages are sent as soon as they arrive. While the subscription is paused
+  /// the native side stops fetching after [prefetch] pages; cancelling the
+  /// subscription stops the listing.
+  static Stream<List<dynamic>> listFolderStream(String path,
+      {int? pageSize, int prefetch = 2}) {
+    final key = ++_callbackInt;
+    late final StreamController<List<dynamic>> controller;
+
+    controller = StreamController<List<dynamic>>(
+      onListen: () {
+        _listFolderStreams[key] = _ListFolderStreamInfo(controller);
+        _channel.invokeMethod('listFolderStream', {
+          'path': path,
+          'key': key,
+          'limit': pageSize,
+          'prefetch': prefetch,
+        }).catchError((e) {
+          _listFolderStreams.remove(key);
+          controller.addError(e);
+          controller.close();
+        });
+      },
+      onResume: () {
+        final info = _listFolderStreams[key];
+        if (info == null) return;
+        while (info.owedAcks > 0) {
+          info.owedAcks--;
+          _channel.invokeMethod('listFolderStreamAck', {'key': key});
+        }
+      },
+      onCancel: () {
+        if (_listFolderStreams.remove(key) != null) {
+          _channel.invokeMethod('listFolderStreamCancel', {'key': key});
+        }
+      },
+    );
+    return controller.stream;
+  }
+
+  /// Get what changed under [path] since the last call for the same path.
+  ///
+  /// The first call (or a call with [reset]) returns the full listing with
+  /// 'reset' set to true. Later calls return only the added, changed and
+  /// deleted entries; deleted entries have 'tag' set to 'deleted'. The cursor
+  /// is kept on the device, so deltas continue across app restarts. With
+  /// [compact] the entries come back under 'listing', like [listFolder].
+  static Future<Map<String, dynamic>> listFolderDelta(String path,
+      {bool recursive = true, bool reset = false, bool compact = false}) async {
+    try {
+      final result = await _channel.invokeMethod('listFolderDelta', {
+        'path': path,
+        'recursive': recursive,
+        'reset': reset,
+        'compact': compact,
+      });
+
+      if (result != null) {
+        return {
+          'success': result['success'] ?? false,
+          ..._retryState(result),
+          'message': result['message'] ?? 'Folder delta retrieval failed.',
+          'reset': result['reset'] ?? false,
+          'entries': result['entries'],
+          if (result['listing'] != null)
+            'listing': DropboxListing(result['listing'] as Uint8List),
+          'cursor': result['cursor'],
+        };
+      } else {
+        return {
+          'success': false,
+          'message': 'Failed to retrieve folder delta.',
+          'entries': null,
+        };
+      }
+    } catch (e) {
+      print("Error retrieving folder delta: $e");
+
+      return {
+        'success': false,
+        'message': 'Error retrieving folder delta: $e',
+        'entries': null,
+      };
+    }
+  }
+
+  /// Watch [path] for changes; [onChanged] is called each time something
+  /// under it changed. Returns a key for [unwatchFolder].
+  static Future<int> watchFolder(
+      String path, DropboxFolderChangedCallback onChanged,
+      {bool recursive = true, int? timeoutSeconds}) async {
+    final key = ++_callbackInt;
+    _folderWatchers[key] = onChanged;
+    await _channel.invokeMethod('watchFolder', {
+      'path': path,
+      'key': key,
+      'recursive': recursive,
+      'timeout': timeoutSeconds,
+    });
+    return key;
+  }
+
+  /// Stop a watcher started with [watchFolder].
+  static Future<void> unwatchFolder(int key) async {
+    _folderWatchers.remove(key);
+    await _channel.invokeMethod('unwatchFolder', {'key': key});
+  }
+
+  /// Queue an upload of [filepath] to [dropboxpath] that survives the app
+  /// being closed. It runs after [init] and authorization, on the next start
+  /// if need be; with [unmetered] it waits for Wi-Fi or another unmetered
+  /// network, with [charging] for a charger. Large files resume their upload
+  /// session instead of starting over.
+  ///
+  /// Returns 'id' for [cancelQueued] and 'key' for [cancel], [pause] and
+  /// [resume]. The outcome arrives on [queuedTransfersDone].
+  static Future<Map<String, dynamic>> enqueueUpload(
+      String filepath, String dropboxpath,
+      {bool unmetered = false,
+      bool charging = false,
+      DropboxProgressCallback? callback}) {
+    return _enqueue('enqueueUpload', filepath, dropboxpath, unmetered,
+        charging, callback);
+  }
+
+  /// Queue a download of [dropboxpath] to [filepath], like [enqueueUpload].
+  static Future<Map<String, dynamic>> enqueueDownload(
+      String dropboxpath, String filepath,
+      {bool unmetered = false,
+      bool charging = false,
+      DropboxProgressCallback? callback}) {
+    return _enqueue('enqueueDownload', filepath, dropboxpath, unmetered,
+        charging, callback);
+  }
+
+  static Future<Map<String, dynamic>> _enqueue(
+      String method,
+      String filepath,
+      String dropboxpath,
+      bool unmetered,
+      bool charging,
+      DropboxProgressCallback? callback) async {
+    try {
+      final result = await _channel.invokeMethod(method, {
+        'filepath': filepath,
+        'dropboxpath': dropboxpath,
+        'unmetered': unmetered,
+        'charging': charging,
+      });
+      if (result?['success'] == true && callback != null) {
+        _callbackMap[result['key']] = _CallbackInfo(0, callback);
+      }
+      return {
+        'success': result?['success'] ?? false,
+        if (result != null) ..._retryState(result),
+        'message': result?['message'] ?? 'Failed to queue transfer.',
+        'id': result?['id'],
+        'key': result?['key'],
+      };
+    } catch (e) {
+      return {
+        'success': false,
+        'message': 'Error queueing transfer: $e',
+      };
+    }
+  }
+
+  /// The queued transfers that have not been reported yet, with their 'id',
+  /// 'kind', 'filepath', 'dropboxpath' and 'state'.
+  static Future<Map<String, dynamic>> getQueuedTransfers() async {
+    try {
+      final result = await _channel.invokeMethod('getQueuedTransfers');
+      return {
+        'success': result?['success'] ?? false,
+        if (result != null) ..._retryState(result),
+        'message': result?['message'] ?? 'Failed to get queued transfers.',
+        'transfers': result?['transfers'] ?? [],
+      };
+    } catch (e) {
+      return {
+        'success': false,
+        'message': 'Error getting queued transfers: $e',
+        'transfers': [],
+      };
+    }
+  }
+
+  /// Remove a queued transfer by its [id], cancelling it if it runs.
+  static Future<bool> cancelQueued(int id) async {
+    try {
+      final result = await _channel.invokeMethod('cancelQueued', {'id': id});
+      return result != null && result['success'] == true;
+    } catch (e) {
+      return false;
+    }
+  }
+
+  /// Outcomes of queued transfers, including those that finished while the
+  /// app was not listening. An outcome is only dropped natively once it was
+  /// delivered here.
+  static Stream<Map<String, dynamic>> get queuedTransfersDone {
+    _queuedTransfersController ??=
+        StreamController<Map<String, dynamic>>.broadcast(
+      onListen: () {
+        _channel.invokeMethod('deliverQueuedTransfers');
+      },
+    );
+    return _queuedTransfersController!.stream;
+  }
+
+  /// Returns a key for [upload], [uploadBatch] or [download], so the transfer
+  /// can be stopped with [cancel], [pause] and [resume] while it runs.
+  static int newTransferKey() => ++_callbackInt;
+
+  /// cancel a transfer started with [key]. Its HTTP stream is aborted and a
+  /// partial download is deleted; the transfer's result has 'cancelled' set.
+  static Future<bool> cancel(int key) => _controlTransfer('cancel', key);
+
+  /// pause a transfer started with [key]. It gives up its worker and
+  /// connection until [resume]; downloads continue where they stopped,
+  /// uploads start over.
+  static Future<bool> pause(int key) => _controlTransfer('pause', key);
+
+  /// resume a transfer paused with [pause].
+  static Future<bool> resume(int key) => _controlTransfer('resume', key);
+
+  static Future<bool> _controlTransfer(String method, int key) async {
+    try {
+      final result = await _channel.invokeMethod(method, {'key': key});
+      return result != null && result['success'] == true;
+    } catch (e) {
+      print("Error during transfer $method: $e");
+      return false;
+    }
+  }
+
   /// upload local file in filepath to dropboxpath.
+  /// Pass a [key] from [newTransferKey] to be able to cancel or pause it.
 
   static Future<Map<String, dynamic>> upload(
       String filepath, String dropboxpath,
-      [DropboxProgressCallback? callback]) async {
+      [DropboxProgressCallback? callback, int? key]) {
+    return _upload(filepath, null, dropboxpath, callback, key, false);
+  }
+
+  /// upload a content URI (e.g. from a document picker or MediaStore) to
+  /// dropboxpath, without copying it into a local file first. With [sync] it
+  /// is skipped when dropboxpath already holds the same content, like
+  /// [syncUpload].
+  static Future<Map<String, dynamic>> uploadUri(String uri, String dropboxpath,
+      [DropboxProgressCallback? callback, int? key, bool sync = false]) {
+    return _upload(null, uri, dropboxpath, callback, key, sync);
+  }
+
+  /// upload local file in filepath to dropboxpath, unless dropboxpath already
+  /// holds the same content.
+  ///
+  /// The local content hash is cached per path, modification time and size,
+  /// so an unchanged file is not even read again. Skipped files have
+  /// 'skipped' set in the result. A changed file only replaces the revision
+  /// it was compared with; if the dropbox copy changed in the meantime, the
+  /// upload is saved as a conflicted copy instead.
+  static Future<Map<String, dynamic>> syncUpload(
+      String filepath, String dropboxpath,
+      [DropboxProgressCallback? callback, int? key]) {
+    return _upload(filepath, null, dropboxpath, callback, key, true);
+  }
+
+  static Future<Map<String, dynamic>> _upload(String? filepath, String? uri,
+      String dropboxpath, DropboxProgressCallback? callback, int? key,
+      bool sync) async {
     try {
-      // Get the file size and generate a unique callback key
-      final fileSize = File(filepath).lengthSync();
-      final key = ++_callbackInt;
+      // Get the file size and generate a unique callback key; the size of a
+      // URI arrives with the first progress update
+      final fileSize = filepath != null ? File(filepath).lengthSync() : 0;
+      key ??= ++_callbackInt;
 
       // Store callback info for tracking progress
       _callbackMap[key] = _CallbackInfo(fileSize, callback);
@@ -242,8 +884,10 @@ class Dropbox {
       // Attempt to invoke the platform method for uploading the file
       final result = await _channel.invokeMethod('upload', {
         'filepath': filepath,
+        'uri': uri,
         'dropboxpath': dropboxpath,
         'key': key,
+        'sync': sync,
       });
 
       // Remove the callback info after upload
@@ -253,7 +897,10 @@ class Dropbox {
       if (result != null) {
         return {
           'success': result['success'] ?? false,
+          ..._retryState(result),
           'message': result['message'] ?? 'Upload failed.',
+          'cancelled': result['cancelled'] ?? false,
+          'skipped': result['skipped'] ?? false,
         };
       } else {
         return {
@@ -273,22 +920,226 @@ class Dropbox {
     }
   }
 
+  /// upload many local files at once. [files] maps each local file path to
+  /// its dropbox path.
+  ///
+  /// The files are uploaded in parallel and committed together, so this is
+  /// much faster than calling [upload] for each file. [callback] reports the
+  /// progress of the whole batch. The result contains a 'files' list with
+  /// one entry (filepath, dropboxpath, success, message) per file.
+  /// Pass a [key] from [newTransferKey] to be able to cancel or pause it.
+  static Future<Map<String, dynamic>> uploadBatch(Map<String, String> files,
+      [DropboxProgressCallback? callback, int? key]) async {
+    try {
+      final filepaths = files.keys.toList();
+      final dropboxpaths = filepaths.map((path) => files[path]!).toList();
+      var totalSize = 0;
+      for (final path in filepaths) {
+        totalSize += File(path).existsSync() ? File(path).lengthSync() : 0;
+      }
+      key ??= ++_callbackInt;
+      _callbackMap[key] = _CallbackInfo(totalSize, callback);
+
+      final result = await _channel.invokeMethod('uploadBatch', {
+        'filepaths': filepaths,
+        'dropboxpaths': dropboxpaths,
+        'key': key,
+      });
+
+      _callbackMap.remove(key);
+
+      if (result != null) {
+        return {
+          'success': result['success'] ?? false,
+          ..._retryState(result),
+          'message': result['message'] ?? 'Batch upload failed.',
+          'cancelled': result['cancelled'] ?? false,
+          'files': (result['files'] as List<dynamic>?)
+                  ?.map((file) => Map<String, dynamic>.from(file as Map))
+                  .toList() ??
+              [],
+        };
+      } else {
+        return {
+          'success': false,
+          'message': 'Failed to upload files.',
+        };
+      }
+    } catch (e) {
+      print("Error during batch upload: $e");
+      return {
+        'success': false,
+        'message': 'Error during batch upload: $e',
+      };
+    }
+  }
+
+  /// copy every key of [paths] to its value on the server side.
+  ///
+  /// The result contains an 'entries' list with one entry (fromPath, toPath,
+  /// success, message, metadata) per path. With [autorename], conflicting
+  /// destinations get a new name instead of failing.
+  static Future<Map<String, dynamic>> copyBatch(Map<String, String> paths,
+      {bool autorename = false}) async {
+    return _relocateBatch('copyBatch', paths, autorename);
+  }
+
+  /// move every key of [paths] to its value on the server side.
+  ///
+  /// Results are reported like [copyBatch].
+  static Future<Map<String, dynamic>> moveBatch(Map<String, String> paths,
+      {bool autorename = false}) async {
+    return _relocateBatch('moveBatch', paths, autorename);
+  }
+
+  static Future<Map<String, dynamic>> _relocateBatch(
+      String method, Map<String, String> paths, bool autorename) async {
+    final fromPaths = paths.keys.toList();
+    return _batchOperation(method, {
+      'fromPaths': fromPaths,
+      'toPaths': fromPaths.map((path) => paths[path]!).toList(),
+      'autorename': autorename,
+    });
+  }
+
+  /// delete every path in [paths], folders with their contents.
+  ///
+  /// The result contains an 'entries' list with one entry (path, success,
+  /// message, metadata) per path.
+  static Future<Map<String, dynamic>> deleteBatch(List<String> paths) async {
+    return _batchOperation('deleteBatch', {'paths': paths});
+  }
+
+  static Future<Map<String, dynamic>> _batchOperation(
+      String method, Map<String, dynamic> arguments) async {
+    try {
+      final result = await _channel.invokeMethod(method, arguments);
+      if (result != null) {
+        return {
+          'success': result['success'] ?? false,
+          ..._retryState(result),
+          'message': result['message'] ?? 'Batch failed.',
+          'entries': (result['entries'] as List<dynamic>?)
+                  ?.map((entry) => Map<String, dynamic>.from(entry as Map))
+                  .toList() ??
+              [],
+        };
+      } else {
+        return {
+          'success': false,
+          'message': 'Batch failed.',
+        };
+      }
+    } catch (e) {
+      print("Error during $method: $e");
+      return {
+        'success': false,
+        'message': 'Error during $method: $e',
+      };
+    }
+  }
+
+  /// mirror the local directory [localdir] into [dropboxdir] (direction
+  /// 'upload') or [dropboxdir] into [localdir] (direction 'download').
+  ///
+  /// Both trees are compared natively by path, size and content hash, and
+  /// only what differs is transferred, in parallel. With [delete], entries
+  /// that only exist on the target side are deleted. A local folder that
+  /// cannot be read fails the whole sync. [callback] reports the
+  /// progress of all transfers together. The result contains an 'entries'
+  /// list with one entry (action, filepath and/or dropboxpath, success,
+  /// message) per change and the number of 'unchanged' files. With [dryRun]
+  /// nothing is changed and 'entries' lists the planned changes.
+  /// Pass a [key] from [newTransferKey] to be able to cancel or pause it.
+  static Future<Map<String, dynamic>> syncFolder(
+      String localdir, String dropboxdir,
+      {String direction = 'upload',
+      bool delete = false,
+      bool dryRun = false,
+      DropboxProgressCallback? callback,
+      int? key}) async {
+    try {
+      key ??= ++_callbackInt;
+      _callbackMap[key] = _CallbackInfo(0, callback);
+
+      final result = await _channel.invokeMethod('syncFolder', {
+        'localdir': localdir,
+        'dropboxdir': dropboxdir,
+        'direction': direction,
+        'delete': delete,
+        'dryRun': dryRun,
+        'key': key,
+      });
+
+      _callbackMap.remove(key);
+
+      if (result != null) {
+        return {
+          'success': result['success'] ?? false,
+          ..._retryState(result),
+          'message': result['message'] ?? 'Sync failed.',
+          'cancelled': result['cancelled'] ?? false,
+          'entries': result['entries'] ?? [],
+          'unchanged': result['unchanged'] ?? 0,
+        };
+      } else {
+        return {
+          'success': false,
+          'message': 'Failed to sync folder.',
+        };
+      }
+    } catch (e) {
+      print("Error during folder sync: $e");
+      return {
+        'success': false,
+        'message': 'Error during folder sync: $e',
+      };
+    }
+  }
+
   /// download file from dropboxpath to local file(filepath).
+  /// Pass a [key] from [newTransferKey] to be able to cancel or pause it.
 
   static Future<Map<String, dynamic>> download(
       String dropboxpath, String filepath,
-      [DropboxProgressCallback? callback]) async {
+      [DropboxProgressCallback? callback, int? key]) {
+    return _download('download',
+        {'filepath': filepath, 'dropboxpath': dropboxpath}, callback, key);
+  }
+
+  /// download file from dropboxpath into a content URI, e.g. one created
+  /// with a document picker. The URI's previous content is replaced.
+  static Future<Map<String, dynamic>> downloadToUri(
+      String dropboxpath, String uri,
+      [DropboxProgressCallback? callback, int? key]) {
+    return _download(
+        'downloadToUri', {'uri': uri, 'dropboxpath': dropboxpath}, callback, key);
+  }
+
+  /// download file from dropboxpath into memory. On success the result holds
+  /// the content as a Uint8List under 'bytes'. Files above [maxBytes]
+  /// (64 MB by default) are refused.
+  static Future<Map<String, dynamic>> downloadToMemory(String dropboxpath,
+      [DropboxProgressCallback? callback, int? key, int? maxBytes]) {
+    return _download('downloadToMemory',
+        {'dropboxpath': dropboxpath, 'maxBytes': maxBytes}, callback, key);
+  }
+
+  static Future<Map<String, dynamic>> _download(
+      String method,
+      Map<String, dynamic> arguments,
+      DropboxProgressCallback? callback,
+      int? key) async {
     try {
       // Generate a unique callback key
-      final key = ++_callbackInt;
+      key ??= ++_callbackInt;
 
       // Store callback info for progress tracking
       _callbackMap[key] = _CallbackInfo(0, callback);
 
       // Attempt to invoke the platform method for downloading the file
-      final result = await _channel.invokeMethod('download', {
-        'filepath': filepath,
-        'dropboxpath': dropboxpath,
+      final result = await _channel.invokeMethod(method, {
+        ...arguments,
         'key': key,
       });
 
@@ -299,7 +1150,10 @@ class Dropbox {
       if (result != null) {
         return {
           'success': result['success'] ?? false,
+          ..._retryState(result),
           'message': result['message'] ?? 'Download failed.',
+          'cancelled': result['cancelled'] ?? false,
+          if (result['bytes'] != null) 'bytes': result['bytes'] as Uint8List,
         };
       } else {
         return {
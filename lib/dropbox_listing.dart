@@ -0,0 +1,196 @@
+import 'dart:collection';
+import 'dart:convert';
+import 'dart:typed_data';
+
+/// A folder listing in the compact format produced by the native side.
+///
+/// The bytes are read in place: strings are decoded the first time they are
+/// used and [DropboxEntry] objects are only created for the entries that are
+/// accessed, so a large listing costs little until it is walked.
+class DropboxListing with IterableMixin<DropboxEntry> {
+  static const int _version = 1;
+  static const int _flagDisplayFull = 1;
+  static const List<String> _tags = ['file', 'folder', 'deleted'];
+
+  final ByteData _data;
+  final Uint8List _bytes;
+  @override
+  final int length;
+  late final List<int> _stringOffsets;
+  late final List<String?> _strings;
+  late final List<DropboxEntry?> _entries;
+  late final int _tagsAt;
+  late final int _flagsAt;
+  late final int _namesAt;
+  late final int _displayParentsAt;
+  late final int _lowerParentsAt;
+  late final int _lowerNamesAt;
+  late final int _revsAt;
+  late final int _sizesAt;
+  late final int _clientModifiedAt;
+  late final int _serverModifiedAt;
+
+  DropboxListing._(this._bytes, this._data, this.length);
+
+  /// Wraps the bytes of a compact listing; only the string table is scanned.
+  factory DropboxListing(Uint8List bytes) {
+    final data = ByteData.sublistView(bytes);
+    if (bytes.isEmpty || data.getUint8(0) != _version) {
+      throw FormatException('Unsupported listing format');
+    }
+    final listing =
+        DropboxListing._(bytes, data, data.getUint32(1, Endian.little));
+    listing._scan();
+    return listing;
+  }
+
+  void _scan() {
+    final count = _data.getUint32(5, Endian.little);
+    final offsets = List<int>.filled(count, 0);
+    var at = 9;
+    for (var i = 0; i < count; i++) {
+      offsets[i] = at;
+      at += 4 + _data.getUint32(at, Endian.little);
+    }
+    _stringOffsets = offsets;
+    _strings = List<String?>.filled(count, null);
+    _entries = List<DropboxEntry?>.filled(length, null);
+
+    _tagsAt = at;
+    _flagsAt = _tagsAt + length;
+    _namesAt = _flagsAt + length;
+    _displayParentsAt = _namesAt + 4 * length;
+    _lowerParentsAt = _displayParentsAt + 4 * length;
+    _lowerNamesAt = _lowerParentsAt + 4 * length;
+    _revsAt = _lowerNamesAt + 4 * length;
+    _sizesAt = _revsAt + 4 * length;
+    _clientModifiedAt = _sizesAt + 8 * length;
+    _serverModifiedAt = _clientModifiedAt + 8 * length;
+  }
+
+  /// The entry at [index], created on first access.
+  DropboxEntry operator [](int index) {
+    RangeError.checkValidIndex(index, this, 'index', length);
+    return _entries[index] ??= DropboxEntry._(this, index);
+  }
+
+  @override
+  Iterator<DropboxEntry> get iterator => _ListingIterator(this);
+
+  /// Every entry as the map the non-compact listing calls return.
+  List<Map<String, dynamic>> toMaps() => [for (final e in this) e.toMap()];
+
+  String? _string(int index) {
+    if (index < 0) return null;
+    final cached = _strings[index];
+    if (cached != null) return cached;
+    final at = _stringOffsets[index];
+    final size = _data.getUint32(at, Endian.little);
+    return _strings[index] =
+        utf8.decode(Uint8List.sublistView(_bytes, at + 4, at + 4 + size));
+  }
+
+  int _int32(int column, int index) =>
+      _data.getInt32(column + 4 * index, Endian.little);
+
+  int _int64(int column, int index) =>
+      _data.getInt64(column + 8 * index, Endian.little);
+
+  DateTime? _time(int column, int index) {
+    final millis = _int64(column, index);
+    return millis == 0 ? null : DateTime.fromMillisecondsSinceEpoch(millis);
+  }
+}
+
+class _ListingIterator implements Iterator<DropboxEntry> {
+  final DropboxListing _listing;
+  int _index = -1;
+
+  _ListingIterator(this._listing);
+
+  @override
+  DropboxEntry get current => _listing[_index];
+
+  @override
+  bool moveNext() => ++_index < _listing.length;
+}
+
+/// One file, folder or deleted entry of a [DropboxListing]. Its fields are
+/// read from the listing's bytes when they are first used.
+class DropboxEntry {
+  final DropboxListing _listing;
+  final int _index;
+
+  DropboxEntry._(this._listing, this._index);
+
+  /// 'file', 'folder' or 'deleted'.
+  String get tag =>
+      DropboxListing._tags[_listing._data.getUint8(_listing._tagsAt + _index)];
+
+  bool get isFile => tag == 'file';
+
+  bool get isFolder => tag == 'folder';
+
+  bool get isDeleted => tag == 'deleted';
+
+  String get name =>
+      _listing._string(_listing._int32(_listing._namesAt, _index))!;
+
+  String? get pathDisplay {
+    final parent =
+        _listing._string(_listing._int32(_listing._displayParentsAt, _index));
+    if (parent == null) return null;
+    final flags = _listing._data.getUint8(_listing._flagsAt + _index);
+    return flags & DropboxListing._flagDisplayFull != 0
+        ? parent
+        : '$parent/$name';
+  }
+
+  String? get pathLower {
+    final parent =
+        _listing._string(_listing._int32(_listing._lowerParentsAt, _index));
+    if (parent == null) return null;
+    final lowerName =
+        _listing._string(_listing._int32(_listing._lowerNamesAt, _index));
+    return '$parent/${lowerName ?? name.toLowerCase()}';
+  }
+
+  /// The revision of a file, null for folders and deleted entries.
+  String? get rev =>
+      _listing._string(_listing._int32(_listing._revsAt, _index));
+
+  /// The size of a file in bytes, 0 for folders and deleted entries.
+  int get size => _listing._int64(_listing._sizesAt, _index);
+
+  DateTime? get clientModified =>
+      _listing._time(_listing._clientModifiedAt, _index);
+
+  DateTime? get serverModified =>
+      _listing._time(_listing._serverModifiedAt, _index);
+
+  /// This entry as the map the non-compact listing calls return.
+  Map<String, dynamic> toMap() {
+    final map = <String, dynamic>{
+      'name': name,
+      'pathLower': pathLower,
+      'pathDisplay': pathDisplay,
+      'tag': tag,
+    };
+    if (isFile) {
+      map['rev'] = rev;
+      map['filesize'] = size;
+      map['clientModified'] = _format(clientModified);
+      map['serverModified'] = _format(serverModified);
+    }
+    return map;
+  }
+
+  // Same format as the native side uses for its maps: yyyyMMdd HHmmss
+  static String? _format(DateTime? time) {
+    if (time == null) return null;
+    String two(int n) => n.toString().padLeft(2, '0');
+    return '${time.year.toString().padLeft(4, '0')}${two(time.month)}'
+        '${two(time.day)} ${two(time.hour)}${two(time.minute)}'
+        '${two(time.second)}';
+  }
+}
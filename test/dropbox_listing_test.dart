@@ -0,0 +1,60 @@
+import 'dart:convert';
+import 'dart:io';
+
+import 'package:dropbox_client/dropbox_listing.dart';
+import 'package:flutter_test/flutter_test.dart';
+
+// The fixtures are written by the native ListingCodecTest: listing.bin is the
+// compact listing, listing.json the maps the non-compact listing returns for
+// the same entries, with times formatted in UTC.
+void main() {
+  final listing =
+      DropboxListing(File('test/fixtures/listing.bin').readAsBytesSync());
+  final expected = [
+    for (final map in jsonDecode(
+        File('test/fixtures/listing.json').readAsStringSync()) as List)
+      _toLocalTimes(Map<String, dynamic>.from(map as Map)),
+  ];
+
+  test('decodes every entry like the non-compact listing', () {
+    expect(listing.length, expected.length);
+    expect(listing.toMaps(), expected);
+  });
+
+  test('entries can be read out of order', () {
+    expect(listing[5].name, '日本');
+    expect(listing[5].isDeleted, isTrue);
+    expect(listing[0].pathLower, '/docs/café menü.txt');
+    expect(listing[3].pathDisplay, '/Shared/report.pdf');
+    expect(listing[3].size, 5000000000);
+    expect(listing[1].isFolder, isTrue);
+    expect(listing[1].rev, isNull);
+  });
+
+  test('rejects an unknown version', () {
+    final bytes = File('test/fixtures/listing.bin').readAsBytesSync();
+    bytes[0] = 99;
+    expect(() => DropboxListing(bytes), throwsFormatException);
+  });
+}
+
+// DropboxListing formats times in local time, like the native side does
+Map<String, dynamic> _toLocalTimes(Map<String, dynamic> map) {
+  for (final key in ['clientModified', 'serverModified']) {
+    final utc = map[key] as String?;
+    if (utc == null) continue;
+    final time = DateTime.utc(
+      int.parse(utc.substring(0, 4)),
+      int.parse(utc.substring(4, 6)),
+      int.parse(utc.substring(6, 8)),
+      int.parse(utc.substring(9, 11)),
+      int.parse(utc.substring(11, 13)),
+      int.parse(utc.substring(13, 15)),
+    ).toLocal();
+    String two(int n) => n.toString().padLeft(2, '0');
+    map[key] = '${time.year.toString().padLeft(4, '0')}${two(time.month)}'
+        '${two(time.day)} ${two(time.hour)}${two(time.minute)}'
+        '${two(time.second)}';
+  }
+  return map;
+}
@@ -1,19 +1,70 @@
+import 'dart:io';
+
 import 'package:flutter/services.dart';
 import 'package:flutter_test/flutter_test.dart';
-// import 'package:dropbox_client/dropbox_client.dart';
+import 'package:dropbox_client/dropbox_client.dart';
 
 void main() {
   const MethodChannel channel = MethodChannel('dropbox');
 
   TestWidgetsFlutterBinding.ensureInitialized();
 
+  // Every call answers like a result that needed retries while Dropbox was
+  // throttling
   setUp(() {
-    channel.setMockMethodCallHandler((MethodCall methodCall) async {
-      return '42';
+    TestDefaultBinaryMessengerBinding.instance.defaultBinaryMessenger
+        .setMockMethodCallHandler(channel, (MethodCall methodCall) async {
+      return {
+        'success': true,
+        'message': 'Done.',
+        'retries': 2,
+        'circuit': 'open',
+      };
     });
   });
 
   tearDown(() {
-    channel.setMockMethodCallHandler(null);
+    TestDefaultBinaryMessengerBinding.instance.defaultBinaryMessenger
+        .setMockMethodCallHandler(channel, null);
+  });
+
+  void expectRetryState(Map<String, dynamic> result) {
+    expect(result['success'], isTrue);
+    expect(result['retries'], 2);
+    expect(result['circuit'], 'open');
+  }
+
+  test('upload results keep the retry state', () async {
+    final file = File('${Directory.systemTemp.createTempSync().path}/a.txt')
+      ..writeAsStringSync('a');
+    expectRetryState(await Dropbox.upload(file.path, '/a.txt'));
+    expectRetryState(await Dropbox.uploadBatch({file.path: '/a.txt'}));
+  });
+
+  test('download results keep the retry state', () async {
+    expectRetryState(await Dropbox.download('/a.txt', '/tmp/a.txt'));
+  });
+
+  test('listing results keep the retry state', () async {
+    expectRetryState(await Dropbox.listFolder('/'));
+    expectRetryState(await Dropbox.listFolderPage('/'));
+  });
+
+  test('batch and sync results keep the retry state', () async {
+    expectRetryState(await Dropbox.deleteBatch(['/a.txt']));
+    expectRetryState(await Dropbox.copyBatch({'/a.txt': '/b.txt'}));
+    expectRetryState(await Dropbox.syncFolder('/tmp', '/Backup'));
+  });
+
+  test('results without retries have no retry state', () async {
+    TestDefaultBinaryMessengerBinding.instance.defaultBinaryMessenger
+        .setMockMethodCallHandler(channel, (MethodCall methodCall) async {
+      return {'success': true, 'message': 'Done.'};
+    });
+
+    final result = await Dropbox.deleteBatch(['/a.txt']);
+
+    expect(result.containsKey('retries'), isFalse);
+    expect(result.containsKey('circuit'), isFalse);
   });
 }